@@ -40,7 +40,6 @@
  */
 package com.myopicmobile.textwarrior.android;
 
-import java.util.List;
 
 import android.content.Context;
 import android.content.DialogInterface;
@@ -69,6 +68,7 @@ import android.view.inputmethod.InputConnection;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Scroller;
 
+import com.myopicmobile.textwarrior.common.AdvanceCache;
 import com.myopicmobile.textwarrior.common.ColorScheme;
 import com.myopicmobile.textwarrior.common.ColorScheme.Colorable;
 import com.myopicmobile.textwarrior.common.ColorSchemeLight;
@@ -78,7 +78,9 @@ import com.myopicmobile.textwarrior.common.Language;
 import com.myopicmobile.textwarrior.common.Lexer;
 import com.myopicmobile.textwarrior.common.Pair;
 import com.myopicmobile.textwarrior.common.RowListener;
+import com.myopicmobile.textwarrior.common.SpanList;
 import com.myopicmobile.textwarrior.common.TextWarriorException;
+import com.myopicmobile.textwarrior.common.WordWrapThread;
 
 /**
  * A custom text view that uses a solid shaded caret (aka cursor) instead of a
@@ -131,6 +133,17 @@ implements Document.TextFieldMetrics{
 	protected int _selectionEdge = -1; // exclusive
 
 	private Paint _brush;
+	/** Advances of the chars measured with _brush */
+	private AdvanceCache _advanceCache;
+	/** Holds the chars of the row being drawn or measured. Reused so that
+	 * drawing and scrolling do not allocate memory */
+	private char[] _rowChars = new char[INITIAL_ROW_BUFFER_SIZE];
+	/** Holds a single char to be drawn or measured */
+	private final char[] _singleChar = new char[1];
+	/** Holds the x and y position of every char of the run being drawn */
+	private float[] _runPositions = new float[2 * INITIAL_ROW_BUFFER_SIZE];
+	/** Filled in by _brush without allocating memory */
+	private final Paint.FontMetricsInt _fontMetrics = new Paint.FontMetricsInt();
 	/** Max amount that can be scrolled horizontally based on the longest line
 	 * displayed on screen so far */
 	private int _xExtent = 0;
@@ -141,6 +154,8 @@ implements Document.TextFieldMetrics{
 
 	protected boolean _isAutoIndent = true;
 	protected boolean _isLongPressCaps = false;
+	/** Replaces the estimated rows of a large document, if any */
+	private WordWrapThread _wrapThread = null;
 
 	/** Scale factor for the width of a caret when on a NEWLINE or EOF char.
 	 *  A factor of 1.0 is equals to the width of a space character */
@@ -149,6 +164,7 @@ implements Document.TextFieldMetrics{
 	protected static float SEL_CARET_HEIGHT_SCALE = 0.5f;
 	protected static int DEFAULT_TAB_LENGTH_SPACES = 4;
 	protected static int BASE_TEXT_SIZE_PIXELS = 16;
+	protected static int INITIAL_ROW_BUFFER_SIZE = 256;
 
 
 	public FreeScrollingTextField(Context context, AttributeSet attrs){
@@ -173,6 +189,17 @@ implements Document.TextFieldMetrics{
 		_brush = new Paint();
 		_brush.setAntiAlias(true);
 		_brush.setTextSize(BASE_TEXT_SIZE_PIXELS);
+		_advanceCache = new AdvanceCache(new Document.TextFieldMetrics(){
+			@Override
+			public int getAdvance(char c){
+				return measureAdvance(c);
+			}
+
+			@Override
+			public int getRowWidth(){
+				return FreeScrollingTextField.this.getRowWidth();
+			}
+		});
 
 		setBackgroundColor(_colorScheme.getColor(Colorable.BACKGROUND));
 		setLongClickable(false);
@@ -206,7 +233,7 @@ implements Document.TextFieldMetrics{
 		_fieldController.stopTextComposing();
 		_hDoc.clearSpans();
 		if(getContentWidth() > 0){
-			_hDoc.analyzeWordWrap();
+			analyzeWordWrap();
 		}
 		_rowLis.onRowChange(0);
 		scrollTo(0, 0);
@@ -298,7 +325,7 @@ implements Document.TextFieldMetrics{
 	@Override
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		super.onSizeChanged(w, h, oldw, oldh);
-		_hDoc.analyzeWordWrap();
+		analyzeWordWrap();
 		_fieldController.updateCaretRow();
 		if (!makeCharVisible(_caretPosition)){
 			invalidate();
@@ -322,10 +349,19 @@ implements Document.TextFieldMetrics{
 	}
 
 	protected int rowHeight(){
-		Paint.FontMetricsInt metrics = _brush.getFontMetricsInt();
+		Paint.FontMetricsInt metrics = getFontMetrics();
 		return (metrics.descent - metrics.ascent);
 	}
 
+	/**
+	 * Returns the metrics of the current font. The object returned is reused
+	 * by the next call.
+	 */
+	private Paint.FontMetricsInt getFontMetrics(){
+		_brush.getFontMetricsInt(_fontMetrics);
+		return _fontMetrics;
+	}
+
 	/*
 	 The only methods that have to worry about padding are invalidate, draw
 	 and computeVerticalScrollRange() methods. Other methods can assume that
@@ -372,7 +408,7 @@ implements Document.TextFieldMetrics{
 	 * @return The x-value of the baseline for drawing text on the given row
 	 */
 	private int getPaintBaseline(int row){
-		Paint.FontMetricsInt metrics = _brush.getFontMetricsInt();
+		Paint.FontMetricsInt metrics = getFontMetrics();
 		return (row + 1) * rowHeight() - metrics.descent;
 	}
 
@@ -405,34 +441,33 @@ implements Document.TextFieldMetrics{
 		int endRowNum = getEndPaintRow(canvas);
 		int paintX = 0;
 		int paintY = getPaintBaseline(currRowNum);
+		final int rowHeight = rowHeight();
+		final int[] palette = _colorScheme.getTokenPalette();
+
+		// selected chars are in [selStart, selEnd)
+		int selStart = _selectionAnchor;
+		int selEnd = (selStart < 0) ? -1 : _selectionEdge;
 
 		//----------------------------------------------
 		// set up initial span color
 		//----------------------------------------------
-		int spanIndex = 0;
-		List<Pair> spans = _hDoc.getSpans();
+		// paint from a copy of the spans on screen, since a file that is
+		// still being loaded is appended to, and its spans shifted, by
+		// another thread
+		int endIndex = _hDoc.getRowOffset(endRowNum + 1);
+		if(endIndex < 0){
+			endIndex = _hDoc.docLength();
+		}
+		SpanList spans = _hDoc.copySpans(currIndex, endIndex);
 
 		// There must be at least one span to paint, even for an empty file,
 		// where the span contains only the EOF character
-		TextWarriorException.assertVerbose(!spans.isEmpty(),
+		TextWarriorException.assertVerbose(spans.size() > 0,
 		 	"No spans to paint in TextWarrior.paint()");
 
-		//TODO use binary search
-		Pair nextSpan = spans.get(spanIndex++);
-		Pair currSpan;
-		do{
-			currSpan = nextSpan;
-			if(spanIndex < spans.size()){
-				nextSpan = spans.get(spanIndex++);
-			}
-			else{
-				nextSpan = null;
-			}
-		}
-		while(nextSpan != null && nextSpan.getFirst() <= currIndex);
-
-		int spanColor = _colorScheme.getTokenColor(currSpan.getSecond());
-		_brush.setColor(spanColor);
+		int spanIndex = spans.findSpan(currIndex);
+		int nextSpanStart = spans.getNextStart(spanIndex);
+		_brush.setColor(getTokenColor(palette, spans.getType(spanIndex)));
 
 		//----------------------------------------------
 		// start painting!
@@ -440,43 +475,63 @@ implements Document.TextFieldMetrics{
 
 		while (currRowNum <= endRowNum){
 
-			String row = _hDoc.getRow(currRowNum);
-			if(row.length() == 0){
+			int rowSize = loadRowChars(currIndex, _hDoc.getRowSize(currRowNum));
+			if(rowSize == 0){
 				break;
 			}
 
  	 		paintX = 0;
 
-			for(int i = 0; i < row.length(); ++i){
+			// draw the row in runs of chars with the same style
+			int i = 0;
+			while(i < rowSize){
 			 	// check if formatting changes are needed
-			 	if (reachedNextSpan(currIndex, nextSpan)){
-		 			currSpan = nextSpan;
-		 			spanColor = _colorScheme.getTokenColor(currSpan.getSecond());
-		 			_brush.setColor(spanColor);
-
-		 			if(spanIndex < spans.size()){
-		 				nextSpan = spans.get(spanIndex++);
-		 			}
-		 			else{
-		 				nextSpan = null;
-		 			}
+			 	if (currIndex >= nextSpanStart){
+			 		spanIndex = spans.findSpan(currIndex);
+			 		nextSpanStart = spans.getNextStart(spanIndex);
+		 			_brush.setColor(getTokenColor(palette, spans.getType(spanIndex)));
 			 	}
 
-			 	char c = row.charAt(i);
+			 	char c = _rowChars[i];
+			 	boolean isSelected = (selStart <= currIndex && currIndex < selEnd);
 				if (currIndex == _caretPosition){
 					paintX += drawCaret(canvas, c, paintX, paintY);
+					++i;
+					++currIndex;
+					continue;
 				}
-				else if (_fieldController.inSelectionRange(currIndex)){
-					paintX += drawSelectedText(canvas, c, paintX, paintY);
+				else if (isSpecialGlyph(c)){
+					paintX += isSelected
+							? drawSelectedText(canvas, c, paintX, paintY)
+							: drawChar(canvas, c, paintX, paintY);
+					++i;
+					++currIndex;
+					continue;
 				}
-				else{
-					paintX += drawChar(canvas, c, paintX, paintY);
+
+				// the run ends before the next span, caret, selection
+				// boundary or char drawn differently
+				int runLimit = Math.min(rowSize, i + (nextSpanStart - currIndex));
+				if(_caretPosition > currIndex){
+					runLimit = Math.min(runLimit, i + _caretPosition - currIndex);
+				}
+				int selBoundary = isSelected ? selEnd : selStart;
+				if(selBoundary > currIndex){
+					runLimit = Math.min(runLimit, i + selBoundary - currIndex);
+				}
+				int runEnd = i + 1;
+				while(runEnd < runLimit && !isSpecialGlyph(_rowChars[runEnd])){
+					++runEnd;
 				}
 
-			 	++currIndex;
+				paintX += isSelected
+						? drawSelectedRun(canvas, i, runEnd, paintX, paintY)
+						: drawRun(canvas, i, runEnd, paintX, paintY);
+				currIndex += runEnd - i;
+				i = runEnd;
 			}
 
- 	 		paintY += rowHeight();
+ 	 		paintY += rowHeight;
 	 		if (paintX > _xExtent){
 	 			// record widest line seen so far
 	 			_xExtent = paintX;
@@ -487,6 +542,84 @@ implements Document.TextFieldMetrics{
 		doOptionHighlightRow(canvas);
 	}
 
+	private static int getTokenColor(int[] palette, int tokenType){
+		if(tokenType < 0 || tokenType >= palette.length){
+			return palette[Lexer.NORMAL];
+		}
+		return palette[tokenType];
+	}
+
+	/**
+	 * Returns true if c is not drawn with its own glyph, and so cannot be
+	 * drawn as part of a run
+	 */
+	private boolean isSpecialGlyph(char c){
+		switch(c){
+		case ' ':
+			return _showNonPrinting;
+		case Language.EOF: //fall-through
+		case Language.NEWLINE:
+		case Language.TAB:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Draws the chars of _rowChars in [start, end) in a single call, each at
+	 * the position given by its advance, so that runs line up with the caret
+	 * and the coordinates computed by getCharExtent()
+	 *
+	 * @return The total advance of the chars drawn
+	 */
+	private int drawRun(Canvas canvas, int start, int end, int paintX, int paintY){
+		int count = end - start;
+		if(2 * count > _runPositions.length){
+			_runPositions = new float[Math.max(2 * count, 2 * _runPositions.length)];
+		}
+
+		int x = paintX;
+		for(int i = 0; i < count; ++i){
+			_runPositions[2 * i] = x;
+			_runPositions[2 * i + 1] = paintY;
+			x += getAdvance(_rowChars[start + i]);
+		}
+		canvas.drawPosText(_rowChars, start, count, _runPositions, _brush);
+		return x - paintX;
+	}
+
+	private int drawSelectedRun(Canvas canvas, int start, int end,
+			int paintX, int paintY){
+		int oldColor = _brush.getColor();
+		int advance = 0;
+		for(int i = start; i < end; ++i){
+			advance += getAdvance(_rowChars[i]);
+		}
+
+		_brush.setColor(_colorScheme.getColor(Colorable.SELECTION_BACKGROUND));
+		drawTextBackground(canvas, paintX, paintY, advance);
+
+		_brush.setColor(_colorScheme.getColor(Colorable.SELECTION_FOREGROUND));
+		drawRun(canvas, start, end, paintX, paintY);
+
+		_brush.setColor(oldColor);
+		return advance;
+	}
+
+	/**
+	 * Copies up to count chars starting from charOffset into _rowChars,
+	 * growing _rowChars if it is too small
+	 *
+	 * @return The number of chars copied
+	 */
+	private int loadRowChars(int charOffset, int count){
+		if(count > _rowChars.length){
+			_rowChars = new char[Math.max(count, 2 * _rowChars.length)];
+		}
+		return _hDoc.getChars(charOffset, charOffset + count, _rowChars, 0);
+	}
+
 	/**
 	 * Underline the caret row if the option for highlighting it is set
 	 */
@@ -535,8 +668,8 @@ implements Document.TextFieldMetrics{
 			break;
 
 		default:
-	 		char[] ca = {c};
-		 	canvas.drawText(ca, 0, 1, paintX, paintY, _brush);
+	 		_singleChar[0] = c;
+		 	canvas.drawText(_singleChar, 0, 1, paintX, paintY, _brush);
 		 	break;
 		}
 
@@ -546,7 +679,7 @@ implements Document.TextFieldMetrics{
 	// paintY is the baseline for text, NOT the top extent
 	private void drawTextBackground(Canvas canvas, int paintX, int paintY,
 			int advance){
-		Paint.FontMetricsInt metrics = _brush.getFontMetricsInt();
+		Paint.FontMetricsInt metrics = getFontMetrics();
  		canvas.drawRect(paintX,
  				paintY + metrics.ascent,
  				paintX + advance,
@@ -589,7 +722,7 @@ implements Document.TextFieldMetrics{
 	  	if (_caretPosition == _selectionEdge ||
 	  			_caretPosition == _selectionAnchor){
 	  		// draw half caret
-	  		Paint.FontMetricsInt metrics = _brush.getFontMetricsInt();
+	  		Paint.FontMetricsInt metrics = getFontMetrics();
 	 		canvas.drawRect(paintX,
 	 				paintY + (metrics.ascent * SEL_CARET_HEIGHT_SCALE),
 	 				paintX + advance,
@@ -625,6 +758,13 @@ implements Document.TextFieldMetrics{
 	 */
 	@Override
 	public int getAdvance(char c){
+		return _advanceCache.getAdvance(c);
+	}
+
+	/**
+	 * Measures the advance of c with the current paint, bypassing the cache
+	 */
+	private int measureAdvance(char c){
 		int advance;
 
 		switch (c){
@@ -639,8 +779,8 @@ implements Document.TextFieldMetrics{
  			advance = getTabAdvance();
  			break;
  		default:
- 			char[] ca = {c};
- 			advance = (int) _brush.measureText(ca, 0, 1);
+ 			_singleChar[0] = c;
+ 			advance = (int) _brush.measureText(_singleChar, 0, 1);
  			break;
 		}
 
@@ -677,6 +817,41 @@ implements Document.TextFieldMetrics{
 		}
 	}
 
+	/**
+	 * The metrics of the text field when it is created, measured with a copy
+	 * of the paint so that another thread can use them while the text field
+	 * draws
+	 */
+	private class FrozenMetrics implements Document.TextFieldMetrics{
+		private final Paint _paint = new Paint(_brush);
+		private final char[] _char = new char[1];
+		private final int _rowWidth = getRowWidth();
+		private final int _spaceAdvance = getSpaceAdvance();
+		private final int _eolAdvance = getEOLAdvance();
+		private final int _tabAdvance = getTabAdvance();
+
+		@Override
+		public int getAdvance(char c){
+			switch (c){
+			case ' ':
+				return _spaceAdvance;
+			case Language.NEWLINE: // fall-through
+			case Language.EOF:
+				return _eolAdvance;
+			case Language.TAB:
+				return _tabAdvance;
+			default:
+				_char[0] = c;
+				return (int) _paint.measureText(_char, 0, 1);
+			}
+		}
+
+		@Override
+		public int getRowWidth(){
+			return _rowWidth;
+		}
+	}
+
 	/**
 	 * Invalidate rows from startRow (inclusive) to endRow (exclusive)
 	 */
@@ -688,7 +863,7 @@ implements Document.TextFieldMetrics{
 		//TODO The ascent of (startRow+1) may jut inside startRow, so part of
 		// that rows have to be invalidated as well.
 		// This is a problem for Thai, Vietnamese and Indic scripts
-	  	Paint.FontMetricsInt metrics = _brush.getFontMetricsInt();
+	  	Paint.FontMetricsInt metrics = getFontMetrics();
 		int top = startRow * rowHeight() + getPaddingTop();
 		top -=  Math.max(caretSpill.top, metrics.descent);
 		top = Math.max(0, top);
@@ -710,7 +885,7 @@ implements Document.TextFieldMetrics{
 		//TODO The ascent of (startRow+1) may jut inside startRow, so part of
 		// that rows have to be invalidated as well.
 		// This is a problem for Thai, Vietnamese and Indic scripts
-	  	Paint.FontMetricsInt metrics = _brush.getFontMetricsInt();
+	  	Paint.FontMetricsInt metrics = getFontMetrics();
 		int top = startRow * rowHeight() + getPaddingTop();
 		top -=  Math.max(caretSpill.top, metrics.descent);
 		top = Math.max(0, top);
@@ -812,30 +987,14 @@ implements Document.TextFieldMetrics{
 	 */
 	protected Pair getCharExtent(int charOffset){
 		int row = _hDoc.findRowNumber(charOffset);
-		int currOffset = _hDoc.seekChar(_hDoc.getRowOffset(row));
+		int rowOffset = _hDoc.getRowOffset(row);
+		int count = loadRowChars(rowOffset, charOffset - rowOffset + 1);
 		int left = 0;
 		int right = 0;
 
-		while(currOffset <= charOffset && _hDoc.hasNext()){
+		for(int i = 0; i < count; ++i){
 			left = right;
-			char c = _hDoc.next();
-			switch (c){
-			case ' ':
-				right += getSpaceAdvance();
-				break;
-			case Language.NEWLINE:
-			case Language.EOF:
-				right += getEOLAdvance();
-				break;
-			case Language.TAB:
-				right += getTabAdvance();
-				break;
-			default:
-				char[] ca = {c};
-				right += (int) _brush.measureText(ca, 0, 1);
-				break;
-			}
-			++currOffset;
+			right += getAdvance(_rowChars[i]);
 		}
 
 		return new Pair(left, right);
@@ -900,25 +1059,12 @@ implements Document.TextFieldMetrics{
 			return charIndex; // coordinate is outside, to the left of view
 		}
 
-		String rowText = _hDoc.getRow(row);
+		int rowSize = loadRowChars(charIndex, _hDoc.getRowSize(row));
 
 		int extent = 0;
 		int i = 0;
-		while(i < rowText.length()){
-			char c = rowText.charAt(i);
-			if (c == Language.NEWLINE || c == Language.EOF){
-				extent += getEOLAdvance();
-			}
-			else if (c == ' '){
-				extent += getSpaceAdvance();
-			}
-			else if (c == Language.TAB){
-				extent += getTabAdvance();
-			}
-			else{
-				char[] ca = {c};
-				extent += (int) _brush.measureText(ca, 0, 1);
-			}
+		while(i < rowSize){
+			extent += getAdvance(_rowChars[i]);
 
 			if(extent >= x){
 				break;
@@ -927,7 +1073,7 @@ implements Document.TextFieldMetrics{
 			++i;
 		}
 
-		if(i < rowText.length()){
+		if(i < rowSize){
 			return charIndex + i;
 		}
 
@@ -956,25 +1102,12 @@ implements Document.TextFieldMetrics{
 			return -1;
 		}
 
-		String rowText = _hDoc.getRow(row);
+		int rowSize = loadRowChars(charIndex, _hDoc.getRowSize(row));
 
 		int extent = 0;
 		int i = 0;
-		while(i < rowText.length()){
-			char c = rowText.charAt(i);
-			if (c == Language.NEWLINE || c == Language.EOF){
-				extent += getEOLAdvance();
-			}
-			else if (c == ' '){
-				extent += getSpaceAdvance();
-			}
-			else if (c == Language.TAB){
-				extent += getTabAdvance();
-			}
-			else{
-				char[] ca = {c};
-				extent += (int) _brush.measureText(ca, 0, 1);
-			}
+		while(i < rowSize){
+			extent += getAdvance(_rowChars[i]);
 
 			if(extent >= x){
 				break;
@@ -983,7 +1116,7 @@ implements Document.TextFieldMetrics{
 			++i;
 		}
 
-		if(i < rowText.length()){
+		if(i < rowSize){
 			return charIndex + i;
 		}
 
@@ -1029,6 +1162,14 @@ implements Document.TextFieldMetrics{
 		}
 	}
 
+	@Override
+	protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+		super.onScrollChanged(l, t, oldl, oldt);
+		if(t != oldt){
+			_fieldController.updateLexViewport();
+		}
+	}
+
 	/**
 	 * Start fling scrolling
 	 */
@@ -1339,10 +1480,6 @@ implements Document.TextFieldMetrics{
 	//---------------------------------------------------------------------
 	//------------------------- Formatting methods ------------------------
 
-	private boolean reachedNextSpan(int charIndex, Pair span){
-		return (span == null) ? false : (charIndex == span.getFirst());
-	}
-
 	public void respan() {
 		_fieldController.determineSpans();
 	}
@@ -1351,13 +1488,75 @@ implements Document.TextFieldMetrics{
 		_fieldController.cancelSpanning();
 	}
 
+	/**
+	 * Wraps the rows around the caret. The rows of the rest of a large
+	 * document are estimated, and replaced by exact rows in the background,
+	 * using all cores.
+	 */
+	private void analyzeWordWrap(){
+		cancelWordWrap();
+		// wrap at least a screenful of the narrowest chars around the caret
+		int charsPerRow = getContentWidth() / Math.max(getAdvance('i'), 1);
+		int charCount = Math.max(getNumVisibleRows() * charsPerRow, 1);
+		if(_hDoc.analyzeWordWrap(_caretPosition, charCount)){
+			int threadCount = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+			Document.TextFieldMetrics[] metrics = new Document.TextFieldMetrics[threadCount];
+			for(int i = 0; i < threadCount; ++i){
+				metrics[i] = new AdvanceCache(new FrozenMetrics());
+			}
+			_wrapThread = new WordWrapThread(_hDoc, metrics,
+					new WordWrapThread.WrapCallback(){
+				@Override
+				//This is called from a non-UI thread
+				public void wrapChunksDone(final Document.WrapChunk[] chunks){
+					post(new Runnable(){
+						@Override
+						public void run(){
+							applyWrapChunks(chunks);
+						}
+					});
+				}
+			});
+			_wrapThread.start();
+		}
+	}
+
+	private void cancelWordWrap(){
+		if(_wrapThread != null){
+			_wrapThread.abort();
+			_wrapThread = null;
+		}
+	}
+
+	private void applyWrapChunks(Document.WrapChunk[] chunks){
+		int originalRow = _caretRow;
+		boolean isChanged = false;
+		for(Document.WrapChunk chunk : chunks){
+			isChanged |= _hDoc.applyWrapChunk(chunk);
+		}
+		if(!isChanged){
+			return;
+		}
+
+		// the estimated rows before the caret may have been corrected, so
+		// scroll by the same amount to keep the caret still on screen
+		_fieldController.updateCaretRow();
+		int shift = (_caretRow - originalRow) * rowHeight();
+		if(shift != 0){
+			scrollTo(getScrollX(),
+					Math.max(0, Math.min(getScrollY() + shift, getMaxScrollY())));
+		}
+		invalidate();
+	}
+
 	/**
 	 * Sets the text to use the new typeface, scrolls the view to display the
 	 * caret if needed, and invalidates the entire view
 	 */
 	public void setTypeface(Typeface typeface) {
 		_brush.setTypeface(typeface);
-		_hDoc.analyzeWordWrap();
+		_advanceCache.clear();
+		analyzeWordWrap();
 		_fieldController.updateCaretRow();
 		if(!makeCharVisible(_caretPosition)){
 			invalidate();
@@ -1390,7 +1589,8 @@ implements Document.TextFieldMetrics{
 
 		int newSize = (int) (factor * BASE_TEXT_SIZE_PIXELS);
 		_brush.setTextSize(newSize);
-		_hDoc.analyzeWordWrap();
+		_advanceCache.clear();
+		analyzeWordWrap();
 		_fieldController.updateCaretRow();
 		if(!makeCharVisible(_caretPosition)){
 			invalidate();
@@ -1409,7 +1609,8 @@ implements Document.TextFieldMetrics{
 		}
 
 		_tabLength = spaceCount;
-		_hDoc.analyzeWordWrap();
+		_advanceCache.clear();
+		analyzeWordWrap();
 		_fieldController.updateCaretRow();
 		if(!makeCharVisible(_caretPosition)){
 			invalidate();
@@ -1456,7 +1657,8 @@ implements Document.TextFieldMetrics{
 	public void setNonPrintingCharVisibility(boolean enable) {
 		if(enable ^ _showNonPrinting){
 			_showNonPrinting = enable;
-			_hDoc.analyzeWordWrap();
+			_advanceCache.clear();
+			analyzeWordWrap();
 			_fieldController.updateCaretRow();
 			if (!makeCharVisible(_caretPosition)){
 				invalidate();
@@ -1679,6 +1881,12 @@ implements Document.TextFieldMetrics{
 		invalidateCaretRow();
 	}
 
+	@Override
+	protected void onDetachedFromWindow() {
+		_fieldController.stopSpanning();
+		super.onDetachedFromWindow();
+	}
+
 	/**
 	 * Not public to allow access by {@link TouchNavigationMethod}
 	 */
@@ -1711,6 +1919,7 @@ implements Document.TextFieldMetrics{
 
 	void onDestroy() {
 		_fieldController.cancelSpanning();
+		cancelWordWrap();
 	}
 
 	public Parcelable getUiState() {
@@ -1755,29 +1964,81 @@ implements Document.TextFieldMetrics{
 	implements Lexer.LexCallback{
 		private boolean _isInSelectionMode = false;
 		private final Lexer _lexer = new Lexer(this);
+		/** Set if spans were requested during a batch edit */
+		private boolean _isSpanningDeferred = false;
 
 		/**
 		 * Analyze the text for programming language keywords and redraws the
 		 * text view when done. The global programming language used is set with
 		 * the static method Lexer.setLanguage(Language)
 		 *
+		 * In batch edit mode, the analysis is deferred to endBatchEdit().
+		 *
 		 * Does nothing if the Lexer language is not a programming language
 		 */
 		public void determineSpans() {
+			if(_hDoc.isBatchEdit()){
+				_isSpanningDeferred = true;
+				return;
+			}
+			updateLexViewport();
 			_lexer.tokenize(_hDoc);
 		}
 
+		/**
+		 * Tells the lexer which chars are on screen, along with a screenful
+		 * of rows above and below them, so that they are tokenized before
+		 * the rest of a long text
+		 */
+		public void updateLexViewport() {
+			int visibleRows = getNumVisibleRows();
+			int firstRow = Math.max(getScrollY() / rowHeight() - visibleRows, 0);
+			int start = _hDoc.getRowOffset(firstRow);
+			if(start < 0){
+				return;
+			}
+			int end = _hDoc.getRowOffset(firstRow + 3 * visibleRows);
+			if(end < 0){
+				end = _hDoc.docLength();
+			}
+			_lexer.setViewport(start, end);
+		}
+
+		/**
+		 * Ends a batch edit of the document, and analyzes the text once for
+		 * all the edits in the batch
+		 */
+		public void endBatchEdit() {
+			_hDoc.endBatchEdit();
+			if(_isSpanningDeferred){
+				_isSpanningDeferred = false;
+				determineSpans();
+			}
+		}
+
 		public void cancelSpanning() {
 			_lexer.cancelTokenize();
 		}
 
+		/**
+		 * Ends the lexer worker thread. Spanning starts it again.
+		 */
+		public void stopSpanning() {
+			_lexer.stop();
+		}
+
 		@Override
 		//This is usually called from a non-UI thread
-		public void lexDone(final List<Pair> results) {
+		public void lexDone(final Lexer.LexResult result) {
 			post(new Runnable(){
 				@Override
 				public void run(){
-					_hDoc.setSpans(results);
+					// results of long lexes arrive in parts, and the spans
+					// on screen are drawn as soon as each part is applied
+					if(!_hDoc.applyLexResult(result)){
+						// the text was edited while it was being tokenized
+						determineSpans();
+					}
 					invalidate();
 				}
 			});
@@ -2194,9 +2455,8 @@ implements Document.TextFieldMetrics{
 			//TODO catch OutOfMemoryError
 			if(_isInSelectionMode &&
 					_selectionAnchor < _selectionEdge){
-				char[] contents = _hDoc.subSequence(_selectionAnchor,
-					_selectionEdge - _selectionAnchor);
-				cb.setText(new String(contents));
+				cb.setText(_hDoc.getCharSequence().subSequence(
+					_selectionAnchor, _selectionEdge).toString());
 			}
 		}
 
@@ -2218,7 +2478,7 @@ implements Document.TextFieldMetrics{
 			int originalRow = _caretRow;
 			int originalOffset = _hDoc.getRowOffset(originalRow);
 			_hDoc.insertBefore(text.toCharArray(), _caretPosition, System.nanoTime());
-			_hDoc.endBatchEdit();
+			endBatchEdit();
 
 			_caretPosition += text.length();
 			updateCaretRow();
@@ -2516,7 +2776,7 @@ implements Document.TextFieldMetrics{
 		public void resetComposingState(){
 			_composingCharCount = 0;
 			_isComposing = false;
-			_hDoc.endBatchEdit();
+			_fieldController.endBatchEdit();
 		}
 
 		/**
@@ -2558,7 +2818,7 @@ implements Document.TextFieldMetrics{
 					_composingCharCount,
 					text.toString());
 			_composingCharCount = 0;
-			_hDoc.endBatchEdit();
+			_fieldController.endBatchEdit();
 
 			//TODO reduce invalidate calls
 			if(newCursorPosition > 1){
@@ -62,6 +62,7 @@ import com.myopicmobile.textwarrior.common.ColorSchemeLight;
 import com.myopicmobile.textwarrior.common.ColorSchemeObsidian;
 import com.myopicmobile.textwarrior.common.ColorSchemeSolarizedDark;
 import com.myopicmobile.textwarrior.common.ColorSchemeSolarizedLight;
+import com.myopicmobile.textwarrior.common.CompactStorage;
 import com.myopicmobile.textwarrior.common.Document;
 import com.myopicmobile.textwarrior.common.DocumentProvider;
 import com.myopicmobile.textwarrior.common.FindThread;
@@ -79,9 +80,11 @@ import com.myopicmobile.textwarrior.common.LanguageRuby;
 import com.myopicmobile.textwarrior.common.Lexer;
 import com.myopicmobile.textwarrior.common.ProgressObserver;
 import com.myopicmobile.textwarrior.common.ProgressSource;
+import com.myopicmobile.textwarrior.common.MapThread;
 import com.myopicmobile.textwarrior.common.ReadThread;
 import com.myopicmobile.textwarrior.common.RowListener;
 import com.myopicmobile.textwarrior.common.TextWarriorException;
+import com.myopicmobile.textwarrior.common.UndoStack;
 import com.myopicmobile.textwarrior.common.WriteThread;
 
 public class TextWarriorApplication extends Activity
@@ -113,6 +116,7 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		_initBundle = savedInstanceState;
+		UndoStack.setSpillDirectory(getCacheDir());
 		setContentView(R.layout.main);
 
 		createTextField();
@@ -458,6 +462,7 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 	//------------------------- Menu item callbacks -------------------------
 
 	private void onNew() {
+		stopIndexing();
 		Document doc = new Document(_editField);
 		doc.setWordWrap(isWordWrap());
 		changeModel(doc);
@@ -564,16 +569,14 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 
 	private void analyzeTextProperties() {
 		DocumentProvider doc = _editField.createDocumentProvider();
-		int start, end;
 		if(_editField.isSelectText()){
-			start = _editField.getSelectionStart();
-			end = _editField.getSelectionEnd();
+			_taskAnalyze = new AnalyzeStatisticsThread(doc,
+					_editField.getSelectionStart(),
+					_editField.getSelectionEnd());
 		}
 		else{
-			start = 0;
-			end = doc.docLength();
+			_taskAnalyze = new AnalyzeStatisticsThread(doc);
 		}
-		_taskAnalyze = new AnalyzeStatisticsThread(doc, start, end);
 		_taskAnalyze.registerObserver(this);
 
 		PollingProgressDialog dialog =
@@ -945,6 +948,10 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 
 		t = (TextView) _statisticsLayout.findViewById(R.id.statistics_line_terminator_style);
 		t.setText(doc.getEOLType());
+
+		t = (TextView) _statisticsLayout.findViewById(R.id.statistics_memory_saved);
+		t.setText(getString(R.string.dialog_statistics_kilobytes,
+				doc.getStorageSavings() / 1024));
 	}
 
 	private Dialog createRecoveryFailedDialog(AlertDialog.Builder builder) {
@@ -1175,9 +1182,22 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 				getString(R.string.settings_line_terminator_style_default));
 
 		File inputFile = new File(filename);
+		stopIndexing();
+		// ReadThread and MapThread pick the storage engine by file size
 		_inputingDoc = new Document(_editField);
 		_inputingDoc.setWordWrap(isWordWrap());
-		_taskRead = new ReadThread(inputFile, _inputingDoc, encoding, eolChar);
+		if(inputFile.length() >= MAPPED_OPEN_THRESHOLD){
+			// show the first screen without reading in the whole file.
+			// The file is kept in a MappedFileStorage, which is a PieceTable,
+			// so edits never copy the mapped text.
+			_taskIndex = new MapThread(inputFile, _inputingDoc, encoding, eolChar);
+			_taskRead = _taskIndex;
+		}
+		else{
+			// larger files are loaded into a CompactStorage or a Rope;
+			// see ReadThread.COMPACT_THRESHOLD and ROPE_THRESHOLD
+			_taskRead = new ReadThread(inputFile, _inputingDoc, encoding, eolChar);
+		}
 		_taskRead.registerObserver(this); // so that readTask can notify TextWarriorApplication when done
 
 		PollingProgressDialog dialog = new PollingProgressDialog(this, _taskRead,
@@ -1186,6 +1206,16 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 		_taskRead.start();
 	}
 
+	/**
+	 * Stops loading the rest of a file that was opened by mapping
+	 */
+	private void stopIndexing(){
+		if(_taskIndex != null){
+			_taskIndex.forceStop();
+			_taskIndex = null;
+		}
+	}
+
 
 	/**
 	 * Preconditions:
@@ -1298,7 +1328,11 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 				_filename = _lastSelectedFile;
 				updateTitle();
 				_recentFiles.addRecentFile(_filename);
-				_editField.setEdited(false);
+				if(_taskWrite == null || _taskWrite.getSavedVersion()
+						== _editField.createDocumentProvider().getVersion()){
+					// not edited while it was being saved
+					_editField.setEdited(false);
+				}
 				Toast.makeText(TextWarriorApplication.this,
 						R.string.dialog_file_save_success,
 						Toast.LENGTH_SHORT).show();
@@ -1310,8 +1344,12 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 					|| requestCode == ProgressSource.FIND_BACKWARDS){
 				final int foundIndex = ((FindResults) result).foundOffset;
 				final int length = ((FindResults) result).searchTextLength;
+				final int version = ((FindResults) result).version;
 
-				if (foundIndex != -1){
+				if(version != _editField.createDocumentProvider().getVersion()){
+					// the text was edited during the search; the result is stale
+				}
+				else if (foundIndex != -1){
 					_editField.setSelectionRange(foundIndex, length);
 				}
 				else{
@@ -1342,6 +1380,12 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 				_taskAnalyze = null;
 				showDialog(DIALOG_STATISTICS);
 			}
+			else if(requestCode == ProgressSource.INDEX){
+				// the whole file is now available
+				_taskIndex = null;
+				_editField.respan();
+				_editField.invalidate();
+			}
 		}
 		});
 	}
@@ -1827,6 +1871,7 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 		DocumentProvider mDocProvider;
 		Document mTempDoc;
 		ReadThread mReadTask;
+		MapThread mIndexTask;
 		WriteThread mWriteTask;
 		FindThread mFindTask;
 		AnalyzeStatisticsThread mAnalyzeTask;
@@ -1852,6 +1897,7 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 		}
 
 		s.mReadTask = _taskRead;
+		s.mIndexTask = _taskIndex;
 		s.mWriteTask = _taskWrite;
 		s.mFindTask = _taskFind;
 		s.mAnalyzeTask = _taskAnalyze;
@@ -1933,6 +1979,7 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 
 	private void restoreDisplayedDialogs(NonConfigurationState ss) {
 		_taskRead = ss.mReadTask;
+		_taskIndex = ss.mIndexTask;
 		_taskWrite = ss.mWriteTask;
 		_taskFind = ss.mFindTask;
 		_taskAnalyze = ss.mAnalyzeTask;
@@ -1946,6 +1993,11 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 		// onRestoreInstanceState()/onCreate(). Hence, the error/cancel message
 		// is lost. To solve this, worker tasks have to implement additional
 		// error/cancel states that can be queried here.
+		if(_taskIndex != null && _taskIndex.isDone()){
+			// the document is shown while the rest of the file is indexed
+			_taskIndex.removeObservers();
+			_taskIndex.registerObserver(this);
+		}
 		if(_taskRead != null){
 			if(_taskRead.isDone()){
 				onComplete(ProgressSource.READ, null);
@@ -2043,12 +2095,17 @@ SharedPreferences.OnSharedPreferenceChangeListener{
 	}
 
 	private ReadThread _taskRead = null;
+	/** Loads the rest of a file opened by mapping, after it is shown */
+	private MapThread _taskIndex = null;
 	private WriteThread _taskWrite = null;
 	private FindThread _taskFind = null;
 	private AnalyzeStatisticsThread _taskAnalyze = null;
 
 	static final String LOG_TAG = "TextWarrior";
 
+	/** Files at least this large, in bytes, are mapped instead of read in */
+	private static final long MAPPED_OPEN_THRESHOLD = 4 * 1024 * 1024;
+
 	private static final int DIALOG_OPEN_AGAIN = 0;
 	private static final int DIALOG_SAVE_AGAIN = 1;
 	private static final int DIALOG_CONFIRM_OVERWRITE = 2;
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.Arrays;
+
+/**
+ * A decorator of TextFieldMetrics that remembers the advance of every char
+ * measured, so that each char is measured only once.
+ *
+ * Advances are kept in a table indexed by char, split into pages of 256
+ * chars that are allocated the first time a char in them is measured. Text
+ * in a few scripts only uses a few pages.
+ *
+ * If the printable ASCII chars all have the same advance, the font is taken
+ * to be monospace, and their advances are filled in without measuring them.
+ *
+ * The cached advances must be cleared with clear() whenever the metrics
+ * decorated measure chars differently, like after a change of typeface, text
+ * size, tab width or the glyphs of non-printing chars.
+ *
+ * Not thread-safe. Every thread measuring text should have its own cache.
+ */
+public class AdvanceCache implements Document.TextFieldMetrics{
+	private final static int PAGE_BITS = 8;
+	private final static int PAGE_SIZE = 1 << PAGE_BITS;
+	private final static int PAGE_MASK = PAGE_SIZE - 1;
+	private final static int UNMEASURED = -1;
+	/** Chars compared to decide if the font is monospace */
+	private final static String MONOSPACE_PROBE = "iMW.0m";
+
+	private final Document.TextFieldMetrics _metrics;
+	private final int[][] _pages = new int[(Character.MAX_VALUE + 1) >> PAGE_BITS][];
+	private boolean _isFontChecked = false;
+	private boolean _isMonospace = false;
+
+	public AdvanceCache(Document.TextFieldMetrics metrics){
+		_metrics = metrics;
+	}
+
+	@Override
+	public int getAdvance(char c){
+		if(!_isFontChecked){
+			checkMonospace();
+		}
+
+		int[] page = _pages[c >> PAGE_BITS];
+		if(page == null){
+			page = newPage();
+			_pages[c >> PAGE_BITS] = page;
+		}
+
+		int advance = page[c & PAGE_MASK];
+		if(advance == UNMEASURED){
+			advance = _metrics.getAdvance(c);
+			page[c & PAGE_MASK] = advance;
+		}
+		return advance;
+	}
+
+	@Override
+	public int getRowWidth(){
+		return _metrics.getRowWidth();
+	}
+
+	/**
+	 * Returns true if the font was found to be monospace
+	 */
+	public boolean isMonospace(){
+		if(!_isFontChecked){
+			checkMonospace();
+		}
+		return _isMonospace;
+	}
+
+	/**
+	 * Forgets all advances measured
+	 */
+	public void clear(){
+		for(int[] page : _pages){
+			if(page != null){
+				Arrays.fill(page, UNMEASURED);
+			}
+		}
+		_isFontChecked = false;
+		_isMonospace = false;
+	}
+
+	private void checkMonospace(){
+		_isFontChecked = true;
+
+		int advance = _metrics.getAdvance(MONOSPACE_PROBE.charAt(0));
+		for(int i = 1; i < MONOSPACE_PROBE.length(); ++i){
+			if(_metrics.getAdvance(MONOSPACE_PROBE.charAt(i)) != advance){
+				_isMonospace = false;
+				return;
+			}
+		}
+
+		// space, tab and line terminators are left to the metrics decorated,
+		// which may draw them differently
+		_isMonospace = true;
+		int[] page = _pages[0];
+		if(page == null){
+			page = newPage();
+			_pages[0] = page;
+		}
+		Arrays.fill(page, '!', '~' + 1, advance);
+	}
+
+	private static int[] newPage(){
+		int[] page = new int[PAGE_SIZE];
+		Arrays.fill(page, UNMEASURED);
+		return page;
+	}
+}
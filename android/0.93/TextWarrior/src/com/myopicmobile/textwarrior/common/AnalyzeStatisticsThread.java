@@ -16,26 +16,57 @@ public class AnalyzeStatisticsThread extends Thread implements ProgressSource{
 	protected Vector<ProgressObserver> _progressObservers;
 	private DocumentProvider _hDoc;
 	private int _start, _end;
+	// reported progress will be scaled from 0 to MAX_PROGRESS
+	private final static int MAX_PROGRESS = 100;
 	protected CharEncodingUtils.Statistics _results;
 	protected CharEncodingUtils _analyzer = new CharEncodingUtils();
 	
+	/**
+	 * Analyzes the text from start to end-1 of hDoc
+	 */
 	public AnalyzeStatisticsThread(DocumentProvider hDoc,
 			int start, int end){
-		_hDoc = hDoc;
+		// analyze a snapshot, so that the text can be edited meanwhile
+		_hDoc = hDoc.snapshot();
 		_start = start;
 		_end = end;
         _abortFlag = new Flag();
         _progressObservers = new Vector<ProgressObserver>();
 	}
+
+	/**
+	 * Analyzes the whole of hDoc. If a file is still being loaded into it,
+	 * the rest of the file is loaded first.
+	 */
+	public AnalyzeStatisticsThread(DocumentProvider hDoc){
+		// the snapshot is taken in run(), once the whole file is loaded
+		_hDoc = hDoc;
+		_start = 0;
+		_end = -1;
+        _abortFlag = new Flag();
+        _progressObservers = new Vector<ProgressObserver>();
+	}
 	
 	public void run(){
 		_isDone = false;
 		_abortFlag.clear();
 		_results = null;
+
+		if(_end < 0){
+			_hDoc.finishLoading(_abortFlag);
+			if(_abortFlag.isSet()){
+				broadcastCancel();
+				return;
+			}
+			_hDoc = _hDoc.snapshot();
+			_end = _hDoc.docLength();
+		}
 		
 		_results = _analyzer.analyze(_hDoc, _start, _end, _abortFlag);
+		_hDoc.release();
 
 		if(!_abortFlag.isSet()){
+			_results.version = _hDoc.getVersion();
 			_isDone = true;
 			broadcastComplete(_results);
 		}
@@ -81,12 +112,16 @@ public class AnalyzeStatisticsThread extends Thread implements ProgressSource{
 
 	@Override
 	public int getMax(){
-		return Math.max(1, _end - _start);
+		return MAX_PROGRESS;
 	}
 
 	@Override
 	public int getCurrent(){
-		return _analyzer.getProgress();
+		// the end is not known until the whole file is loaded
+		int end = _end;
+		double progressProportion = (end <= _start) ? 0 :
+			(double) _analyzer.getProgress() / (double) (end - _start);
+		return (int) (progressProportion * MAX_PROGRESS);
 	}
 
 	@Override
@@ -8,6 +8,7 @@
  */
 package com.myopicmobile.textwarrior.common;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -202,33 +203,57 @@ public class CharEncodingUtils {
 	 */
 	public Pair readAndConvert(InputStream byteStream,
 	char[] buffer, String encoding, String EOLchar, Flag abort)
+	throws IOException{
+		return decode(byteStream, new DecodeBuffer(buffer, null),
+				encoding, EOLchar, abort);
+	}
+
+	/**
+	 * Like readAndConvert(InputStream, char[], String, String, Flag), but
+	 * passes the converted text to sink a chunk of SINK_CHUNK_SIZE chars at
+	 * a time instead of filling a buffer large enough for all of it
+	 *
+	 * @return Pair(size of converted text, number of lines)
+	 */
+	public Pair readAndConvert(InputStream byteStream,
+	TextSink sink, String encoding, String EOLchar, Flag abort)
+	throws IOException{
+		return decode(byteStream,
+				new DecodeBuffer(new char[SINK_CHUNK_SIZE], sink),
+				encoding, EOLchar, abort);
+	}
+
+	private Pair decode(InputStream byteStream,
+	DecodeBuffer out, String encoding, String EOLchar, Flag abort)
 	throws IOException{
 		_unitsDone = 0;
+		int lineCount;
 
 		if(encoding.equals(EncodingScheme.TEXT_ENCODING_LATIN1)){
-			return Latin1toUTF16BE(byteStream, buffer, EOLchar, abort);
+			lineCount = Latin1toUTF16BE(byteStream, out, EOLchar, abort);
 		}
 		else if(encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16BE)){
-			return UTF16toUTF16BE(byteStream, buffer, true, EOLchar, abort);
+			lineCount = UTF16toUTF16BE(byteStream, out, true, EOLchar, abort);
 		}
 		else if(encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16LE)){
-			return UTF16toUTF16BE(byteStream, buffer, false, EOLchar, abort);
+			lineCount = UTF16toUTF16BE(byteStream, out, false, EOLchar, abort);
 		}
 		else if(encoding.equals(EncodingScheme.TEXT_ENCODING_UTF8)){
-			return UTF8toUTF16BE(byteStream, buffer, EOLchar, abort);
+			lineCount = UTF8toUTF16BE(byteStream, out, EOLchar, abort);
 		}
 		else{
 			TextWarriorException.fail("Unsupported encoding option" + encoding);
 			return new Pair(0, 0);
 		}
+		out.flush();
+		return new Pair(out.length(), lineCount);
 	}
 
-	private Pair Latin1toUTF16BE(InputStream byteStream,
-	char[] buffer, String EOLchar, Flag abort)
+	private int Latin1toUTF16BE(InputStream byteStream,
+	DecodeBuffer out, String EOLchar, Flag abort)
 	throws IOException{
 		int currCharRead;
 		int lineCount = 1;
-		int totalChar = 0;
 
 		while((currCharRead = byteStream.read()) != -1 && !abort.isSet()){
 			++_unitsDone;
@@ -245,18 +270,17 @@ public class CharEncodingUtils {
 			if (currCharRead == '\n'){
 				++lineCount;
 			}
-			buffer[totalChar++] = (char) currCharRead;
+			out.put((char) currCharRead);
 		}
 
-		return new Pair(totalChar, lineCount);
+		return lineCount;
 	}
 
-	private Pair UTF16toUTF16BE(InputStream byteStream,
-	char[] buffer, boolean isBigEndian, String EOLchar, Flag abort)
+	private int UTF16toUTF16BE(InputStream byteStream,
+	DecodeBuffer out, boolean isBigEndian, String EOLchar, Flag abort)
 	throws IOException{
 		int byte0, byte1;
 		int lineCount = 1;
-		int totalChar = 0;
 		char currCharRead;
 
 		byte0 = stripByteOrderMark(byteStream);
@@ -286,98 +310,105 @@ public class CharEncodingUtils {
 				++lineCount;
 			}
 
-			buffer[totalChar++] = currCharRead;
+			out.put(currCharRead);
 			byte0 = byteStream.read();
 		}
 
-		return new Pair(totalChar, lineCount);
+		return lineCount;
 	}
 
 	public void writeAndConvert(OutputStream byteStream,
 	DocumentProvider hDoc, String encoding, String EOLchar, Flag abort)
 	throws IOException{
 		_unitsDone = 0;
-		hDoc.seekChar(0);
+		// exclude the terminal EOF
+		SegmentCursor segments = new SegmentCursor();
+		segments.seek(hDoc, 0, hDoc.docLength() - 1);
+		// the encoders write a byte at a time
+		OutputStream out = new BufferedOutputStream(byteStream);
 
 		if(encoding.equals(EncodingScheme.TEXT_ENCODING_LATIN1)){
-			UTF16BEtoLatin1(byteStream, hDoc, EOLchar, abort);
+			UTF16BEtoLatin1(out, segments, EOLchar, abort);
 		}
 		else if(encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16BE)){
-			UTF16BEtoUTF16(byteStream, hDoc, true, EOLchar, abort);
+			UTF16BEtoUTF16(out, segments, true, EOLchar, abort);
 		}
 		else if(encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16LE)){
-			UTF16BEtoUTF16(byteStream, hDoc, false, EOLchar, abort);
+			UTF16BEtoUTF16(out, segments, false, EOLchar, abort);
 		}
 		else if(encoding.equals(EncodingScheme.TEXT_ENCODING_UTF8)){
-			UTF16BEtoUTF8(byteStream, hDoc, EOLchar, abort);
+			UTF16BEtoUTF8(out, segments, EOLchar, abort);
 		}
 		else{
 			TextWarriorException.fail("Unsupported encoding option" + encoding);
 		}
+		out.flush();
 	}
 
 	private void UTF16BEtoLatin1(OutputStream byteStream,
-	DocumentProvider hDoc, String EOLchar, Flag abort)
+	SegmentCursor segments, String EOLchar, Flag abort)
 	throws IOException{
-		while(hDoc.hasNext() && !abort.isSet()){
-			char curr = hDoc.next();
-	    	++_unitsDone;
+		while(!abort.isSet() && segments.next()){
+			char[] chars = segments.array;
+			int end = segments.offset + segments.count;
 
-	    	if(curr == Language.EOF){
-	    		break;
-	    	}
+			for(int i = segments.offset; i < end; ++i){
+				char curr = chars[i];
 
-			// convert '\n' to desired line terminator symbol
-	    	if (curr == '\n' &&
-	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
-		    	byteStream.write('\r');
-	    	}
-	    	else if (curr == '\n' &&
-	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
-	    		curr = '\r';
-	    	}
-	    	byteStream.write(curr);
+				// convert '\n' to desired line terminator symbol
+		    	if (curr == '\n' &&
+		    	EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
+			    	byteStream.write('\r');
+		    	}
+		    	else if (curr == '\n' &&
+		    	EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
+		    		curr = '\r';
+		    	}
+		    	byteStream.write(curr);
+			}
+			_unitsDone += segments.count;
 		}
 	}
 
 	private void UTF16BEtoUTF16(OutputStream byteStream,
-	DocumentProvider hDoc, boolean isBigEndian, String EOLchar, Flag abort)
+	SegmentCursor segments, boolean isBigEndian, String EOLchar, Flag abort)
 	throws IOException{
 		String bom = isBigEndian ? EncodingScheme.TEXT_ENCODING_UTF16BE
 				: EncodingScheme.TEXT_ENCODING_UTF16LE;
 		writeByteOrderMark(byteStream, bom);
 
-		while(hDoc.hasNext() && !abort.isSet()){
-			char curr = hDoc.next();
-	    	++_unitsDone;
+		while(!abort.isSet() && segments.next()){
+			char[] chars = segments.array;
+			int end = segments.offset + segments.count;
 
-	    	if(curr == Language.EOF){
-	    		break;
-	    	}
+			for(int i = segments.offset; i < end; ++i){
+				char curr = chars[i];
 
-			// convert '\n' to desired line terminator symbol
-	    	if (curr == '\n' &&
-	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
-	    		if(isBigEndian){
-		    		byteStream.write(0); byteStream.write('\r');
+				// convert '\n' to desired line terminator symbol
+		    	if (curr == '\n' &&
+		    	EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
+		    		if(isBigEndian){
+			    		byteStream.write(0); byteStream.write('\r');
+			    	}
+		    		else{
+			    		byteStream.write('\r'); byteStream.write(0);
+		    		}
 		    	}
-	    		else{
-		    		byteStream.write('\r'); byteStream.write(0);
-	    		}
-	    	}
-	    	else if (curr == '\n' &&
-	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
-	    		curr = '\r';
-	    	}
-			//TODO place conditional outside loop
-	    	if(isBigEndian){
-	    		byteStream.write(curr >>> 8);
-	    		byteStream.write(curr & 0xFF);
-	    	}
-	    	else{
-	    		byteStream.write(curr & 0xFF);
-	    		byteStream.write(curr >>> 8);
-	    	}
+		    	else if (curr == '\n' &&
+		    	EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
+		    		curr = '\r';
+		    	}
+				//TODO place conditional outside loop
+		    	if(isBigEndian){
+		    		byteStream.write(curr >>> 8);
+		    		byteStream.write(curr & 0xFF);
+		    	}
+		    	else{
+		    		byteStream.write(curr & 0xFF);
+		    		byteStream.write(curr >>> 8);
+		    	}
+			}
+			_unitsDone += segments.count;
 		}
 	}
 
@@ -407,14 +438,54 @@ public class CharEncodingUtils {
 
 	private static final byte[] masks = { 0x7F, 0x1F, 0x0F, 0x07 };
 
+	/** Number of chars converted before they are passed to a TextSink */
+	private final static int SINK_CHUNK_SIZE = 8 * 1024;
+
+	/**
+	 * Where the XXtoUTF16BE methods put the converted chars. Either a buffer
+	 * for the whole text, or a small one that is emptied into a TextSink
+	 * whenever it is full.
+	 */
+	private static class DecodeBuffer{
+		private final char[] _chars;
+		/** null if _chars holds the whole text */
+		private final TextSink _sink;
+		private int _count = 0;
+		/** Number of chars already passed to _sink */
+		private int _flushed = 0;
+
+		DecodeBuffer(char[] chars, TextSink sink){
+			_chars = chars;
+			_sink = sink;
+		}
+
+		final void put(char c){
+			if(_count == _chars.length){
+				flush();
+			}
+			_chars[_count++] = c;
+		}
 
-	private Pair UTF8toUTF16BE(InputStream byteStream,
-	char[] buffer, String EOLchar, Flag abort)
+		void flush(){
+			if(_sink != null && _count > 0){
+				_sink.append(_chars, _count);
+				_flushed += _count;
+				_count = 0;
+			}
+		}
+
+		int length(){
+			return _flushed + _count;
+		}
+	}
+
+
+	private int UTF8toUTF16BE(InputStream byteStream,
+	DecodeBuffer out, String EOLchar, Flag abort)
 	throws IOException{
 		int currByte;
 		int utf32Char = 0;
 		int lineCount = 1;
-		int totalChar = 0;
 		int state = 0;
 		byte mask = 0;
 
@@ -440,12 +511,12 @@ public class CharEncodingUtils {
 					if (utf32Char == '\n'){
 						++lineCount;
 					}
-					buffer[totalChar++] = (char) utf32Char;
+					out.put((char) utf32Char);
 				}
 				else{
 					// not in the BMP; split into surrogate pair
-					buffer[totalChar++] = (char) ((utf32Char >> 10) + 0xD7C0);
-					buffer[totalChar++] = (char) ((utf32Char & 0x03FF) + 0xDC00);
+					out.put((char) ((utf32Char >> 10) + 0xD7C0));
+					out.put((char) ((utf32Char & 0x03FF) + 0xDC00));
 				}
 				utf32Char = 0;
 				mask = 0;
@@ -466,12 +537,12 @@ public class CharEncodingUtils {
 			case -1:
 				//TODO replace malformed sequence with the Unicode replacement char 0xFFFD
 				/*
-				buffer[totalChar++] = 0xDBBF;
-				buffer[totalChar++] = 0xDFFD;
+				out.put(0xDBBF);
+				out.put(0xDFFD);
 				*/
 				// Since FFFD in UTF-16 requires a surrogate pair, and
 				// TextWarrior cannot handle surrogate pairs yet, use '?' instead
-				buffer[totalChar++] = '?';
+				out.put('?');
 				state = 0;
 				utf32Char = 0;
 				mask = 0;
@@ -484,62 +555,100 @@ public class CharEncodingUtils {
 			currByte = byteStream.read();
 		}
 
-		return new Pair(totalChar, lineCount);
+		return lineCount;
 	}
 
 	private void UTF16BEtoUTF8(OutputStream byteStream,
-	DocumentProvider hDoc, String EOLchar, Flag abort)
+	SegmentCursor segments, String EOLchar, Flag abort)
 	throws IOException{
 		writeByteOrderMark(byteStream, EncodingScheme.TEXT_ENCODING_UTF8);
-		while(hDoc.hasNext() && !abort.isSet()){
-			int utf32Char = 0;
-			char curr = hDoc.next();
-	    	++_unitsDone;
 
-	    	if(curr == Language.EOF){
-	    		break;
-	    	}
+		// high surrogate waiting for the low surrogate that completes the pair,
+		// which may be in the next segment
+		char pendingSurrogate = 0;
+		while(!abort.isSet() && segments.next()){
+			char[] chars = segments.array;
+			int end = segments.offset + segments.count;
+
+			for(int i = segments.offset; i < end; ++i){
+				char curr = chars[i];
+
+				if(pendingSurrogate != 0 && isLowSurrogate(curr)){
+					// combine surrogate pair to UTF-32 value
+					int utf32Char = (pendingSurrogate-0xD7C0) << 10;
+					utf32Char += curr & 0x03FF;
+					pendingSurrogate = 0;
+					encodeUTF8(byteStream, utf32Char, EOLchar);
+					continue;
+				}
 
-			if(curr < 0xD800 || curr > 0xDFFF){
-				utf32Char = curr;
-			}
-			else{
-				// combine surrogate pair to UTF-32 value
-				utf32Char = (curr-0xD7C0) << 10;
-				utf32Char += hDoc.next() & 0x03FF;
+				if(pendingSurrogate != 0){
+					// unpaired high surrogate
+					encodeUTF8(byteStream, '?', EOLchar);
+					pendingSurrogate = 0;
+				}
+
+				if(isHighSurrogate(curr)){
+					pendingSurrogate = curr;
+				}
+				else if(isLowSurrogate(curr)){
+					// unpaired low surrogate
+					encodeUTF8(byteStream, '?', EOLchar);
+				}
+				else{
+					encodeUTF8(byteStream, curr, EOLchar);
+				}
 			}
+			_unitsDone += segments.count;
+		}
 
-			// Encode variable number of UTF-8 bytes depending on the UTF-32 value
-		    if (utf32Char < 0x80){
-		    	// convert '\n' to desired line terminator symbol
-		    	if (utf32Char == '\n' &&
-		    	EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
-					byteStream.write('\r');
-		    	}
-		    	else if (utf32Char == '\n' &&
-		    	EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
-		    		utf32Char = '\r';
-		    	}
-		    	byteStream.write(utf32Char);
-		    }
-		    else if (utf32Char < 0x800){
-		    	byteStream.write((utf32Char >> 6) + 0xC0);
-		    	byteStream.write((utf32Char & 0x3F) + 0x80);
-		    }
-		    else if (utf32Char < 0x10000){
-		    	byteStream.write((utf32Char >> 12) + 0xE0);
-		    	byteStream.write(((utf32Char >> 6) & 0x3F) + 0x80);
-		    	byteStream.write((utf32Char & 0x3F) + 0x80);
-		    }
-		    else{
-		    	byteStream.write((utf32Char >> 18) + 0xF0);
-		    	byteStream.write(((utf32Char >> 12) & 0x3F) + 0x80);
-		    	byteStream.write(((utf32Char >> 6) & 0x3F) + 0x80);
-		    	byteStream.write((utf32Char & 0x3F) + 0x80);
-		    }
+		if(pendingSurrogate != 0){
+			// unpaired high surrogate at the end of the text
+			encodeUTF8(byteStream, '?', EOLchar);
 		}
 	}
 
+	private static boolean isHighSurrogate(char c){
+		return c >= 0xD800 && c <= 0xDBFF;
+	}
+
+	private static boolean isLowSurrogate(char c){
+		return c >= 0xDC00 && c <= 0xDFFF;
+	}
+
+	private void encodeUTF8(OutputStream byteStream, int utf32Char,
+	String EOLchar)
+	throws IOException{
+		// Encode variable number of UTF-8 bytes depending on the UTF-32 value
+	    if (utf32Char < 0x80){
+	    	// convert '\n' to desired line terminator symbol
+	    	if (utf32Char == '\n' &&
+	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
+				byteStream.write('\r');
+	    	}
+	    	else if (utf32Char == '\n' &&
+	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
+	    		utf32Char = '\r';
+	    	}
+	    	byteStream.write(utf32Char);
+	    }
+	    else if (utf32Char < 0x800){
+	    	byteStream.write((utf32Char >> 6) + 0xC0);
+	    	byteStream.write((utf32Char & 0x3F) + 0x80);
+	    }
+	    else if (utf32Char < 0x10000){
+	    	byteStream.write((utf32Char >> 12) + 0xE0);
+	    	byteStream.write(((utf32Char >> 6) & 0x3F) + 0x80);
+	    	byteStream.write((utf32Char & 0x3F) + 0x80);
+	    }
+	    else{
+	    	byteStream.write((utf32Char >> 18) + 0xF0);
+	    	byteStream.write(((utf32Char >> 12) & 0x3F) + 0x80);
+	    	byteStream.write(((utf32Char >> 6) & 0x3F) + 0x80);
+	    	byteStream.write((utf32Char & 0x3F) + 0x80);
+	    }
+	}
+
 	/**
 	 * Analyze word and character count from start to end-1 position in src
 	 */
@@ -566,34 +675,39 @@ public class CharEncodingUtils {
 		//whether the current char and possibly the ones before are whitespace
 		boolean whiteSpaceRun = charSet.isWhitespace(firstChar);
 
-		src.seekChar(start);
-		while(src.hasNext() && _unitsDone < (end-start)
-				&& !abort.isSet()){
-			char c = src.next();
-			++_unitsDone;
+		SegmentCursor segments = new SegmentCursor();
+		segments.seek(src, start, end);
+		while(!abort.isSet() && segments.next()){
+			char[] chars = segments.array;
+			int segmentEnd = segments.offset + segments.count;
 
-			if(c == '\n'){
-				++lines;
-			}
+			for(int i = segments.offset; i < segmentEnd; ++i){
+				char c = chars[i];
+
+				if(c == '\n'){
+					++lines;
+				}
 
-			if(charSet.isWhitespace(c)){
-				++whiteSpaceCount;
+				if(charSet.isWhitespace(c)){
+					++whiteSpaceCount;
 
-				if(!whiteSpaceRun){
-					whiteSpaceRun = true;
-					++wordCount;
+					if(!whiteSpaceRun){
+						whiteSpaceRun = true;
+						++wordCount;
+					}
+				}
+				else{
+					whiteSpaceRun = false;
 				}
 			}
-			else{
-				whiteSpaceRun = false;
-			}
+			_unitsDone += segments.count;
 		}
 
 		if(!whiteSpaceRun){
 			// the final word didn't end with whitespace
 			++wordCount;
 		}
-		if(!src.hasNext() && _unitsDone > 0){
+		if((start + _unitsDone) == src.docLength() && _unitsDone > 0){
 			// exclude the terminal EOF character
 			--_unitsDone;
 			--whiteSpaceCount;
@@ -607,6 +721,8 @@ public class CharEncodingUtils {
 		public int charCount = 0;
 		public int whitespaceCount = 0;
 		public int lineCount = 0;
+		/** Version of the document that was analyzed. See DocumentProvider.getVersion() */
+		public int version = 0;
 
 		public Statistics(){
 		}
@@ -9,6 +9,7 @@
 
 package com.myopicmobile.textwarrior.common;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 public abstract class ColorScheme {
@@ -20,9 +21,21 @@ public abstract class ColorScheme {
 	}
 
 	protected HashMap<Colorable, Integer> _colors = generateDefaultColors();
+	/** Colors of token types, indexed by token type. Built on demand */
+	private int[] _tokenPalette = null;
+
+	/** Token types that have a color in getTokenColor() */
+	private static final int[] TOKEN_TYPES = {
+		Lexer.NORMAL, Lexer.KEYWORD,
+		Lexer.DOUBLE_SYMBOL_LINE, Lexer.DOUBLE_SYMBOL_DELIMITED_MULTILINE,
+		Lexer.SINGLE_SYMBOL_LINE_B, Lexer.SINGLE_SYMBOL_DELIMITED_A,
+		Lexer.SINGLE_SYMBOL_DELIMITED_B, Lexer.SINGLE_SYMBOL_LINE_A,
+		Lexer.SINGLE_SYMBOL_WORD
+	};
 
 	protected void setColor(Colorable colorable, int color) {
 		_colors.put(colorable, color);
+		_tokenPalette = null;
 	}
 
 	public int getColor(Colorable colorable) {
@@ -65,6 +78,30 @@ public abstract class ColorScheme {
 		return getColor(element);
 	}
 
+	/**
+	 * Returns the colors of all token types, indexed by token type, so that
+	 * they can be looked up while drawing without going through a HashMap.
+	 * Token types without a color of their own have the foreground color.
+	 *
+	 * The array returned is shared, and must not be modified.
+	 */
+	public int[] getTokenPalette(){
+		if(_tokenPalette == null){
+			int maxType = 0;
+			for(int type : TOKEN_TYPES){
+				maxType = Math.max(maxType, type);
+			}
+
+			int[] palette = new int[maxType + 1];
+			Arrays.fill(palette, getColor(Colorable.FOREGROUND));
+			for(int type : TOKEN_TYPES){
+				palette[type] = getTokenColor(type);
+			}
+			_tokenPalette = palette;
+		}
+		return _tokenPalette;
+	}
+
 	/**
 	 * Whether this color scheme uses a dark background, like black or dark grey.
 	 */
@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * A storage engine that keeps text in a byte array while every char in it
+ * fits in Latin-1, which halves the memory needed by ASCII and Latin-1
+ * documents.
+ *
+ * The bytes are kept in a gap buffer. The EOF char does not fit in a byte,
+ * so it is not stored but implied at the end of the text. Line lookups use
+ * a LineIndex.
+ *
+ * The first time a char outside Latin-1 is inserted, or if the contents
+ * given to setContents() are not all Latin-1, the text is inflated into a
+ * GapBuffer, to which all operations are delegated from then on.
+ *
+ * Like GapBuffer, snapshots share the byte array, which is copied before it
+ * is next written to outside the gap of the snapshots that are still live.
+ *
+ * setContents() needs the text as chars first. Builder fills the byte array
+ * straight from a file as it is converted instead.
+ */
+public class CompactStorage implements TextStorage {
+	private final static int MIN_GAP_SIZE = 50;
+	private final static int SEGMENT_BUFFER_SIZE = SegmentCursor.MAX_SEGMENT_SIZE;
+
+	/** null once inflated */
+	private byte[] _bytes;
+	private int _gapStartIndex;
+	/** One past end of gap */
+	private int _gapEndIndex;
+	private LineIndex _lineIndex;
+	/** non-null once inflated */
+	private GapBuffer _inflated = null;
+	/** Holds chars given out by getSegment(). Allocated on first use */
+	private char[] _segmentBuffer = null;
+	/** The live snapshots that share _bytes */
+	private final SnapshotSet _snapshots = new SnapshotSet();
+
+	public CompactStorage(){
+		_bytes = new byte[MIN_GAP_SIZE];
+		_gapStartIndex = 0;
+		_gapEndIndex = MIN_GAP_SIZE;
+		_lineIndex = new LineIndex();
+	}
+
+	/**
+	 * Whether the text is still stored one byte per char
+	 */
+	public boolean isCompact(){
+		return _inflated == null;
+	}
+
+	/**
+	 * Returns the number of bytes saved compared to storing the text
+	 * as chars, or 0 if the text has been inflated
+	 */
+	public int getBytesSaved(){
+		return isCompact() ? _bytes.length : 0;
+	}
+
+	@Override
+	public void setContents(char[] buffer, int textSize, int lineCount){
+		if(!isLatin1(buffer, 0, textSize)){
+			inflate(buffer, textSize, lineCount);
+			return;
+		}
+
+		_inflated = null;
+		_snapshots.clear();
+		_bytes = new byte[textSize + MIN_GAP_SIZE];
+		for(int i = 0; i < textSize; ++i){
+			_bytes[MIN_GAP_SIZE + i] = (byte) buffer[i];
+		}
+		_gapStartIndex = 0;
+		_gapEndIndex = MIN_GAP_SIZE;
+		_lineIndex = new LineIndex();
+		_lineIndex.setContents(buffer, textSize, lineCount);
+	}
+
+	@Override
+	public int length(){
+		if(!isCompact()){
+			return _inflated.length();
+		}
+		return textLength() + 1; // EOF
+	}
+
+	@Override
+	public int getLineCount(){
+		if(!isCompact()){
+			return _inflated.getLineCount();
+		}
+		return _lineIndex.getLineCount();
+	}
+
+	@Override
+	public char charAt(int charOffset){
+		if(!isCompact()){
+			return _inflated.charAt(charOffset);
+		}
+		if(charOffset == textLength()){
+			return Language.EOF;
+		}
+		return (char) (_bytes[logicalToRealIndex(charOffset)] & 0xFF);
+	}
+
+	@Override
+	public char[] subSequence(int charOffset, int totalChars){
+		char[] chars = new char[totalChars];
+		getChars(charOffset, charOffset + totalChars, chars, 0);
+		return chars;
+	}
+
+	@Override
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		if(!isCompact()){
+			_inflated.getChars(srcBegin, srcEnd, dst, dstBegin);
+			return;
+		}
+
+		int textLength = textLength();
+		int end = Math.min(srcEnd, textLength);
+		int i = dstBegin;
+		for(int offset = srcBegin; offset < end; ++offset){
+			dst[i++] = (char) (_bytes[logicalToRealIndex(offset)] & 0xFF);
+		}
+		if(srcEnd > textLength){
+			dst[i] = Language.EOF;
+		}
+	}
+
+	/**
+	 * The stored bytes cannot be handed out as chars, so up to
+	 * SEGMENT_BUFFER_SIZE of them are widened into a reused buffer
+	 */
+	@Override
+	public void getSegment(int charOffset, int maxChars, SegmentCursor seg){
+		if(!isCompact()){
+			_inflated.getSegment(charOffset, maxChars, seg);
+			return;
+		}
+
+		if(_segmentBuffer == null){
+			_segmentBuffer = new char[SEGMENT_BUFFER_SIZE];
+		}
+		int count = Math.min(maxChars, SEGMENT_BUFFER_SIZE);
+		getChars(charOffset, charOffset + count, _segmentBuffer, 0);
+		seg.set(_segmentBuffer, 0, count);
+	}
+
+	@Override
+	public TextSnapshot snapshot(){
+		if(!isCompact()){
+			return _inflated.snapshot();
+		}
+
+		TextSnapshot snapshot = new Latin1Snapshot(_bytes, _gapStartIndex, _gapEndIndex);
+		_snapshots.add(snapshot, _gapStartIndex, _gapEndIndex);
+		return snapshot;
+	}
+
+	@Override
+	public void insert(char[] c, int charOffset){
+		if(isCompact() && !isLatin1(c, 0, c.length)){
+			int textLength = textLength();
+			char[] buffer = new char[GapBuffer.memoryNeeded(textLength)];
+			for(int i = 0; i < textLength; ++i){
+				buffer[i] = (char) (_bytes[logicalToRealIndex(i)] & 0xFF);
+			}
+			inflate(buffer, textLength, getLineCount());
+		}
+		if(!isCompact()){
+			_inflated.insert(c, charOffset);
+			return;
+		}
+
+		moveGap(charOffset);
+		if(c.length > gapSize()){
+			growBufferBy(c.length - gapSize());
+		}
+		prepareWrite(_gapStartIndex, _gapStartIndex + c.length);
+		for(int i = 0; i < c.length; ++i){
+			_bytes[_gapStartIndex++] = (byte) c[i];
+		}
+		_lineIndex.insert(c, 0, c.length, charOffset);
+	}
+
+	@Override
+	public void delete(int charOffset, int totalChars){
+		if(!isCompact()){
+			_inflated.delete(charOffset, totalChars);
+			return;
+		}
+
+		moveGap(charOffset);
+		_gapEndIndex += totalChars;
+		_lineIndex.delete(charOffset, totalChars);
+	}
+
+	@Override
+	public int getLineOffset(int lineNumber){
+		if(!isCompact()){
+			return _inflated.getLineOffset(lineNumber);
+		}
+		return _lineIndex.getLineOffset(lineNumber);
+	}
+
+	@Override
+	public int findLineNumber(int charOffset){
+		if(!isCompact()){
+			return _inflated.findLineNumber(charOffset);
+		}
+		return _lineIndex.findLineNumber(charOffset);
+	}
+
+	/**
+	 * Builds a storage from text received a chunk at a time, such as a file
+	 * as it is converted. While the text is all Latin-1, it is narrowed
+	 * straight into the byte array of a CompactStorage, so it is never held
+	 * as chars. At the first char outside Latin-1, the text so far is widened
+	 * into a char array and the rest is kept as chars for a GapBuffer.
+	 */
+	public static class Builder implements TextSink{
+		/** null once widened */
+		private byte[] _bytes;
+		/** non-null once widened */
+		private char[] _chars = null;
+		private int _length = 0;
+		/** Lengths of the completed lines, including their newlines */
+		private int[] _lineLengths = new int[16];
+		private int _lineCount = 0;
+		/** Offset of the first char of the current line */
+		private int _lineStart = 0;
+
+		/**
+		 * @param capacity The maximum number of chars that will be appended
+		 */
+		public Builder(int capacity){
+			_bytes = new byte[capacity + MIN_GAP_SIZE];
+		}
+
+		@Override
+		public void append(char[] chars, int count){
+			for(int i = 0; i < count; ++i){
+				char c = chars[i];
+				if(c == Language.NEWLINE){
+					addLine(_length + 1 - _lineStart);
+					_lineStart = _length + 1;
+				}
+
+				if(_chars != null){
+					_chars[_length++] = c;
+				}
+				else if(c <= 0xFF){
+					_bytes[_length++] = (byte) c;
+				}
+				else{
+					widen();
+					_chars[_length++] = c;
+				}
+			}
+		}
+
+		/**
+		 * Returns a storage holding the text appended so far. The builder
+		 * should not be used afterwards.
+		 */
+		public TextStorage build(){
+			if(_chars != null){
+				GapBuffer storage = new GapBuffer();
+				storage.setContents(_chars, _length, _lineCount + 1);
+				return storage;
+			}
+
+			addLine(_length + 1 - _lineStart); // last line and EOF
+			CompactStorage storage = new CompactStorage();
+			storage._bytes = _bytes;
+			// the unused capacity after the text becomes the gap
+			storage._gapStartIndex = _length;
+			storage._gapEndIndex = _bytes.length;
+			storage._lineIndex.setLineLengths(_lineLengths, _lineCount);
+			return storage;
+		}
+
+		private void addLine(int length){
+			if(_lineCount == _lineLengths.length){
+				int[] temp = new int[2 * _lineLengths.length];
+				System.arraycopy(_lineLengths, 0, temp, 0, _lineCount);
+				_lineLengths = temp;
+			}
+			_lineLengths[_lineCount++] = length;
+		}
+
+		private void widen(){
+			_chars = new char[GapBuffer.memoryNeeded(_bytes.length - MIN_GAP_SIZE)];
+			for(int i = 0; i < _length; ++i){
+				_chars[i] = (char) (_bytes[i] & 0xFF);
+			}
+			_bytes = null;
+		}
+	}
+
+	private void inflate(char[] buffer, int textSize, int lineCount){
+		_inflated = new GapBuffer();
+		_inflated.setContents(buffer, textSize, lineCount);
+		_bytes = null;
+		_snapshots.clear();
+		_lineIndex = null;
+	}
+
+	private static boolean isLatin1(char[] c, int start, int end){
+		for(int i = start; i < end; ++i){
+			if(c[i] > 0xFF){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Number of chars stored, excluding the implied EOF */
+	private int textLength(){
+		return _bytes.length - gapSize();
+	}
+
+	private int gapSize(){
+		return _gapEndIndex - _gapStartIndex;
+	}
+
+	private int logicalToRealIndex(int i){
+		return (i < _gapStartIndex) ? i : i + gapSize();
+	}
+
+	/**
+	 * Moves the gap so that it starts at charOffset
+	 */
+	private void moveGap(int charOffset){
+		if(charOffset < _gapStartIndex){
+			int count = _gapStartIndex - charOffset;
+			prepareWrite(_gapEndIndex - count, _gapEndIndex);
+			System.arraycopy(_bytes, charOffset, _bytes, _gapEndIndex - count, count);
+			_gapStartIndex -= count;
+			_gapEndIndex -= count;
+		}
+		else if(charOffset > _gapStartIndex){
+			int count = charOffset - _gapStartIndex;
+			prepareWrite(_gapStartIndex, _gapStartIndex + count);
+			System.arraycopy(_bytes, _gapEndIndex, _bytes, _gapStartIndex, count);
+			_gapStartIndex += count;
+			_gapEndIndex += count;
+		}
+	}
+
+	private void growBufferBy(int minIncrement){
+		int increasedSize = minIncrement + Math.max(MIN_GAP_SIZE, _bytes.length / 2);
+		byte[] temp = new byte[_bytes.length + increasedSize];
+		System.arraycopy(_bytes, 0, temp, 0, _gapStartIndex);
+		System.arraycopy(_bytes, _gapEndIndex, temp, _gapEndIndex + increasedSize,
+				_bytes.length - _gapEndIndex);
+		_gapEndIndex += increasedSize;
+		_bytes = temp;
+		_snapshots.clear();
+	}
+
+	/**
+	 * Copies _bytes if it is shared with live snapshots and the positions
+	 * [start, end) of it are about to be written to outside the gap of
+	 * one of them
+	 */
+	private void prepareWrite(int start, int end){
+		if(!_snapshots.canWrite(start, end)){
+			_bytes = _bytes.clone();
+			_snapshots.clear();
+		}
+	}
+
+
+	/**
+	 * A snapshot of the bytes of a CompactStorage, which are widened to
+	 * chars as they are read
+	 */
+	private static class Latin1Snapshot extends TextSnapshot{
+		private final byte[] _bytes;
+		private final int _gapStartIndex;
+		/** One past end of gap */
+		private final int _gapEndIndex;
+
+		Latin1Snapshot(byte[] bytes, int gapStart, int gapEnd){
+			_bytes = bytes;
+			_gapStartIndex = gapStart;
+			_gapEndIndex = gapEnd;
+		}
+
+		@Override
+		public int length(){
+			return textLength() + 1; // EOF
+		}
+
+		@Override
+		public char charAt(int charOffset){
+			if(charOffset == textLength()){
+				return Language.EOF;
+			}
+			return (char) (_bytes[logicalToRealIndex(charOffset)] & 0xFF);
+		}
+
+		@Override
+		public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+			int textLength = textLength();
+			int end = Math.min(srcEnd, textLength);
+			int i = dstBegin;
+			for(int offset = srcBegin; offset < end; ++offset){
+				dst[i++] = (char) (_bytes[logicalToRealIndex(offset)] & 0xFF);
+			}
+			if(srcEnd > textLength){
+				dst[i] = Language.EOF;
+			}
+		}
+
+		/**
+		 * The chars are widened into the buffer of seg, since the
+		 * snapshot may be read by several threads at once
+		 */
+		@Override
+		public void getSegment(int charOffset, int maxChars, SegmentCursor seg){
+			int count = Math.min(maxChars, SEGMENT_BUFFER_SIZE);
+			char[] buffer = seg.getBuffer(SEGMENT_BUFFER_SIZE);
+			getChars(charOffset, charOffset + count, buffer, 0);
+			seg.set(buffer, 0, count);
+		}
+
+		private int textLength(){
+			return _bytes.length - (_gapEndIndex - _gapStartIndex);
+		}
+
+		private int logicalToRealIndex(int i){
+			return (i < _gapStartIndex) ? i : i + _gapEndIndex - _gapStartIndex;
+		}
+	}
+}
@@ -15,17 +15,58 @@ import java.util.ArrayList;
  *
  * Positions for word wrap row breaks are stored here.
  * Word-wrap is enabled by default.
+ *
+ * In batch edit mode, and while a group of edits is undone or redone, the
+ * row table is not updated after every edit. The edited ranges are merged
+ * into one dirty range instead, which is analyzed when the batch ends, or
+ * earlier if rows are queried in the meantime.
+ *
+ * Large documents can be wrapped incrementally. analyzeWordWrap(int, int)
+ * wraps the rows around a given offset, and estimates the rows of the rest
+ * of the text from the average width of the chars wrapped. The estimated
+ * rows break each line every few chars, so that they have about the right
+ * count. They are replaced by exact rows one WrapChunk at a time, which can
+ * be analyzed on another thread. Several chunks can be handed out at once,
+ * so that they are analyzed on all cores. See WordWrapThread.
  */
 public class Document extends TextBuffer {
+	/** Documents shorter than this are always wrapped at once */
+	private final static int MIN_INCREMENTAL_WRAP_SIZE = 64 * 1024;
+	/** Approximate number of chars in a WrapChunk */
+	private final static int WRAP_CHUNK_SIZE = 32 * 1024;
+
 
 	private boolean _isWordWrap = true;
 
 	/** Contains info related to printing of characters, display size and so on */
 	private TextFieldMetrics _metrics;
 
-	/** A table containing the character offset of every row in the document.
-	 * Values are valid only in word-wrap mode */
-	private ArrayList<Integer> _rowTable;
+	/** The length of every row in the document, the last row including
+	 * the EOF char. Values are valid only in word-wrap mode.
+	 *
+	 * Only lengths are stored, so an edit does not have to shift the offsets
+	 * of the rows after it, and an int is used per row */
+	private SegmentIndex _rowTable;
+	/** Row breaks found by analyzeWordWrap(). Reused between calls */
+	private final RowBreaks _breaks = new RowBreaks();
+
+	/* Ranges of text whose rows are estimates, in the order they are to be
+	 * wrapped. Ranges start at a line, or may start inside a line after an
+	 * edit, and end at the start of a line or the end of the text */
+	private int[] _pendingStarts = new int[2];
+	private int[] _pendingEnds = new int[2];
+	private int _pendingCount = 0;
+	/** Chunks handed out by nextWrapChunks() but not applied yet */
+	private final ArrayList<WrapChunk> _wrapChunks = new ArrayList<WrapChunk>();
+
+	/* Edited range whose rows have not been analyzed yet, in offsets before
+	 * the edits, and the change in text length since. _dirtyStart is -1 if
+	 * the row table is up to date */
+	private int _dirtyStart = -1;
+	private int _dirtyEnd = 0;
+	private int _dirtyDelta = 0;
+	/** Set while a group of edits is undone or redone */
+	private boolean _isUndoing = false;
 
 	public Document(TextFieldMetrics metrics){
 		super();
@@ -33,10 +74,31 @@ public class Document extends TextBuffer {
 		resetRowTable();
 	}
 
+	/**
+	 * Creates a document that keeps its characters in storage
+	 */
+	public Document(TextFieldMetrics metrics, TextStorage storage){
+		super(storage);
+		_metrics = metrics;
+		resetRowTable();
+	}
+
+	/**
+	 * Creates a read-only document over a snapshot. See snapshot()
+	 */
+	protected Document(TextFieldMetrics metrics, TextSnapshot snapshot){
+		super(snapshot);
+		_metrics = metrics;
+		resetRowTable();
+	}
+
 	private void resetRowTable() {
-		ArrayList<Integer> rowTable = new ArrayList<Integer>();
-		rowTable.add(0); //every document contains at least 1 row
+		SegmentIndex rowTable = new SegmentIndex();
+		//every document contains at least 1 row
+		rowTable.reset(new int[]{getTextLength()}, 1);
 		_rowTable = rowTable;
+		_dirtyStart = -1;
+		clearPendingWrap();
 	}
 
 	public void setMetrics(TextFieldMetrics metrics){
@@ -55,6 +117,8 @@ public class Document extends TextBuffer {
 		else if(!enable && _isWordWrap){
 			_isWordWrap = false;
 			_rowTable = null;
+			_dirtyStart = -1;
+			clearPendingWrap();
 		}
 	}
 
@@ -62,74 +126,176 @@ public class Document extends TextBuffer {
 		return _isWordWrap;
 	}
 
+	/**
+	 * Word wrap is not applied to snapshots, so their rows are lines
+	 */
+	@Override
+	public synchronized Document snapshot(){
+		Document snapshot = new Document(_metrics, _storage.snapshot());
+		snapshot._isWordWrap = false;
+		snapshot._rowTable = null;
+		initSnapshot(snapshot);
+		return snapshot;
+	}
+
 
+	/**
+	 * Rows of the new text are not known until analyzeWordWrap() is called
+	 */
 	@Override
-	public synchronized void delete(int charOffset, int totalChars, long timestamp, boolean undoable) {
-		super.delete(charOffset, totalChars, timestamp, undoable);
-		if(!_isWordWrap){
-			return;
+	public synchronized void setBuffer(char[] newBuffer, String encoding,
+			String EOLstyle, int textSize, int lineCount){
+		super.setBuffer(newBuffer, encoding, EOLstyle, textSize, lineCount);
+		if(_isWordWrap){
+			resetRowTable();
+		}
+	}
+
+	@Override
+	public synchronized void setStorage(TextStorage storage, String encoding,
+			String EOLstyle){
+		super.setStorage(storage, encoding, EOLstyle);
+		if(_isWordWrap){
+			resetRowTable();
 		}
+	}
 
-		int startRow = findRowNumber(charOffset);
-		int analyzeEnd = findNextLineFrom(charOffset);
-		updateWordWrapAfterEdit(startRow, analyzeEnd, -totalChars);
+	@Override
+	public synchronized void delete(int charOffset, int totalChars, long timestamp, boolean undoable) {
+		super.delete(charOffset, totalChars, timestamp, undoable);
+		markWordWrapDirty(charOffset, totalChars, 0);
 	}
 
 	@Override
 	public synchronized void insert(char[] c, int charOffset, long timestamp, boolean undoable) {
 		super.insert(c, charOffset, timestamp, undoable);
+		markWordWrapDirty(charOffset, 0, c.length);
+	}
+
+	/**
+	 * Word wrap is updated once for the whole replaced range
+	 */
+	@Override
+	public synchronized void replace(int charOffset, int totalChars, char[] c,
+			long timestamp, boolean undoable){
+		super.replace(charOffset, totalChars, c, timestamp, undoable);
+		markWordWrapDirty(charOffset, totalChars, c.length);
+	}
+
+	@Override
+	protected void onTextAppended(int charOffset, int totalChars) {
+		markWordWrapDirty(charOffset, 0, totalChars);
+	}
+
+	@Override
+	public synchronized void endBatchEdit() {
+		super.endBatchEdit();
+		applyWordWrap();
+	}
+
+	@Override
+	public synchronized int undo() {
+		_isUndoing = true;
+		try{
+			return super.undo();
+		}
+		finally{
+			_isUndoing = false;
+			applyWordWrap();
+		}
+	}
+
+	@Override
+	public synchronized int redo() {
+		_isUndoing = true;
+		try{
+			return super.redo();
+		}
+		finally{
+			_isUndoing = false;
+			applyWordWrap();
+		}
+	}
+
+	/**
+	 * Records that the deleted chars at charOffset were replaced by inserted
+	 * chars, and updates the row table unless updates are deferred
+	 */
+	private void markWordWrapDirty(int charOffset, int deleted, int inserted){
 		if(!_isWordWrap){
 			return;
 		}
+		if(_pendingCount > 0){
+			adjustPendingWrap(charOffset, deleted, inserted);
+		}
+
+		if(_dirtyStart < 0){
+			_dirtyStart = charOffset;
+			_dirtyEnd = charOffset + deleted;
+			_dirtyDelta = 0;
+		}
+		else{
+			// merge with the dirty range, which now ends at _dirtyEnd + _dirtyDelta.
+			// Offsets after it are _dirtyDelta more than before the edits
+			_dirtyStart = Math.min(_dirtyStart, charOffset);
+			_dirtyEnd = Math.max(_dirtyEnd + _dirtyDelta, charOffset + deleted)
+					- _dirtyDelta;
+		}
+		_dirtyDelta += inserted - deleted;
+
+		if(!_isUndoing && !isBatchEdit()){
+			applyWordWrap();
+		}
+	}
+
+	/**
+	 * Analyzes the rows of the dirty range, if any
+	 */
+	private synchronized void applyWordWrap(){
+		if(_dirtyStart < 0){
+			return;
+		}
 
-		int startRow = findRowNumber(charOffset);
-		int analyzeEnd = findNextLineFrom(charOffset + c.length);
-		updateWordWrapAfterEdit(startRow, analyzeEnd, c.length);
+		int startOffset = _dirtyStart;
+		_dirtyStart = -1;
+		int startRow = lookUpRow(startOffset);
+		int analyzeEnd = findNextLineFrom(_dirtyEnd + _dirtyDelta);
+		updateWordWrapAfterEdit(startRow, analyzeEnd, _dirtyDelta);
 	}
 
 	@Override
 	/**
-	 * Moves _gapStartIndex by displacement units. Note that displacement can be
-	 * negative and will move _gapStartIndex to the left.
+	 * Moves the start of the gap by displacement units. Note that displacement
+	 * can be negative and will move the start of the gap to the left.
 	 *
 	 * Only UndoStack should use this method to carry out a simple undo/redo
 	 * of insertions/deletions. No error checking is done.
 	 */
 	synchronized void shiftGapStart(int displacement) {
 		super.shiftGapStart(displacement);
-		if(!_isWordWrap){
-			return;
+		if(displacement > 0){
+			markWordWrapDirty(gapStart() - displacement, 0, displacement);
 		}
-
-		if(displacement != 0){
-			int startOffset = (displacement > 0)
-					? _gapStartIndex - displacement
-					: _gapStartIndex;
-			int startRow = findRowNumber(startOffset);
-			int analyzeEnd = findNextLineFrom(_gapStartIndex);
-			updateWordWrapAfterEdit(startRow, analyzeEnd, displacement);
+		else if(displacement < 0){
+			markWordWrapDirty(gapStart(), -displacement, 0);
 		}
 	}
 
 	//No error checking is done on parameters.
 	private int findNextLineFrom(int charOffset){
-		int lineEnd = logicalToRealIndex(charOffset);
+		int lineEnd = charOffset;
+		final int textLength = getTextLength();
 
-		while(lineEnd < _contents.length){
-			// skip the gap
-			if(lineEnd == _gapStartIndex){
-				lineEnd = _gapEndIndex;
-			}
-
-			if(_contents[lineEnd] == Language.NEWLINE ||
-					_contents[lineEnd] == Language.EOF){
+		while(lineEnd < textLength){
+			char c = _storage.charAt(lineEnd);
+			if(c == Language.NEWLINE || c == Language.EOF){
 				break;
 			}
 
 			++lineEnd;
 		}
 
-		return realToLogicalIndex(lineEnd) + 1;
+		return lineEnd + 1;
 	}
 
 	private void updateWordWrapAfterEdit(int startRow, int analyzeEnd, int delta){
@@ -138,86 +304,366 @@ public class Document extends TextBuffer {
 			// up, it may fit the previous line, so analyse that line too
 			--startRow;
 		}
-		int analyzeStart = _rowTable.get(startRow);
+		int analyzeStart = _rowTable.getOffset(startRow);
+
+		//changes only affect the rows after startRow, up to and including
+		//the row that analyzeEnd was on before the edit
+		int oldEnd = analyzeEnd - delta;
+		int endRow = (oldEnd < _rowTable.getTotalLength())
+				? _rowTable.findSegment(oldEnd) + 1
+				: _rowTable.getSegmentCount();
+		int nextRowStart = _rowTable.getOffset(endRow) + delta;
+		analyzeWordWrap(startRow, endRow - startRow, analyzeStart, analyzeEnd,
+				nextRowStart);
+	}
+
+	public void analyzeWordWrap(){
+		if(!_isWordWrap){
+			return;
+		}
 
-		//changes only affect the rows after startRow
-		removeRowMetadata(startRow + 1, analyzeEnd - delta);
-		adjustOffsetOfRowsFrom(startRow + 1, delta);
-		analyzeWordWrap(startRow + 1, analyzeStart, analyzeEnd);
+		resetRowTable();
+
+		if (!hasMinimumWidthForWordWrap()){
+			if (_metrics.getRowWidth() > 0) {
+				TextWarriorException.fail("Text field has non-zero width but still too small for word wrap");
+			}
+			// _metrics.getRowWidth() might legitmately be zero when the text field has not been layout yet
+			return;
+		}
+
+		int textLength = getTextLength();
+		analyzeWordWrap(0, 1, 0, textLength, textLength);
 	}
 
 	/**
-	 * Removes row offset info from fromRow to the row that endOffset is on,
-	 * inclusive.
+	 * Wraps the lines within charCount chars of charOffset, and estimates
+	 * the rows of the rest of the document. Short documents are wrapped
+	 * completely.
 	 *
-	 * No error checking is done on parameters.
+	 * @return True if some rows are estimates, and have to be replaced
+	 * 		using nextWrapChunks() and applyWrapChunk()
 	 */
-	private void removeRowMetadata(int fromRow, int endOffset){
-		while(fromRow < _rowTable.size() &&
-				_rowTable.get(fromRow) <= endOffset){
-			_rowTable.remove(fromRow);
+	public synchronized boolean analyzeWordWrap(int charOffset, int charCount){
+		final int textLength = getTextLength();
+		if(!_isWordWrap || textLength < MIN_INCREMENTAL_WRAP_SIZE
+				|| !hasMinimumWidthForWordWrap()){
+			analyzeWordWrap();
+			return false;
+		}
+
+		charOffset = Math.max(0, Math.min(charOffset, textLength - 1));
+		charCount = Math.max(charCount, 1);
+		int wrapStart = findLineStart(Math.max(0, charOffset - charCount));
+		int wrapEnd = findNextLineFrom(Math.min(textLength - 1, charOffset + charCount));
+		if(wrapStart == 0 && wrapEnd >= textLength){
+			analyzeWordWrap();
+			return false;
+		}
+
+		resetRowTable();
+		int charsPerRow = estimateCharsPerRow(wrapStart, wrapEnd);
+
+		RowBreaks lengths = _breaks;
+		lengths.clear();
+		estimateRows(0, wrapStart, charsPerRow, lengths);
+		int estimatedCount = lengths.count;
+		findRowBreaks(_storage, _metrics, wrapStart, wrapEnd, lengths);
+		lengths.toLengths(estimatedCount, wrapStart, wrapEnd);
+		estimateRows(wrapEnd, textLength, charsPerRow, lengths);
+		_rowTable.reset(lengths.values, lengths.count);
+
+		// wrap the text after the visible rows first
+		if(wrapEnd < textLength){
+			addPendingWrap(wrapEnd, textLength);
 		}
+		if(wrapStart > 0){
+			addPendingWrap(0, wrapStart);
+		}
+		return true;
 	}
 
-	private void adjustOffsetOfRowsFrom(int fromRow, int offset){
-		for(int i = fromRow; i < _rowTable.size(); ++i){
-			_rowTable.set(i, _rowTable.get(i) + offset);
+	/**
+	 * Returns true if some rows are estimates. See analyzeWordWrap(int, int)
+	 */
+	public synchronized boolean isWordWrapPending(){
+		return _pendingCount > 0;
+	}
+
+	/**
+	 * Returns up to maxCount consecutive ranges of text whose rows are
+	 * estimates, to be analyzed with WrapChunk.analyze() and then applied
+	 * in order with applyWrapChunk(). The chunks only share a snapshot of
+	 * the text, which can be read by several threads at once, so they can
+	 * be analyzed in parallel. If chunks were handed out before, waits
+	 * until all of them are applied.
+	 *
+	 * @return The next chunks, or null if all rows are exact
+	 */
+	public synchronized WrapChunk[] nextWrapChunks(int maxCount)
+			throws InterruptedException{
+		while(!_wrapChunks.isEmpty()){
+			wait();
+		}
+		if(_pendingCount == 0){
+			return null;
+		}
+		applyWordWrap();
+
+		TextSnapshot snapshot = _storage.snapshot();
+		for(int i = 0; i < _pendingCount && _wrapChunks.size() < maxCount; ++i){
+			int start = findLineStart(_pendingStarts[i]);
+			final int pendingEnd = _pendingEnds[i];
+			while(start < pendingEnd && _wrapChunks.size() < maxCount){
+				int end = Math.min(pendingEnd, start + WRAP_CHUNK_SIZE);
+				end = findNextLineFrom(Math.max(end, start + 1) - 1);
+				_wrapChunks.add(new WrapChunk(snapshot, start, end));
+				start = end;
+			}
 		}
+		return _wrapChunks.toArray(new WrapChunk[_wrapChunks.size()]);
 	}
 
-	public void analyzeWordWrap(){
-		if(!_isWordWrap){
-			return;
+	/**
+	 * Replaces the estimated rows of the range of chunk with the exact rows
+	 * found by WrapChunk.analyze(). The rows are discarded if the text of
+	 * the range was edited since nextWrapChunks() returned chunk.
+	 *
+	 * @return True if the rows of the document changed
+	 */
+	public synchronized boolean applyWrapChunk(WrapChunk chunk){
+		if(!_wrapChunks.remove(chunk)){
+			return false;
+		}
+		if(_wrapChunks.isEmpty()){
+			// the chunks of a batch share a snapshot
+			chunk._text.release();
+			notifyAll();
 		}
 
-		resetRowTable();
+		if(!chunk._isValid || !chunk._isAnalyzed){
+			return false;
+		}
+		applyWordWrap();
+
+		int start = chunk._start + chunk._shift;
+		int end = chunk._end + chunk._shift;
+		int startRow = lookUpRow(start);
+		int endRow = (end < _rowTable.getTotalLength())
+				? lookUpRow(end)
+				: _rowTable.getSegmentCount();
+		_rowTable.replace(startRow, endRow - startRow,
+				chunk._rows.values, 0, chunk._rows.count);
+
+		// remove the range from the pending ranges
+		final int count = _pendingCount;
+		int to = 0;
+		for(int i = 0; i < count; ++i){
+			int pendingStart = _pendingStarts[i];
+			int pendingEnd = _pendingEnds[i];
+			if(pendingStart < start && pendingEnd > end){
+				// an earlier chunk was discarded, so the range is split
+				addPendingWrap(end, pendingEnd);
+				pendingEnd = start;
+			}
+			if(pendingStart >= start && pendingStart < end){
+				pendingStart = end;
+			}
+			if(pendingEnd > start && pendingEnd <= end){
+				pendingEnd = start;
+			}
+			if(pendingStart < pendingEnd){
+				_pendingStarts[to] = pendingStart;
+				_pendingEnds[to] = pendingEnd;
+				++to;
+			}
+		}
+		// keep the ranges split off above
+		for(int i = count; i < _pendingCount; ++i){
+			_pendingStarts[to] = _pendingStarts[i];
+			_pendingEnds[to] = _pendingEnds[i];
+			++to;
+		}
+		_pendingCount = to;
+		return true;
+	}
 
-		if (!hasMinimumWidthForWordWrap()){
-			if (_metrics.getRowWidth() > 0) {
-				TextWarriorException.fail("Text field has non-zero width but still too small for word wrap");
+	private void clearPendingWrap(){
+		_pendingCount = 0;
+		if(!_wrapChunks.isEmpty()){
+			// the rows of the chunks are never applied, so it does not
+			// matter if chunks still being analyzed see the text change.
+			// The chunks of a batch share a snapshot
+			_wrapChunks.get(0)._text.release();
+			_wrapChunks.clear();
+			notifyAll();
+		}
+	}
+
+	private void addPendingWrap(int start, int end){
+		if(_pendingCount == _pendingStarts.length){
+			int[] starts = new int[2 * _pendingCount];
+			int[] ends = new int[2 * _pendingCount];
+			System.arraycopy(_pendingStarts, 0, starts, 0, _pendingCount);
+			System.arraycopy(_pendingEnds, 0, ends, 0, _pendingCount);
+			_pendingStarts = starts;
+			_pendingEnds = ends;
+		}
+		_pendingStarts[_pendingCount] = start;
+		_pendingEnds[_pendingCount] = end;
+		++_pendingCount;
+	}
+
+	/**
+	 * Moves the pending ranges and the chunks being analyzed after
+	 * the deleted chars at charOffset were replaced by inserted chars
+	 */
+	private void adjustPendingWrap(int charOffset, int deleted, int inserted){
+		final int delta = inserted - deleted;
+		final int editEnd = charOffset + deleted;
+		for(int i = 0; i < _pendingCount; ++i){
+			if(editEnd <= _pendingStarts[i]){
+				_pendingStarts[i] += delta;
+				_pendingEnds[i] += delta;
+			}
+			else if(charOffset < _pendingEnds[i]){
+				// the rows of the edited lines are wrapped again anyway
+				_pendingStarts[i] = Math.min(_pendingStarts[i], charOffset);
+				_pendingEnds[i] = Math.max(_pendingEnds[i] + delta,
+						charOffset + inserted);
+			}
+		}
+
+		for(int i = 0; i < _wrapChunks.size(); ++i){
+			WrapChunk chunk = _wrapChunks.get(i);
+			if(!chunk._isValid){
+				continue;
+			}
+			int start = chunk._start + chunk._shift;
+			int end = chunk._end + chunk._shift;
+			if(editEnd < start){
+				chunk._shift += delta;
+			}
+			else if(charOffset < end){
+				// edits at start can join the first line of the chunk with
+				// the line before it
+				chunk._isValid = false;
 			}
-			// _metrics.getRowWidth() might legitmately be zero when the text field has not been layout yet
-			return;
 		}
+	}
 
-		analyzeWordWrap(1, 0, getTextLength());
+	/**
+	 * Appends rows of about charsPerRow chars for the lines in [start, end)
+	 * to lengths. start is the start of a line, and end is the start of a
+	 * line or the end of the text.
+	 */
+	private void estimateRows(int start, int end, int charsPerRow,
+			RowBreaks lengths){
+		SegmentCursor seg = new SegmentCursor();
+		int lineStart = start;
+		int offset = start;
+		while(offset < end){
+			getSegment(offset, Math.min(end - offset, SegmentCursor.MAX_SEGMENT_SIZE), seg);
+			int segEnd = seg.offset + seg.count;
+			for(int i = seg.offset; i < segEnd; ++i){
+				if(seg.array[i] == Language.NEWLINE){
+					int lineEnd = offset + i - seg.offset + 1;
+					estimateLineRows(lineEnd - lineStart, charsPerRow, lengths);
+					lineStart = lineEnd;
+				}
+			}
+			offset += seg.count;
+		}
+		if(lineStart < end){
+			estimateLineRows(end - lineStart, charsPerRow, lengths);
+		}
 	}
 
-	private boolean hasMinimumWidthForWordWrap() {
-		final int maxWidth = _metrics.getRowWidth();
-		//assume the widest char is 2ems wide
-		return (maxWidth >= 2*_metrics.getAdvance('M'));
+	private static void estimateLineRows(int lineLength, int charsPerRow,
+			RowBreaks lengths){
+		while(lineLength > charsPerRow){
+			lengths.add(charsPerRow);
+			lineLength -= charsPerRow;
+		}
+		lengths.add(lineLength);
+	}
+
+	/**
+	 * Estimates how many chars fit on a row from the average advance of the
+	 * chars in [start, end)
+	 */
+	private int estimateCharsPerRow(int start, int end){
+		final int sampleEnd = Math.min(end, start + 4096);
+		long totalAdvance = 0;
+		for(int i = start; i < sampleEnd; ++i){
+			totalAdvance += _metrics.getAdvance(_storage.charAt(i));
+		}
+		if(totalAdvance <= 0){
+			return Math.max(_metrics.getRowWidth(), 1);
+		}
+		return (int) Math.max(1,
+				(long) _metrics.getRowWidth() * (sampleEnd - start) / totalAdvance);
 	}
 
 	//No error checking is done on parameters.
-	//A word consists of a sequence of 0 or more non-whitespace characters followed by
-	//exactly one whitespace character. Note that EOF is considered whitespace.
-	private void analyzeWordWrap(int rowIndex, int startOffset, int endOffset){
-		if(!_isWordWrap){
-			return;
+	private int findLineStart(int charOffset){
+		while(charOffset > 0 && _storage.charAt(charOffset - 1) != Language.NEWLINE){
+			--charOffset;
 		}
+		return charOffset;
+	}
 
-		if(!hasMinimumWidthForWordWrap()){
+	private boolean hasMinimumWidthForWordWrap() {
+		return hasMinimumWidthForWordWrap(_metrics);
+	}
+
+	private static boolean hasMinimumWidthForWordWrap(TextFieldMetrics metrics) {
+		final int maxWidth = metrics.getRowWidth();
+		//assume the widest char is 2ems wide
+		return (maxWidth >= 2*metrics.getAdvance('M'));
+	}
+
+	/**
+	 * Replaces removeCount rows from rowIndex with the rows of
+	 * [startOffset, endOffset). startOffset is the start of rowIndex, and
+	 * the row after the replaced rows starts at nextRowStart.
+	 */
+	private void analyzeWordWrap(int rowIndex, int removeCount,
+			int startOffset, int endOffset, int nextRowStart){
+		RowBreaks breaks = _breaks;
+		breaks.clear();
+		if(hasMinimumWidthForWordWrap()){
+			findRowBreaks(_storage, _metrics, startOffset, endOffset, breaks);
+		}
+		else{
 			TextWarriorException.fail("Not enough space to do word wrap");
-			return;
 		}
 
-		ArrayList<Integer> rowTable = new ArrayList<Integer>();
-		int offset = logicalToRealIndex(startOffset);
-		int end = logicalToRealIndex(endOffset);
+		//merge with existing row table
+		breaks.toLengths(0, startOffset, nextRowStart);
+		_rowTable.replace(rowIndex, removeCount, breaks.values, 0, breaks.count);
+	}
+
+	//No error checking is done on parameters.
+	//A word consists of a sequence of 0 or more non-whitespace characters followed by
+	//exactly one whitespace character. Note that EOF is considered whitespace.
+	/**
+	 * Appends the offsets where rows start in (startOffset, endOffset] to
+	 * breaks, for a row that starts at startOffset
+	 */
+	private static void findRowBreaks(ReadOnlyTextStorage text, TextFieldMetrics metrics,
+			int startOffset, int endOffset, RowBreaks breaks){
+		final int firstBreak = breaks.count;
+		SliceReader reader = new SliceReader(text);
+		int offset = startOffset;
 		int potentialBreakPoint = startOffset;
 		int wordExtent = 0;
-		final int maxWidth = _metrics.getRowWidth();
+		final int maxWidth = metrics.getRowWidth();
 		int remainingWidth = maxWidth;
 
-		while (offset < end){
-			// skip the gap
-			if(offset == _gapStartIndex){
-				offset = _gapEndIndex;
-			}
-
-			char c = _contents[offset];
-			wordExtent += _metrics.getAdvance(c);
+		while (offset < endOffset){
+			char c = reader.charAt(offset);
+			wordExtent += metrics.getAdvance(c);
 
 			boolean isWhitespace = (c == ' ' || c == Language.TAB
 					|| c == Language.NEWLINE || c == Language.EOF);
@@ -229,24 +675,19 @@ public class Document extends TextBuffer {
 				}
 				else if (wordExtent > maxWidth){
 					//handle a word too long to fit on one row
-					int current = logicalToRealIndex(potentialBreakPoint);
+					int current = potentialBreakPoint;
 					remainingWidth = maxWidth;
 
 					//start the word on a new row, if it isn't already
-					if(potentialBreakPoint != startOffset && (rowTable.isEmpty() ||
-							potentialBreakPoint != rowTable.get(rowTable.size()-1)) ){
-						rowTable.add(potentialBreakPoint);
+					if(potentialBreakPoint != startOffset && (breaks.count == firstBreak ||
+							potentialBreakPoint != breaks.values[breaks.count-1]) ){
+						breaks.add(potentialBreakPoint);
 					}
 
 					while(current <= offset){
-						// skip the gap
-						if(current == _gapStartIndex){
-							current = _gapEndIndex;
-						}
-
-						int advance = _metrics.getAdvance(_contents[current]);
+						int advance = metrics.getAdvance(reader.charAt(current));
 						if(advance > remainingWidth){
-							rowTable.add(realToLogicalIndex(current));
+							breaks.add(current);
 							remainingWidth = maxWidth - advance;
 						}
 						else{
@@ -259,77 +700,78 @@ public class Document extends TextBuffer {
 				else{
 					//invariant: potentialBreakPoint != startOffset
 					//put the word on a new row
-					rowTable.add(potentialBreakPoint);
+					breaks.add(potentialBreakPoint);
 					remainingWidth = maxWidth - wordExtent;
 				}
 
 				wordExtent = 0;
-				potentialBreakPoint = realToLogicalIndex(offset) + 1;
+				potentialBreakPoint = offset + 1;
 			}
 
 			if(c == Language.NEWLINE){
 				//start a new row
-				rowTable.add(potentialBreakPoint);
+				breaks.add(potentialBreakPoint);
 				remainingWidth = maxWidth;
 			}
 
 			++offset;
 		}
-
-		//merge with existing row table
-		_rowTable.addAll(rowIndex, rowTable);
 	}
 
-	public String getRow(int rowNumber) {
+	public synchronized String getRow(int rowNumber) {
 		if(!_isWordWrap){
 			return super.getLine(rowNumber);
 		}
+		applyWordWrap();
 
 		int rowSize = getRowSize(rowNumber);
 		if (rowSize == 0){
 			return new String();
 		}
 
-		int startIndex = _rowTable.get(rowNumber);
+		int startIndex = _rowTable.getOffset(rowNumber);
 		return new String(subSequence(startIndex, rowSize));
 	}
 
-	public int getRowSize(int rowNumber) {
+	public synchronized int getRowSize(int rowNumber) {
 		if(!_isWordWrap){
 			return super.getLineSize(rowNumber);
 		}
+		applyWordWrap();
 
 		if(isInvalidRow(rowNumber)){
 			return 0;
 		}
 
-		if(rowNumber != (_rowTable.size() - 1) ){
-			return _rowTable.get(rowNumber+1) - _rowTable.get(rowNumber);
+		if(rowNumber != (_rowTable.getSegmentCount() - 1) ){
+			return _rowTable.getLength(rowNumber);
 		}
 		else{
 			//last row
-			return getTextLength() - _rowTable.get(rowNumber);
+			return getTextLength() - _rowTable.getOffset(rowNumber);
 		}
 	}
 
-	public int getRowCount() {
+	public synchronized int getRowCount() {
 		if(!_isWordWrap){
 			return super.getLineCount();
 		}
+		applyWordWrap();
 
-		return _rowTable.size();
+		return _rowTable.getSegmentCount();
 	}
 
-	public int getRowOffset(int rowNumber) {
+	public synchronized int getRowOffset(int rowNumber) {
 		if(!_isWordWrap){
 			return super.getLineOffset(rowNumber);
 		}
+		applyWordWrap();
 
 		if(isInvalidRow(rowNumber)){
 			return -1;
 		}
 
-		return _rowTable.get(rowNumber);
+		return _rowTable.getOffset(rowNumber);
 	}
 
 	/**
@@ -337,43 +779,135 @@ public class Document extends TextBuffer {
 	 *
 	 * @return The row number that charOffset is on, or -1 if charOffset is invalid
 	 */
-	public int findRowNumber(int charOffset) {
+	public synchronized int findRowNumber(int charOffset) {
 		if(!_isWordWrap){
 			return super.findLineNumber(charOffset);
 		}
+		applyWordWrap();
 
 		if(!isValid(charOffset)){
 			return -1;
 		}
+		return lookUpRow(charOffset);
+	}
 
-		//binary search of _rowTable
-		int right = _rowTable.size() - 1;
-		int left = 0;
-		while (right >= left) {
-			int mid = (left+right)/2;
-			int nextLineOffset = ((mid+1) < _rowTable.size()) ? _rowTable.get(mid+1) : getTextLength();
-	        if (charOffset >= _rowTable.get(mid) && charOffset < nextLineOffset){
-	        	return mid;
-	        }
+	/**
+	 * Finds the row that charOffset is on in the row table, without first
+	 * analyzing the dirty range
+	 */
+	private int lookUpRow(int charOffset){
+		if(charOffset >= _rowTable.getTotalLength()){
+			//the last row extends to the end of the text
+			return _rowTable.getSegmentCount() - 1;
+		}
+		return _rowTable.findSegment(charOffset);
+	}
 
-	        if (charOffset >= nextLineOffset){
-	        	left = mid + 1;
-	        }
-	        else{
-	        	right = mid - 1;
-	        }
-	    }
 
-		//should not be here
-	    return -1;
+	protected boolean isInvalidRow(int rowNumber){
+		return rowNumber < 0 || rowNumber >= _rowTable.getSegmentCount();
 	}
 
 
-	protected boolean isInvalidRow(int rowNumber){
-		return rowNumber < 0 || rowNumber >= _rowTable.size();
+
+	/**
+	 * A growable list of ints, used for row breaks and row lengths
+	 */
+	private static class RowBreaks{
+		int[] values = new int[16];
+		int count = 0;
+
+		void clear(){
+			count = 0;
+		}
+
+		void add(int value){
+			if(count == values.length){
+				int[] temp = new int[2 * values.length];
+				System.arraycopy(values, 0, temp, 0, count);
+				values = temp;
+			}
+			values[count++] = value;
+		}
+
+		/**
+		 * Turns the row breaks from index first onwards, in place, into the
+		 * lengths of the rows from startOffset to nextRowStart
+		 */
+		void toLengths(int first, int startOffset, int nextRowStart){
+			int rowStart = startOffset;
+			for(int i = first; i < count; ++i){
+				int nextStart = values[i];
+				values[i] = nextStart - rowStart;
+				rowStart = nextStart;
+			}
+			if(rowStart < nextRowStart || count == first){
+				add(nextRowStart - rowStart);
+			}
+			// else the last break is at the end of a line that ends the range
+		}
+	}
+
+	/**
+	 * Reads the chars of a storage one slice at a time, so that reading
+	 * consecutive chars does not look up the position of each of them.
+	 * Not thread-safe, but storages that are thread-safe can be read by
+	 * several readers at once.
+	 */
+	private static class SliceReader{
+		private final ReadOnlyTextStorage _text;
+		private final SegmentCursor _slice = new SegmentCursor();
+		/** Offset in _text of the first char of _slice */
+		private int _sliceStart = 0;
+
+		SliceReader(ReadOnlyTextStorage text){
+			_text = text;
+		}
+
+		char charAt(int charOffset){
+			int i = charOffset - _sliceStart;
+			if(i < 0 || i >= _slice.count){
+				_text.getSegment(charOffset, Math.min(_text.length() - charOffset,
+						SegmentCursor.MAX_SEGMENT_SIZE), _slice);
+				_sliceStart = charOffset;
+				i = 0;
+			}
+			return _slice.array[_slice.offset + i];
+		}
 	}
 
+	/**
+	 * A range of lines whose rows are to be found, possibly on another
+	 * thread, from a snapshot of the text. See nextWrapChunks()
+	 */
+	public static class WrapChunk{
+		private final TextSnapshot _text;
+		private final int _start;
+		private final int _end;
+		private final RowBreaks _rows = new RowBreaks();
+		private boolean _isAnalyzed = false;
+		/* Updated by the document as it is edited */
+		private int _shift = 0;
+		private boolean _isValid = true;
+
+		WrapChunk(TextSnapshot text, int start, int end){
+			_text = text;
+			_start = start;
+			_end = end;
+		}
 
+		/**
+		 * Finds the rows of the chunk. Can be called from any thread, but
+		 * metrics must not be used by other threads meanwhile.
+		 */
+		public void analyze(TextFieldMetrics metrics){
+			if(hasMinimumWidthForWordWrap(metrics)){
+				findRowBreaks(_text, metrics, _start, _end, _rows);
+				_rows.toLengths(0, _start, _end);
+				_isAnalyzed = true;
+			}
+		}
+	}
 
 	public static interface TextFieldMetrics {
 		/**
@@ -8,7 +8,7 @@
  */
 package com.myopicmobile.textwarrior.common;
 
-import java.util.List;
+import java.io.File;
 
 /**
  * Iterator class to access characters of the underlying text buffer.
@@ -26,6 +26,8 @@ public class DocumentProvider {
 	/** Current position in the text. Range [ 0, _theText.getTextLength() ) */
 	private int _currIndex;
 	private final Document _theText;
+	/** Reused by insertBefore(char) so that typing does not allocate */
+	private final char[] _singleChar = new char[1];
 
 	public DocumentProvider(Document.TextFieldMetrics metrics){
 		_currIndex = 0;
@@ -49,6 +51,52 @@ public class DocumentProvider {
 		return _theText.subSequence(charOffset, maxChars);
 	}
 
+	/**
+	 * Copies the chars in [srcBegin, srcEnd) into dst, starting at dstBegin,
+	 * without allocating memory. srcEnd is clamped to the length of the document.
+	 *
+	 * @return The number of chars copied
+	 */
+	public int getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		return _theText.getChars(srcBegin, srcEnd, dst, dstBegin);
+	}
+
+	/**
+	 * Only SegmentCursor should use this method
+	 */
+	int getSegment(int charOffset, int maxChars, SegmentCursor seg){
+		return _theText.getSegment(charOffset, maxChars, seg);
+	}
+
+	/**
+	 * Returns a DocumentProvider for a read-only snapshot of the document.
+	 * See TextBuffer.snapshot()
+	 */
+	public DocumentProvider snapshot(){
+		return new DocumentProvider(_theText.snapshot());
+	}
+
+	/**
+	 * Called when a snapshot is no longer read. See TextBuffer.release()
+	 */
+	public void release(){
+		_theText.release();
+	}
+
+	/**
+	 * Returns a number that changes every time the document changes
+	 */
+	public int getVersion(){
+		return _theText.getVersion();
+	}
+
+	/**
+	 * Returns a CharSequence view of the document that does not copy the text
+	 */
+	public CharSequence getCharSequence(){
+		return _theText.getCharSequence();
+	}
+
 	public char charAt(int charOffset){
 		if(_theText.isValid(charOffset)){
 			return _theText.charAt(charOffset);
@@ -141,9 +189,9 @@ public class DocumentProvider {
 			return;
 		}
 
-		char[] a = new char[1];
-		a[0] = c;
-		_theText.insert(a, insertionPoint, timestamp, true);
+		// storage engines copy the inserted chars, so the array can be reused
+		_singleChar[0] = c;
+		_theText.insert(_singleChar, insertionPoint, timestamp, true);
 	}
 
 	/**
@@ -184,6 +232,21 @@ public class DocumentProvider {
 		_theText.delete(deletionPoint, totalChars, time, true);
 	}
 
+	/**
+	 * Replaces up to maxChars number of characters starting from
+	 * replacementPoint with all characters in cArray, as a single edit.
+	 * If replacementPoint is invalid, nothing happens.
+	 */
+	public void replaceAt(int replacementPoint, int maxChars, char[] cArray,
+			long time){
+		if(!_theText.isValid(replacementPoint)){
+			return;
+		}
+		int totalChars = Math.max(0,
+				Math.min(maxChars, _theText.getTextLength() - replacementPoint));
+		_theText.replace(replacementPoint, totalChars, cArray, time, true);
+	}
+
 	/**
 	 * Returns true if the underlying text buffer is in batch edit mode
 	 */
@@ -243,35 +306,87 @@ public class DocumentProvider {
 		return _theText.getEOLType();
 	}
 
-	//TODO make thread-safe
 	/**
-	 * Removes spans from the document.
-	 * Beware: Not thread-safe! Another thread may be modifying the same spans
-	 * returned from getSpans()
+	 * Loads the rest of a file that is still being read into the document,
+	 * unless abort is set first. Call this before taking a snapshot that
+	 * must contain the whole file.
+	 */
+	public void finishLoading(Flag abort){
+		_theText.finishLoading(abort);
+	}
+
+	/**
+	 * Returns true if the document is read on demand from file, which
+	 * therefore should not be overwritten in place
+	 */
+	public boolean isMappedFrom(File file){
+		return _theText.isMappedFrom(file);
+	}
+
+	/**
+	 * Returns the number of bytes of memory saved by compact storage
+	 */
+	public int getStorageSavings(){
+		return _theText.getStorageSavings();
+	}
+
+	/**
+	 * Removes spans from the document
 	 */
 	public void clearSpans(){
 		_theText.clearSpans();
 	}
 
 	/**
-	 * Beware: Not thread-safe!
+	 * Beware: the spans are shifted in place by edits, including those made
+	 * by another thread while a file is loaded. See TextBuffer.getSpans()
 	 */
-	public List<Pair> getSpans(){
+	public SpanList getSpans(){
 		return _theText.getSpans();
 	}
 
+	/**
+	 * See TextBuffer.copySpans(int, int)
+	 */
+	public SpanList copySpans(int start, int end){
+		return _theText.copySpans(start, end);
+	}
+
 	/**
 	 * Sets the spans to use in the document.
 	 * Spans are continuous sequences of characters that have the same format
-	 * like color, font, etc.
-	 *
-	 * @param spans A collection of Pairs, where Pair.first is the start
-	 * 		position of the token, and Pair.second is the type of the token.
+	 * like color, font, etc. The spans are shifted as the text is edited
+	 * afterwards.
 	 */
-	public void setSpans(List<Pair> spans){
+	public void setSpans(SpanList spans){
 		_theText.setSpans(spans);
 	}
 
+	/**
+	 * See TextBuffer.copyLexStates(Language)
+	 */
+	public SpanList copyLexStates(Language language){
+		return _theText.copyLexStates(language);
+	}
+
+	public int getLexDirtyStart(){
+		return _theText.getLexDirtyStart();
+	}
+
+	public int getLexDirtyEnd(){
+		return _theText.getLexDirtyEnd();
+	}
+
+	/**
+	 * Splices the spans found by a Lexer into the spans of the document.
+	 * See TextBuffer.applyLexResult(Lexer.LexResult)
+	 *
+	 * @return True if the spans are up to date
+	 */
+	public boolean applyLexResult(Lexer.LexResult result){
+		return _theText.applyLexResult(result);
+	}
+
 	public void setMetrics(Document.TextFieldMetrics metrics){
 		_theText.setMetrics(metrics);
 	}
@@ -297,6 +412,32 @@ public class DocumentProvider {
 		_theText.analyzeWordWrap();
 	}
 
+	/**
+	 * Wraps the rows around charOffset, and estimates the rest.
+	 * See Document.analyzeWordWrap(int, int)
+	 *
+	 * @return True if the rest has to be wrapped by a WordWrapThread
+	 */
+	public boolean analyzeWordWrap(int charOffset, int charCount){
+		return _theText.analyzeWordWrap(charOffset, charCount);
+	}
+
+	public boolean isWordWrapPending(){
+		return _theText.isWordWrapPending();
+	}
+
+	public Document.WrapChunk[] nextWrapChunks(int maxCount)
+			throws InterruptedException{
+		return _theText.nextWrapChunks(maxCount);
+	}
+
+	/**
+	 * @return True if the rows of the document changed
+	 */
+	public boolean applyWrapChunk(Document.WrapChunk chunk){
+		return _theText.applyWrapChunk(chunk);
+	}
+
 	public boolean canUndo() {
 		return _theText.canUndo();
 	}
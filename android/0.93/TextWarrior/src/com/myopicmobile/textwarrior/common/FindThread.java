@@ -22,7 +22,17 @@ public class FindThread extends Thread implements ProgressSource{
 	protected Vector<ProgressObserver> _progressObservers =
 		new Vector<ProgressObserver>();
 
-	final private SearchStrategy FINDER = new LinearSearchStrategy();
+	final private SearchStrategy FINDER;
+
+	/**
+	 * Boyer-Moore-Horspool skips chars of the text only when searchText has
+	 * more than one char, so single chars are compared one at a time
+	 */
+	static private SearchStrategy createSearchStrategy(String searchText){
+		return (searchText.length() >= HorspoolSearchStrategy.MIN_TARGET_LENGTH)
+				? new HorspoolSearchStrategy()
+				: new LinearSearchStrategy();
+	}
 
 	static public FindThread createFindThread(DocumentProvider src,
 			String searchText, int start, boolean isForwardSearch,
@@ -38,9 +48,13 @@ public class FindThread extends Thread implements ProgressSource{
 			String searchText, int start,
 			boolean isCaseSensitive, boolean isWholeWord){
 		_requestCode = requestCode;
+        // a snapshot is searched, so that the text can be edited meanwhile.
+        // It is taken in run(), once the whole file is loaded.
         _src = src;
+        _isSnapshotSearched = true;
         _start = start;
         _searchText = searchText;
+        FINDER = createSearchStrategy(searchText);
         _isCaseSensitive = isCaseSensitive;
         _isWholeWord = isWholeWord;
         _docSize = src.docLength();
@@ -66,6 +80,7 @@ public class FindThread extends Thread implements ProgressSource{
         _src = src;
         _start = start;
         _searchText = searchText;
+        FINDER = createSearchStrategy(searchText);
         _replacementText = replacementText;
         _isCaseSensitive = isCaseSensitive;
         _isWholeWord = isWholeWord;
@@ -75,7 +90,14 @@ public class FindThread extends Thread implements ProgressSource{
 	@Override
 	public void run(){
 		_isDone = false;
+		// the search cannot be stopped yet, so neither can loading. See forceStop()
+		_src.finishLoading(new Flag());
+		_docSize = _src.docLength();
+		if(_isSnapshotSearched){
+			_src = _src.snapshot();
+		}
 		_results = new FindResults(_searchText.length());
+		_results.version = _src.getVersion();
 
 		switch(_requestCode){
 		case ProgressSource.FIND:
@@ -112,12 +134,16 @@ public class FindThread extends Thread implements ProgressSource{
 			TextWarriorException.fail("Invalid request code for FindThread");
 			break;
 		}
+		// does nothing if the document itself was searched
+		_src.release();
 	}
 
 
 	/** Reported progress will be scaled from 0 to MAX_PROGRESS */
 	private final static int MAX_PROGRESS = 100;
 	private int _docSize = 0; // size, in chars, of the document to search
+	/** Whether a snapshot of the document is searched instead of the document */
+	private boolean _isSnapshotSearched = false;
 
 	@Override
 	public final int getMin(){
@@ -185,6 +211,8 @@ public class FindThread extends Thread implements ProgressSource{
 		public int replacementCount = 0;
 		public int newStartPosition = 0;
 		public int searchTextLength = 0; //for convenience
+		/** Version of the document that was searched. See DocumentProvider.getVersion() */
+		public int version = 0;
 
 		public FindResults(int searchLength){
 			searchTextLength = searchLength;
@@ -0,0 +1,551 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * The default storage engine of TextBuffer. All characters are kept in a
+ * single array with a gap at the last edit point, which makes consecutive
+ * edits at the same location cheap.
+ *
+ * Snapshots share the array with the buffer. The buffer copies the array
+ * before it next writes to the array outside the gap of the snapshots that
+ * are still live, so typing at the same location after a snapshot is taken
+ * copies nothing, and once the snapshots are released nothing is copied.
+ *
+ * Line lookups use a LineIndex, which is updated on every edit. For
+ * benchmarking, the engine can be created to use the old scheme instead,
+ * where lookups scan the text from the nearest entry in a TextBufferCache.
+ */
+//TODO Have all methods work with charOffsets and move all gap handling to logicalToRealIndex()
+public class GapBuffer implements TextStorage {
+	// gap size must be > 0 to insert into full buffers successfully
+	protected final static int MIN_GAP_SIZE = 50;
+	protected char[] _contents;
+	protected int _gapStartIndex;
+	/** One past end of gap */
+	protected int _gapEndIndex;
+	protected int _lineCount;
+	/** The number of times memory is allocated for the buffer */
+	private int _allocMultiplier;
+	private TextBufferCache _cache;
+	/** null if the TextBufferCache is used for line lookups */
+	private LineIndex _lineIndex;
+	/** The live snapshots that share _contents */
+	private final SnapshotSet _snapshots = new SnapshotSet();
+
+	public GapBuffer(){
+		this(true);
+	}
+
+	/**
+	 * @param useLineIndex Whether line lookups use a LineIndex instead of
+	 * 		scanning from the entries of a TextBufferCache
+	 */
+	public GapBuffer(boolean useLineIndex){
+		_contents = new char[MIN_GAP_SIZE + 1]; // extra char for EOF
+		_contents[MIN_GAP_SIZE] = Language.EOF;
+		_allocMultiplier = 1;
+		_gapStartIndex = 0;
+		_gapEndIndex = MIN_GAP_SIZE;
+		_lineCount = 1;
+		_cache = new TextBufferCache();
+		_lineIndex = useLineIndex ? new LineIndex() : null;
+	}
+
+	public boolean isUsingLineIndex(){
+		return _lineIndex != null;
+	}
+
+	/**
+	 * Calculate the implementation size of the char array needed to store
+	 * textSize number of characters.
+	 *
+	 * @return The size, measured in number of chars, required by the
+	 * 		implementation to store textSize characters, or -1 if the request
+	 * 		cannot be satisfied
+	 */
+	public static int memoryNeeded(int textSize){
+		long bufferSize = textSize + MIN_GAP_SIZE + 1; // extra char for EOF
+		if(bufferSize < Integer.MAX_VALUE){
+			return (int) bufferSize;
+		}
+		return -1;
+	}
+
+	@Override
+	public void setContents(char[] newBuffer, int textSize, int lineCount){
+		if(_lineIndex != null){
+			_lineIndex.setContents(newBuffer, textSize, lineCount);
+		}
+		_contents = newBuffer;
+		_snapshots.clear();
+		initGap(textSize);
+		_lineCount = lineCount;
+		_allocMultiplier = 1;
+		_cache = new TextBufferCache();
+	}
+
+	@Override
+	public int getLineOffset(int lineNumber){
+		if(lineNumber < 0){
+			return -1;
+		}
+		if(_lineIndex != null){
+			return _lineIndex.getLineOffset(lineNumber);
+		}
+
+		// start search from nearest known lineIndex~charOffset pair
+		Pair cachedEntry = _cache.getNearestLine(lineNumber);
+		int cachedLine = cachedEntry.getFirst();
+		int cachedOffset = cachedEntry.getSecond();
+
+		int offset;
+		if (lineNumber > cachedLine){
+			offset = findCharOffset(lineNumber, cachedLine, cachedOffset);
+		}
+		else if (lineNumber < cachedLine){
+			offset = findCharOffsetBackward(lineNumber, cachedLine, cachedOffset);
+		}
+		else{
+			offset = cachedOffset;
+		}
+
+		if (offset >= 0){
+			// seek successful
+			_cache.updateEntry(lineNumber, offset);
+		}
+
+		return offset;
+	}
+
+	/*
+	 * Precondition: startOffset is the offset of startLine
+	 */
+	private int findCharOffset(int targetLine, int startLine, int startOffset){
+		int workingLine = startLine;
+		int offset = logicalToRealIndex(startOffset);
+
+		TextWarriorException.assertVerbose(isValid(startOffset),
+			"findCharOffsetBackward: Invalid startingOffset given");
+
+		while((workingLine < targetLine) && (offset < _contents.length)){
+			if (_contents[offset] == Language.NEWLINE){
+				++workingLine;
+			}
+			++offset;
+
+			// skip the gap
+			if(offset == _gapStartIndex){
+				offset = _gapEndIndex;
+			}
+		}
+
+		if (workingLine != targetLine){
+			return -1;
+		}
+		return realToLogicalIndex(offset);
+	}
+
+	/*
+	 * Precondition: startOffset is the offset of startLine
+	 */
+	private int findCharOffsetBackward(int targetLine, int startLine, int startOffset){
+		if (targetLine == 0){
+			return 0;
+		}
+
+		TextWarriorException.assertVerbose(isValid(startOffset),
+			"findCharOffsetBackward: Invalid startOffset given");
+
+		int workingLine = startLine;
+		int offset = logicalToRealIndex(startOffset);
+		while(workingLine > (targetLine-1) && offset >= 0){
+			// skip behind the gap
+			if(offset == _gapEndIndex){
+				offset = _gapStartIndex;
+			}
+			--offset;
+
+			if (_contents[offset] == Language.NEWLINE){
+				--workingLine;
+			}
+
+		}
+
+		int charOffset;
+		if (offset >= 0){
+			// now at the '\n' of the line before targetLine
+			charOffset = realToLogicalIndex(offset);
+			++charOffset;
+		}
+		else{
+			TextWarriorException.assertVerbose(false,
+				"findCharOffsetBackward: Invalid cache entry or line arguments");
+			charOffset = -1;
+		}
+
+		return charOffset;
+	}
+
+	@Override
+	public int findLineNumber(int charOffset){
+		if(!isValid(charOffset)){
+			return -1;
+		}
+		if(_lineIndex != null){
+			return _lineIndex.findLineNumber(charOffset);
+		}
+
+		Pair cachedEntry = _cache.getNearestCharOffset(charOffset);
+		int line = cachedEntry.getFirst();
+		int offset = logicalToRealIndex(cachedEntry.getSecond());
+		int targetOffset = logicalToRealIndex(charOffset);
+		int lastKnownLine = -1;
+		int lastKnownCharOffset = -1;
+
+		if (targetOffset > offset){
+			// search forward
+			while((offset < targetOffset) && (offset < _contents.length)){
+				if (_contents[offset] == Language.NEWLINE){
+					++line;
+					lastKnownLine = line;
+					lastKnownCharOffset = realToLogicalIndex(offset) + 1;
+				}
+
+				++offset;
+				// skip the gap
+				if(offset == _gapStartIndex){
+					offset = _gapEndIndex;
+				}
+			}
+		}
+		else if (targetOffset < offset){
+			// search backward
+			while((offset > targetOffset) && (offset > 0)){
+				// skip behind the gap
+				if(offset == _gapEndIndex){
+					offset = _gapStartIndex;
+				}
+				--offset;
+
+				if (_contents[offset] == Language.NEWLINE){
+					lastKnownLine = line;
+					lastKnownCharOffset = realToLogicalIndex(offset) + 1;
+					--line;
+				}
+			}
+		}
+
+
+		if (offset == targetOffset){
+			if(lastKnownLine != -1){
+				// cache the lookup entry
+				_cache.updateEntry(lastKnownLine, lastKnownCharOffset);
+			}
+			return line;
+		}
+		else{
+			return -1;
+		}
+	}
+
+	@Override
+	public char charAt(int charOffset){
+		return _contents[logicalToRealIndex(charOffset)];
+	}
+
+	@Override
+	public char[] subSequence(int charOffset, int totalChars){
+		char[] chars = new char[totalChars];
+		getChars(charOffset, charOffset + totalChars, chars, 0);
+		return chars;
+	}
+
+	@Override
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		int start = srcBegin;
+		int destOffset = dstBegin;
+		if(start < _gapStartIndex){
+			int count = Math.min(srcEnd, _gapStartIndex) - start;
+			System.arraycopy(_contents, start, dst, destOffset, count);
+			start += count;
+			destOffset += count;
+		}
+		if(start < srcEnd){
+			// the rest of the range is after the gap
+			System.arraycopy(_contents, start + gapSize(), dst, destOffset,
+					srcEnd - start);
+		}
+	}
+
+	@Override
+	public void getSegment(int charOffset, int maxChars, SegmentCursor seg){
+		if(charOffset < _gapStartIndex){
+			seg.set(_contents, charOffset,
+					Math.min(maxChars, _gapStartIndex - charOffset));
+		}
+		else{
+			int realIndex = charOffset + gapSize();
+			seg.set(_contents, realIndex,
+					Math.min(maxChars, _contents.length - realIndex));
+		}
+	}
+
+	@Override
+	public TextSnapshot snapshot(){
+		TextSnapshot snapshot = new TextSnapshot.ArraySnapshot(_contents,
+				_gapStartIndex, _gapEndIndex);
+		_snapshots.add(snapshot, _gapStartIndex, _gapEndIndex);
+		return snapshot;
+	}
+
+	/**
+	 * Copies _contents if it is shared with live snapshots and the
+	 * positions [start, end) of it are about to be written to outside the
+	 * gap of one of them.
+	 *
+	 * The whole array is copied, gap included, because UndoStack reads
+	 * deleted chars back from the gap.
+	 */
+	private void prepareWrite(int start, int end){
+		if(!_snapshots.canWrite(start, end)){
+			_contents = _contents.clone();
+			_snapshots.clear();
+		}
+	}
+
+	/**
+	 * Copies charCount number of consecutive characters starting from
+	 * _gapStartIndex into dst, starting at dstBegin.
+	 *
+	 * Only UndoStack should use this method. No error checking is done.
+	 */
+	void getGapChars(int charCount, char[] dst, int dstBegin){
+		System.arraycopy(_contents, _gapStartIndex, dst, dstBegin, charCount);
+	}
+
+	@Override
+	public void insert(char[] c, int charOffset){
+		int insertIndex = logicalToRealIndex(charOffset);
+
+		// shift gap to insertion point
+		if (insertIndex != _gapEndIndex){
+			if (isBeforeGap(insertIndex)){
+				shiftGapLeft(insertIndex);
+			}
+			else{
+				shiftGapRight(insertIndex);
+			}
+		}
+
+		if(c.length >= gapSize()){
+			growBufferBy(c.length - gapSize());
+		}
+
+		prepareWrite(_gapStartIndex, _gapStartIndex + c.length);
+		for (int i = 0; i < c.length; ++i){
+			if(c[i] == Language.NEWLINE){
+				++_lineCount;
+			}
+			_contents[_gapStartIndex] = c[i];
+			++_gapStartIndex;
+		}
+
+		if(_lineIndex != null){
+			_lineIndex.insert(c, 0, c.length, charOffset);
+		}
+		_cache.invalidateCache(charOffset);
+	}
+
+	@Override
+	public void delete(int charOffset, int totalChars){
+		int newGapStart = charOffset + totalChars;
+
+		// shift gap to deletion point
+		if (newGapStart != _gapStartIndex){
+			if (isBeforeGap(newGapStart)){
+				shiftGapLeft(newGapStart);
+			}
+			else{
+				shiftGapRight(newGapStart + gapSize());
+			}
+		}
+
+		// increase gap size
+		for(int i = 0; i < totalChars; ++i){
+			--_gapStartIndex;
+			if(_contents[_gapStartIndex] == Language.NEWLINE){
+				--_lineCount;
+			}
+		}
+
+		if(_lineIndex != null){
+			_lineIndex.delete(charOffset, totalChars);
+		}
+		_cache.invalidateCache(charOffset);
+	}
+
+	/**
+	 * Moves _gapStartIndex by displacement units. Note that displacement can be
+	 * negative and will move _gapStartIndex to the left.
+	 *
+	 * Only UndoStack should use this method to carry out a simple undo/redo
+	 * of insertions/deletions. No error checking is done.
+	 */
+	void shiftGapStart(int displacement){
+		if(displacement >= 0){
+			_lineCount += countNewlines(_gapStartIndex, displacement);
+			if(_lineIndex != null){
+				// chars before the gap have the same logical and real index
+				_lineIndex.insert(_contents, _gapStartIndex, displacement, _gapStartIndex);
+			}
+		}
+		else{
+			_lineCount -= countNewlines(_gapStartIndex + displacement, -displacement);
+			if(_lineIndex != null){
+				_lineIndex.delete(_gapStartIndex + displacement, -displacement);
+			}
+		}
+
+		_gapStartIndex += displacement;
+		_cache.invalidateCache(realToLogicalIndex(_gapStartIndex - 1) + 1);
+	}
+
+	/**
+	 * Returns the offset of the first character after the gap.
+	 * The gap starts at the point of the last edit.
+	 */
+	final int getGapStart(){
+		return _gapStartIndex;
+	}
+
+	//does NOT skip the gap when examining consecutive positions
+	private int countNewlines(int start, int totalChars){
+		int newlines = 0;
+		for(int i = start; i < (start + totalChars); ++i){
+			if(_contents[i] == Language.NEWLINE){
+				++newlines;
+			}
+		}
+
+		return newlines;
+	}
+
+	/**
+	 * Adjusts gap so that _gapStartIndex is at newGapStart
+	 */
+	final protected void shiftGapLeft(int newGapStart){
+		if(_gapStartIndex > newGapStart){
+			prepareWrite(newGapStart + gapSize(), _gapEndIndex);
+		}
+		while(_gapStartIndex > newGapStart){
+			--_gapEndIndex;
+			--_gapStartIndex;
+			_contents[_gapEndIndex] = _contents[_gapStartIndex];
+		}
+	}
+
+	/**
+	 * Adjusts gap so that _gapEndIndex is at newGapEnd
+	 */
+	final protected void shiftGapRight(int newGapEnd){
+		if(_gapEndIndex < newGapEnd){
+			prepareWrite(_gapStartIndex, newGapEnd - gapSize());
+		}
+		while(_gapEndIndex < newGapEnd){
+			_contents[_gapStartIndex] = _contents[_gapEndIndex];
+			++_gapStartIndex;
+			++_gapEndIndex;
+		}
+	}
+
+	/**
+	 * Create a gap at the start of _contents[] and tack a EOF at the end.
+	 * Precondition: real contents are from _contents[0] to _contents[contentsLength-1]
+	 */
+	protected void initGap(int contentsLength){
+		int toPosition = _contents.length - 1;
+		_contents[toPosition--] = Language.EOF; // mark end of file
+		int fromPosition = contentsLength - 1;
+		while(fromPosition >= 0){
+			_contents[toPosition--] = _contents[fromPosition--];
+		}
+		_gapStartIndex = 0;
+		_gapEndIndex = toPosition + 1; // went one-past in the while loop
+	}
+
+	/**
+	 * Copies _contents into a buffer that is larger by
+	 * 		minIncrement + INITIAL_GAP_SIZE * _allocCount bytes.
+	 *
+	 * _allocMultiplier doubles on every call to this method, to avoid the
+	 * overhead of repeated allocations.
+	 */
+	protected void growBufferBy(int minIncrement){
+		//TODO handle new size > MAX_INT or allocation failure
+		int increasedSize = minIncrement + MIN_GAP_SIZE * _allocMultiplier;
+		char[] temp = new char[_contents.length + increasedSize];
+		int i = 0;
+		while(i < _gapStartIndex){
+			temp[i] = _contents[i];
+			++i;
+		}
+
+		i = _gapEndIndex;
+		while(i < _contents.length){
+			temp[i + increasedSize] = _contents[i];
+			++i;
+		}
+
+		_gapEndIndex += increasedSize;
+		_contents = temp;
+		_snapshots.clear();
+		_allocMultiplier <<= 1;
+	}
+
+	@Override
+	final public int length(){
+		return _contents.length - gapSize();
+	}
+
+	@Override
+	public int getLineCount(){
+		return _lineCount;
+	}
+
+	final protected boolean isValid(int charOffset){
+		return (charOffset >= 0 && charOffset < length());
+	}
+
+	final protected int gapSize(){
+		return _gapEndIndex - _gapStartIndex;
+	}
+
+	final protected int logicalToRealIndex(int i){
+		if (isBeforeGap(i)){
+			return i;
+		}
+		else{
+			return i + gapSize();
+		}
+	}
+
+	final protected int realToLogicalIndex(int i){
+		if (isBeforeGap(i)){
+			return i;
+		}
+		else{
+			return i - gapSize();
+		}
+	}
+
+	final protected boolean isBeforeGap(int i){
+		return i < _gapStartIndex;
+	}
+}
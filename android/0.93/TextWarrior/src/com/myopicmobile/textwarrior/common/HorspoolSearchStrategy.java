@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.Arrays;
+
+/**
+ * Finds text with the Boyer-Moore-Horspool algorithm. The char at the end
+ * of each window of the text that is compared with the target decides how
+ * far the window can skip ahead, so most chars of the text are never read
+ * when the target is long.
+ *
+ * The text is scanned directly in the slices given out by a SegmentCursor.
+ * Only windows that cross from one slice into the next are copied, into a
+ * buffer of less than twice the length of the target.
+ *
+ * The skip table is indexed by the low byte of a char, and holds the
+ * smallest skip of all chars with that low byte.
+ */
+public class HorspoolSearchStrategy extends LinearSearchStrategy{
+	/** Targets shorter than this cannot skip any chars */
+	public final static int MIN_TARGET_LENGTH = 2;
+	private final static int SKIP_TABLE_SIZE = 256;
+	/** Number of windows searched at a time by findBackwards(), since the
+	 * text can only be read forwards */
+	private final static int BACKWARDS_BLOCK_SIZE = 64 * 1024;
+
+	private final SegmentCursor _scanSegments = new SegmentCursor();
+	private final int[] _skips = new int[SKIP_TABLE_SIZE];
+	/** Holds windows that cross slices */
+	private char[] _crossing = new char[0];
+	/** The target being searched for, in lower case if case-insensitive */
+	private char[] _target;
+	private boolean _isCaseSensitive;
+	private boolean _isWholeWord;
+
+	@Override
+	public int find(DocumentProvider src, String target, int start, int end,
+			boolean isCaseSensitive, boolean isWholeWord) {
+		if(target.length() == 0){
+			return -1;
+		}
+		if(start < 0){
+			TextWarriorException.fail("TextBuffer.find: Invalid start position");
+			start = 0;
+		}
+		if(end > src.docLength()){
+			TextWarriorException.fail("TextBuffer.find: Invalid end position");
+			end = src.docLength();
+		}
+
+		end = Math.min(end, src.docLength() - target.length() + 1);
+		if(start >= end){
+			return -1;
+		}
+		setTarget(target, isCaseSensitive, isWholeWord);
+
+		// skip by the distance from the last occurrence of the char in the
+		// target, excluding its last char, to the end of the target
+		final int m = _target.length;
+		Arrays.fill(_skips, m);
+		for(int i = 0; i < m - 1; ++i){
+			_skips[_target[i] & 0xFF] = m - 1 - i;
+		}
+
+		int foundOffset = -1;
+		_scanSegments.seek(src, start, end + m - 1);
+		while(foundOffset < 0 && _scanSegments.next()){
+			foundOffset = findInSegment(src, start, end, false);
+		}
+		// like LinearSearchStrategy, count the offsets passed over
+		_unitsDone += ((foundOffset >= 0) ? foundOffset : end) - start;
+		return foundOffset;
+	}
+
+	@Override
+	public int findBackwards(DocumentProvider src, String target, int start, int end,
+			boolean isCaseSensitive, boolean isWholeWord) {
+		if(target.length() == 0){
+			return -1;
+		}
+		if(start >= src.docLength()){
+			TextWarriorException.fail("Invalid start position given to TextBuffer.find");
+			start = src.docLength() - 1;
+		}
+		if(end < -1){
+			TextWarriorException.fail("Invalid end position given to TextBuffer.find");
+			end = -1;
+		}
+		setTarget(target, isCaseSensitive, isWholeWord);
+
+		// skip by the distance from the start of the target to the first
+		// occurrence of the char in the target, excluding its first char
+		final int m = _target.length;
+		Arrays.fill(_skips, m);
+		for(int i = m - 1; i > 0; --i){
+			_skips[_target[i] & 0xFF] = i;
+		}
+
+		// windows that start in [first, last] are searched
+		final int first = end + 1;
+		final int last = Math.min(start, src.docLength() - m);
+		for(int blockEnd = last + 1; blockEnd > first; blockEnd -= BACKWARDS_BLOCK_SIZE){
+			int blockStart = Math.max(first, blockEnd - BACKWARDS_BLOCK_SIZE);
+
+			// the last match in the block is in the last slice with a match
+			int foundOffset = -1;
+			_scanSegments.seek(src, blockStart, blockEnd + m - 1);
+			while(_scanSegments.next()){
+				int offset = findInSegment(src, blockStart, blockEnd, true);
+				if(offset >= 0){
+					foundOffset = offset;
+				}
+			}
+			if(foundOffset >= 0){
+				return foundOffset;
+			}
+		}
+		return -1;
+	}
+
+	private void setTarget(String target, boolean isCaseSensitive, boolean isWholeWord){
+		_target = target.toCharArray();
+		if(!isCaseSensitive){
+			for(int i = 0; i < _target.length; ++i){
+				_target[i] = toLowerCase(_target[i]);
+			}
+		}
+		_isCaseSensitive = isCaseSensitive;
+		_isWholeWord = isWholeWord;
+
+		if(_crossing.length < 2 * _target.length){
+			_crossing = new char[2 * _target.length];
+		}
+	}
+
+	/**
+	 * Searches the windows that start in the current slice of _scanSegments
+	 * and in [start, end). Windows that fit in the slice are searched in
+	 * the slice itself, and the rest in a copy of the text.
+	 *
+	 * @return Offset of the first match, or of the last match if isBackwards,
+	 * 		or -1 if there is none
+	 */
+	private int findInSegment(DocumentProvider src, int start, int end,
+			boolean isBackwards){
+		final int m = _target.length;
+		final int sliceStart = _scanSegments.getPosition();
+		final int sliceEnd = sliceStart + _scanSegments.count;
+		final int delta = _scanSegments.offset - sliceStart;
+
+		int insideStart = Math.max(start, sliceStart);
+		int insideEnd = Math.min(end, sliceEnd - m + 1);
+		int crossingStart = Math.max(insideStart, insideEnd);
+		int crossingEnd = Math.min(end, sliceEnd);
+
+		// the slice is searched before the copy is made, since copying may
+		// reuse the array of the slice
+		int foundOffset = -1;
+		if(insideStart < insideEnd){
+			foundOffset = isBackwards
+					? findBackwardsIn(src, _scanSegments.array, delta, insideStart, insideEnd)
+					: findIn(src, _scanSegments.array, delta, insideStart, insideEnd);
+		}
+		if(crossingStart < crossingEnd && (isBackwards || foundOffset < 0)){
+			// crossing windows come after the windows inside the slice
+			int offset = findInCopy(src, crossingStart, crossingEnd, isBackwards);
+			if(offset >= 0){
+				foundOffset = offset;
+			}
+		}
+		return foundOffset;
+	}
+
+	/**
+	 * Searches the windows that start in [start, end) in a copy of the text
+	 */
+	private int findInCopy(DocumentProvider src, int start, int end,
+			boolean isBackwards){
+		src.getChars(start, end + _target.length - 1, _crossing, 0);
+		return isBackwards
+				? findBackwardsIn(src, _crossing, -start, start, end)
+				: findIn(src, _crossing, -start, start, end);
+	}
+
+	/**
+	 * Returns the offset of the first match that starts in [start, end),
+	 * or -1 if there is none. The char at offset i of src is chars[i + delta].
+	 */
+	private int findIn(DocumentProvider src, char[] chars, int delta,
+			int start, int end){
+		final char[] target = _target;
+		final int[] skips = _skips;
+		final int last = target.length - 1;
+		final char lastChar = target[last];
+		final int windowEnd = end + delta;
+
+		int i = start + delta;
+		while(i < windowEnd){
+			char c = chars[i + last];
+			if(!_isCaseSensitive){
+				c = toLowerCase(c);
+			}
+			if(c == lastChar && matches(src, chars, i, i - delta)){
+				return i - delta;
+			}
+			i += skips[c & 0xFF];
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the offset of the last match that starts in [start, end),
+	 * or -1 if there is none. The char at offset i of src is chars[i + delta].
+	 */
+	private int findBackwardsIn(DocumentProvider src, char[] chars, int delta,
+			int start, int end){
+		final char[] target = _target;
+		final int[] skips = _skips;
+		final char firstChar = target[0];
+		final int windowStart = start + delta;
+
+		int i = end - 1 + delta;
+		while(i >= windowStart){
+			char c = chars[i];
+			if(!_isCaseSensitive){
+				c = toLowerCase(c);
+			}
+			if(c == firstChar && matches(src, chars, i, i - delta)){
+				return i - delta;
+			}
+			i -= skips[c & 0xFF];
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares the target with the window of chars starting at index, which
+	 * is at offset of src
+	 */
+	private boolean matches(DocumentProvider src, char[] chars, int index,
+			int offset){
+		final char[] target = _target;
+		for(int j = 0; j < target.length; ++j){
+			char c = chars[index + j];
+			if(!_isCaseSensitive){
+				c = toLowerCase(c);
+			}
+			if(c != target[j]){
+				return false;
+			}
+		}
+		return !_isWholeWord || isSandwichedByWhitespace(src, offset, target.length);
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.HashSet;
+
+/**
+ * A fixed set of keywords that can be matched against slices of char arrays
+ * without allocating a String for every word.
+ *
+ * The keywords are stored in a perfect hash table: the table size and the
+ * multiplier of the hash function are searched for when the set is built, so
+ * that no two keywords hash to the same slot. A lookup hashes the word once,
+ * and compares it with the only keyword it can be.
+ */
+final class KeywordSet {
+	private final static int MIN_BITS = 4;
+	/** Multipliers tried for each table size before the table is enlarged */
+	private final static int SEEDS_PER_SIZE = 32;
+
+	private char[][] _table;
+	private int _seed;
+	private int _shift;
+
+	KeywordSet(String[] keywords){
+		HashSet<String> unique = new HashSet<String>(keywords.length);
+		for(String keyword : keywords){
+			unique.add(keyword);
+		}
+		char[][] words = new char[unique.size()][];
+		int i = 0;
+		for(String keyword : unique){
+			words[i++] = keyword.toCharArray();
+		}
+
+		int bits = MIN_BITS;
+		while((1 << bits) < 2 * words.length){
+			++bits;
+		}
+		int seed = 0x9E3779B9;
+		for(int tries = 1; !build(words, bits, seed); ++tries){
+			seed = nextSeed(seed);
+			if(tries % SEEDS_PER_SIZE == 0){
+				++bits;
+			}
+		}
+	}
+
+	/**
+	 * Fills a table of 2^bits slots with words, hashed with seed.
+	 *
+	 * @return False if two words hash to the same slot
+	 */
+	private boolean build(char[][] words, int bits, int seed){
+		char[][] table = new char[1 << bits][];
+		int shift = 32 - bits;
+		for(char[] word : words){
+			int slot = hash(word, 0, word.length, seed) >>> shift;
+			if(table[slot] != null){
+				return false;
+			}
+			table[slot] = word;
+		}
+		_table = table;
+		_seed = seed;
+		_shift = shift;
+		return true;
+	}
+
+	private static int nextSeed(int seed){
+		// odd multipliers from a linear congruential sequence
+		return (seed * 1664525 + 1013904223) | 1;
+	}
+
+	private static int hash(char[] chars, int offset, int length, int seed){
+		int h = length;
+		for(int i = offset; i < offset + length; ++i){
+			h = (h ^ chars[i]) * seed;
+		}
+		return (h ^ (h >>> 16)) * seed;
+	}
+
+	/**
+	 * Returns true if chars[offset, offset + length) is a keyword
+	 */
+	public boolean contains(char[] chars, int offset, int length){
+		char[] keyword = _table[hash(chars, offset, length, _seed) >>> _shift];
+		if(keyword == null || keyword.length != length){
+			return false;
+		}
+		for(int i = 0; i < length; ++i){
+			if(keyword[i] != chars[offset + i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean contains(String s){
+		char[] chars = s.toCharArray();
+		return contains(chars, 0, chars.length);
+	}
+}
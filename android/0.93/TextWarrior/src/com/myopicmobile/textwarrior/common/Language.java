@@ -8,13 +8,15 @@
  */
 package com.myopicmobile.textwarrior.common;
 
-import java.util.HashMap;
-
 /**
- * Base class for programming language syntax.
- * By default, C-like symbols and operators are included, but not keywords.
+ * Programming language syntax, made from a LanguageSpec.
+ *
+ * The spec is compiled once, when the language is made, into a KeywordSet
+ * and a LexerTable, which the Lexer uses instead of the predicates here.
+ * A new language only needs a spec; subclasses just hold the spec of a
+ * built-in language and its singleton instance.
  */
-public abstract class Language {
+public class Language {
 	public final static char EOF = '\uFFFF';
 	public final static char NULL_CHAR = '\u0000';
 	public final static char NEWLINE = '\n';
@@ -25,44 +27,78 @@ public abstract class Language {
 	public final static String GLYPH_TAB = "\u00bb";
 
 
-	private final static char[] BASIC_C_OPERATORS = {
-		'(', ')', '{', '}', '.', ',', ';', '=', '+', '-',
-		'/', '*', '&', '!', '|', ':', '[', ']', '<', '>',
-		'?', '~', '%', '^'
-	};
-
-
-	protected HashMap<String, Integer> _keywords = new HashMap<String, Integer>(0);
-	protected HashMap<Character, Integer> _operators = generateOperators(BASIC_C_OPERATORS);
-
-	protected void setKeywords(String[] keywords){
-		_keywords = new HashMap<String, Integer>(keywords.length);
-		for(int i = 0; i < keywords.length; ++i){
-			_keywords.put(keywords[i], Lexer.KEYWORD);
-		}
+	private final KeywordSet _keywords;
+	private final LexerTable _lexerTable;
+	private final char _lineComment0;
+	private final char _lineComment1;
+	private final char _multilineStart0;
+	private final char _multilineStart1;
+	private final char _multilineEnd0;
+	private final char _multilineEnd1;
+	private final char _delimiterA;
+	private final char _delimiterB;
+	private final char _lineAStart;
+	private final char _lineBStart;
+	private final char _wordStart;
+	private final char _escapeChar;
+	private final boolean _isProgLang;
+
+	public Language(LanguageSpec spec){
+		_keywords = new KeywordSet(spec.getKeywords());
+		_lexerTable = new LexerTable(spec);
+		_lineComment0 = spec.getLineComment(0);
+		_lineComment1 = spec.getLineComment(1);
+		_multilineStart0 = spec.getMultilineStart(0);
+		_multilineStart1 = spec.getMultilineStart(1);
+		_multilineEnd0 = spec.getMultilineEnd(0);
+		_multilineEnd1 = spec.getMultilineEnd(1);
+		_delimiterA = spec.getDelimiterA();
+		_delimiterB = spec.getDelimiterB();
+		_lineAStart = spec.getLineAStart();
+		_lineBStart = spec.getLineBStart();
+		_wordStart = spec.getWordStart();
+		_escapeChar = spec.getEscapeChar();
+		_isProgLang = spec.isProgLang();
 	}
 
-	protected void setOperators(char[] operators){
-		_operators = generateOperators(operators);
+	/**
+	 * Returns the state machine of the lexer for this language
+	 */
+	final LexerTable getLexerTable(){
+		return _lexerTable;
 	}
 
-	private HashMap<Character, Integer> generateOperators(char[] operators){
-		HashMap<Character, Integer> operatorsMap = new HashMap<Character, Integer>(operators.length);
-		for(int i = 0; i < operators.length; ++i){
-			operatorsMap.put(operators[i], Lexer.OPERATOR);
-		}
-		return operatorsMap;
+	/**
+	 * Returns true if c is the symbol s, which is not NULL_CHAR
+	 */
+	private static boolean isSymbol(char c, char s){
+		return c == s && s != NULL_CHAR;
 	}
 
 	public final boolean isOperator(char c){
-		return _operators.containsKey(Character.valueOf(c));
+		return _lexerTable.isOperator(c);
+	}
+
+	/**
+	 * Returns true if c is whitespace or an operator, either of which ends
+	 * a word
+	 */
+	public final boolean isWordSeparator(char c){
+		return _lexerTable.isWordSeparator(c);
 	}
 
 	public final boolean isKeyword(String s){
-		return _keywords.containsKey(s);
+		return _keywords.contains(s);
+	}
+
+	/**
+	 * Returns true if chars[offset, offset + length) is a keyword
+	 */
+	public final boolean isKeyword(char[] chars, int offset, int length){
+		return _keywords.contains(chars, offset, length);
 	}
 
-	public boolean isWhitespace(char c){
+	public final boolean isWhitespace(char c){
 		return (c == ' ' || c == '\n'|| c == '\t' ||
 			c == '\r' || c == '\f' || c == EOF);
 	}
@@ -71,73 +107,73 @@ public abstract class Language {
 		return (c == '.');
 	}
 
-	public boolean isEscapeChar(char c){
-		return (c == '\\');
+	public final boolean isEscapeChar(char c){
+		return isSymbol(c, _escapeChar);
 	}
 
 	/**
-	 * Derived classes that do not do represent C-like programming languages
-	 * should return false; otherwise return true
+	 * Languages that do not represent C-like programming languages return
+	 * false; otherwise return true
 	 */
-	public boolean isProgLang(){
-		return true;
+	public final boolean isProgLang(){
+		return _isProgLang;
 	}
 
 	/**
 	 * Whether the word after c is a token
 	 */
-	public boolean isWordStart(char c){
-		return false;
+	public final boolean isWordStart(char c){
+		return isSymbol(c, _wordStart);
 	}
 
 	/**
 	 * Whether cSc is a token, where S is a sequence of characters that are on the same line
 	 */
-	public boolean isDelimiterA(char c){
-		return (c == '"');
+	public final boolean isDelimiterA(char c){
+		return isSymbol(c, _delimiterA);
 	}
 
 	/**
-	 * Same concept as isDelimiterA(char), but Language and its subclasses can
-	 * specify a second type of symbol to use here
+	 * Same concept as isDelimiterA(char), but a second type of symbol can
+	 * be specified here
 	 */
-	public boolean isDelimiterB(char c){
-		return (c == '\'');
+	public final boolean isDelimiterB(char c){
+		return isSymbol(c, _delimiterB);
 	}
 
 	/**
 	 * Whether cL is a token, where L is a sequence of characters until the end of the line
 	 */
-	public boolean isLineAStart(char c){
-		return (c == '#');
+	public final boolean isLineAStart(char c){
+		return isSymbol(c, _lineAStart);
 	}
 
 	/**
-	 * Same concept as isLineAStart(char), but Language and its subclasses can
-	 * specify a second type of symbol to use here
+	 * Same concept as isLineAStart(char), but a second type of symbol can
+	 * be specified here
 	 */
-	public boolean isLineBStart(char c){
-		return false;
+	public final boolean isLineBStart(char c){
+		return isSymbol(c, _lineBStart);
 	}
 
 	/**
 	 * Whether c0c1L is a token, where L is a sequence of characters until the end of the line
 	 */
-	public boolean isLineStart(char c0, char c1){
-		return (c0 == '/' && c1 == '/');
+	public final boolean isLineStart(char c0, char c1){
+		return isSymbol(c0, _lineComment0) && isSymbol(c1, _lineComment1);
 	}
 
 	/**
 	 * Whether c0c1 signifies the start of a multi-line token
 	 */
-	public boolean isMultilineStartDelimiter(char c0, char c1){
-		return (c0 == '/' && c1 == '*');
+	public final boolean isMultilineStartDelimiter(char c0, char c1){
+		return isSymbol(c0, _multilineStart0) && isSymbol(c1, _multilineStart1);
 	}
 
 	/**
 	 * Whether c0c1 signifies the end of a multi-line token
 	 */
-	public boolean isMultilineEndDelimiter(char c0, char c1){
-		return (c0 == '*' && c1 == '/');
+	public final boolean isMultilineEndDelimiter(char c0, char c1){
+		return isSymbol(c0, _multilineEnd0) && isSymbol(c1, _multilineEnd1);
 	}
 }
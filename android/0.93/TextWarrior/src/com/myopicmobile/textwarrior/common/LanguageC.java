@@ -31,6 +31,7 @@ public class LanguageC extends Language{
 	}
 	
 	private LanguageC(){
-		super.setKeywords(keywords);
+		super(new LanguageSpec()
+			.setKeywords(keywords));
 	}
 }
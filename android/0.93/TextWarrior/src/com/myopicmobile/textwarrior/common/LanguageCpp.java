@@ -37,6 +37,7 @@ public class LanguageCpp extends Language{
 	}
 	
 	private LanguageCpp(){
-		super.setKeywords(keywords);
+		super(new LanguageSpec()
+			.setKeywords(keywords));
 	}
 }
@@ -40,7 +40,7 @@ public class LanguageCsharp extends Language {
 	}
 	
 	private LanguageCsharp(){
-		super.setKeywords(keywords);
+		super(new LanguageSpec()
+			.setKeywords(keywords));
 	}
-
 }
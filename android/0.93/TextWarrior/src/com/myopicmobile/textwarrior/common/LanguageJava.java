@@ -24,7 +24,6 @@ public class LanguageJava extends Language{
 		"true", "false", "null"
 		};
 
-
 	public static Language getInstance(){
 		if(_theOne == null){
 			_theOne = new LanguageJava();
@@ -33,13 +32,9 @@ public class LanguageJava extends Language{
 	}
 	
 	private LanguageJava(){
-		super.setKeywords(keywords);
-	}
-	
-	/**
-	 * Java has no preprocessors. Override base class implementation
-	 */
-	public boolean isLineAStart(char c){
-		return false;
+		super(new LanguageSpec()
+			.setKeywords(keywords)
+			// Java has no preprocessor
+			.setLineAStart(NULL_CHAR));
 	}
 }
@@ -34,10 +34,8 @@ public class LanguageJavascript extends Language {
 	}
 	
 	private LanguageJavascript(){
-		super.setKeywords(keywords);
-	}
-
-	public boolean isLineAStart(char c){
-		return false;
+		super(new LanguageSpec()
+			.setKeywords(keywords)
+			.setLineAStart(NULL_CHAR));
 	}
 }
@@ -19,7 +19,6 @@ public class LanguageNonProg extends Language{
 	
 	private final static char[] operators = {};
 
-
 	public static Language getInstance(){
 		if(_theOne == null){
 			_theOne = new LanguageNonProg();
@@ -28,47 +27,14 @@ public class LanguageNonProg extends Language{
 	}
 	
 	private LanguageNonProg(){
-		super.setKeywords(keywords);
-		super.setOperators(operators);
-	}
-
-	@Override
-	public boolean isProgLang(){
-		return false;
-	}
-
-	@Override
-	public boolean isEscapeChar(char c){
-		return false;
-	}
-
-	@Override
-	public boolean isDelimiterA(char c){
-		return false;
-	}
-
-	@Override
-	public boolean isDelimiterB(char c){
-		return false;
-	}
-	
-	@Override
-	public boolean isLineAStart(char c){
-		return false;
-	}
-
-	@Override
-	public boolean isLineStart(char c0, char c1){
-		return false;
-	}
-
-	@Override
-	public boolean isMultilineStartDelimiter(char c0, char c1){
-		return false;
-	}
-
-	@Override
-	public boolean isMultilineEndDelimiter(char c0, char c1){
-		return false;
+		super(new LanguageSpec()
+			.setKeywords(keywords)
+			.setOperators(operators)
+			.setProgLang(false)
+			.setEscapeChar(NULL_CHAR)
+			.setDelimiters(NULL_CHAR, NULL_CHAR)
+			.setLineAStart(NULL_CHAR)
+			.setLineComment(null)
+			.setMultilineComment(null, null));
 	}
 }
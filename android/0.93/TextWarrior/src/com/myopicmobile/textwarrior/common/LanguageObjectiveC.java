@@ -38,7 +38,7 @@ public class LanguageObjectiveC extends Language{
 	}
 	
 	private LanguageObjectiveC(){
-		super.setKeywords(keywords);
+		super(new LanguageSpec()
+			.setKeywords(keywords));
 	}
-
 }
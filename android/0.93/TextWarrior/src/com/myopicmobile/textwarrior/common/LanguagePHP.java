@@ -33,7 +33,6 @@ public class LanguagePHP extends Language {
 		'?', '~', '%', '^', '`', '@'
 	};
 
-
 	public static Language getInstance(){
 		if(_theOne == null){
 			_theOne = new LanguagePHP();
@@ -42,18 +41,10 @@ public class LanguagePHP extends Language {
 	}
 	
 	private LanguagePHP(){
-		super.setKeywords(keywords);
-		super.setOperators(operators);
-	}
-
-	@Override
-	public boolean isLineAStart(char c){
-		return false;
+		super(new LanguageSpec()
+			.setKeywords(keywords)
+			.setOperators(operators)
+			.setLineAStart(NULL_CHAR)
+			.setWordStart('$'));
 	}
-	
-	@Override
-	public boolean isWordStart(char c){
-		return (c == '$');
-	}
-
 }
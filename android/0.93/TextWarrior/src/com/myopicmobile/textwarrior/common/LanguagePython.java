@@ -28,32 +28,6 @@ public class LanguagePython extends Language{
 		'~', '%', '^'
 	}; // no ternary operator ? :
 
-
-	@Override
-	public boolean isWordStart(char c){
-		return (c == '@');
-	}
-	
-	@Override
-	public boolean isLineAStart(char c){
-		return false;
-	}
-	
-	@Override
-	public boolean isLineBStart(char c){
-		return (c == '#');
-	}
-
-	@Override
-	public boolean isLineStart(char c0, char c1){
-		return false;
-	}
-
-	@Override
-	public boolean isMultilineStartDelimiter(char c0, char c1){
-		return false;
-	}
-	
 	public static Language getInstance(){
 		if(_theOne == null){
 			_theOne = new LanguagePython();
@@ -62,7 +36,13 @@ public class LanguagePython extends Language{
 	}
 	
 	private LanguagePython(){
-		super.setKeywords(keywords);
-		super.setOperators(operators);
+		super(new LanguageSpec()
+			.setKeywords(keywords)
+			.setOperators(operators)
+			.setWordStart('@')
+			.setLineAStart(NULL_CHAR)
+			.setLineBStart('#')
+			.setLineComment(null)
+			.setMultilineComment(null, null));
 	}
 }
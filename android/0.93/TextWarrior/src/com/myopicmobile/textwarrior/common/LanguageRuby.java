@@ -23,32 +23,6 @@ public class LanguageRuby extends Language {
 		"yield", "self", "nil", "true", "false", "TRUE", "FALSE", "NIL"
 		};
 
-
-	@Override
-	public boolean isWordStart(char c){
-		return (c == '$');
-	}
-	
-	@Override
-	public boolean isLineAStart(char c){
-		return false;
-	}
-	
-	@Override
-	public boolean isLineBStart(char c){
-		return (c == '#');
-	}
-
-	@Override
-	public boolean isLineStart(char c0, char c1){
-		return false;
-	}
-
-	@Override
-	public boolean isMultilineStartDelimiter(char c0, char c1){
-		return false;
-	}
-	
 	public static Language getInstance(){
 		if(_theOne == null){
 			_theOne = new LanguageRuby();
@@ -57,6 +31,12 @@ public class LanguageRuby extends Language {
 	}
 	
 	private LanguageRuby(){
-		super.setKeywords(keywords);
+		super(new LanguageSpec()
+			.setKeywords(keywords)
+			.setWordStart('$')
+			.setLineAStart(NULL_CHAR)
+			.setLineBStart('#')
+			.setLineComment(null)
+			.setMultilineComment(null, null));
 	}
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * Declarative description of the syntax of a programming language: its
+ * keywords, operators, comment and string delimiters, and escape char.
+ * A Language is made from a spec, and compiles it into the tables used by
+ * the Lexer.
+ *
+ * By default, C-like symbols and operators are included, but not keywords.
+ * Symbols set to Language.NULL_CHAR or null are not used.
+ *
+ * Example:
+ * new Language(new LanguageSpec()
+ * 		.setKeywords(new String[]{"let", "in"})
+ * 		.setLineComment("--")
+ * 		.setMultilineComment("{-", "-}")
+ * 		.setLineAStart(Language.NULL_CHAR));
+ */
+public class LanguageSpec {
+	private final static char[] BASIC_C_OPERATORS = {
+		'(', ')', '{', '}', '.', ',', ';', '=', '+', '-',
+		'/', '*', '&', '!', '|', ':', '[', ']', '<', '>',
+		'?', '~', '%', '^'
+	};
+
+	private String[] _keywords = new String[0];
+	private char[] _operators = BASIC_C_OPERATORS;
+	private String _lineComment = "//";
+	private String _multilineStart = "/*";
+	private String _multilineEnd = "*/";
+	private char _delimiterA = '"';
+	private char _delimiterB = '\'';
+	private char _lineAStart = '#';
+	private char _lineBStart = Language.NULL_CHAR;
+	private char _wordStart = Language.NULL_CHAR;
+	private char _escapeChar = '\\';
+	private boolean _isProgLang = true;
+
+	public LanguageSpec setKeywords(String[] keywords){
+		_keywords = keywords;
+		return this;
+	}
+
+	public LanguageSpec setOperators(char[] operators){
+		_operators = operators;
+		return this;
+	}
+
+	/**
+	 * Sets the 2 symbols that start a token until the end of the line.
+	 * See Lexer.DOUBLE_SYMBOL_LINE
+	 */
+	public LanguageSpec setLineComment(String symbols){
+		assertSymbolPair(symbols);
+		_lineComment = symbols;
+		return this;
+	}
+
+	/**
+	 * Sets the 2 symbols that start and end a token that can span
+	 * multiple lines. See Lexer.DOUBLE_SYMBOL_DELIMITED_MULTILINE
+	 */
+	public LanguageSpec setMultilineComment(String start, String end){
+		assertSymbolPair(start);
+		assertSymbolPair(end);
+		_multilineStart = start;
+		_multilineEnd = end;
+		return this;
+	}
+
+	/**
+	 * Sets the symbols that enclose a token on a single line, like a string
+	 * or char literal. See Lexer.SINGLE_SYMBOL_DELIMITED_A
+	 */
+	public LanguageSpec setDelimiters(char a, char b){
+		_delimiterA = a;
+		_delimiterB = b;
+		return this;
+	}
+
+	/**
+	 * Sets the symbol that starts a token until the end of the line, like a
+	 * preprocessor directive. See Lexer.SINGLE_SYMBOL_LINE_A
+	 */
+	public LanguageSpec setLineAStart(char c){
+		_lineAStart = c;
+		return this;
+	}
+
+	/**
+	 * Same as setLineAStart(char), for a second type of symbol.
+	 * See Lexer.SINGLE_SYMBOL_LINE_B
+	 */
+	public LanguageSpec setLineBStart(char c){
+		_lineBStart = c;
+		return this;
+	}
+
+	/**
+	 * Sets the symbol that makes the word it starts a token.
+	 * See Lexer.SINGLE_SYMBOL_WORD
+	 */
+	public LanguageSpec setWordStart(char c){
+		_wordStart = c;
+		return this;
+	}
+
+	/**
+	 * Sets the char that stops the next char from ending a delimited token
+	 */
+	public LanguageSpec setEscapeChar(char c){
+		_escapeChar = c;
+		return this;
+	}
+
+	/**
+	 * Languages that do not represent C-like programming languages are not
+	 * tokenized at all
+	 */
+	public LanguageSpec setProgLang(boolean isProgLang){
+		_isProgLang = isProgLang;
+		return this;
+	}
+
+	private static void assertSymbolPair(String symbols){
+		TextWarriorException.assertVerbose(symbols == null || symbols.length() == 2,
+			"Only tokens delimited by exactly 2 symbols are supported");
+	}
+
+	String[] getKeywords(){
+		return _keywords;
+	}
+
+	char[] getOperators(){
+		return _operators;
+	}
+
+	/**
+	 * Returns the symbol at index of a pair of symbols, or Language.NULL_CHAR
+	 * if the pair is not used
+	 */
+	private static char getSymbol(String symbols, int index){
+		return (symbols != null) ? symbols.charAt(index) : Language.NULL_CHAR;
+	}
+
+	char getLineComment(int index){
+		return getSymbol(_lineComment, index);
+	}
+
+	char getMultilineStart(int index){
+		return getSymbol(_multilineStart, index);
+	}
+
+	char getMultilineEnd(int index){
+		return getSymbol(_multilineEnd, index);
+	}
+
+	char getDelimiterA(){
+		return _delimiterA;
+	}
+
+	char getDelimiterB(){
+		return _delimiterB;
+	}
+
+	char getLineAStart(){
+		return _lineAStart;
+	}
+
+	char getLineBStart(){
+		return _lineBStart;
+	}
+
+	char getWordStart(){
+		return _wordStart;
+	}
+
+	char getEscapeChar(){
+		return _escapeChar;
+	}
+
+	boolean isProgLang(){
+		return _isProgLang;
+	}
+}
@@ -10,13 +10,53 @@ package com.myopicmobile.textwarrior.common;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Does lexical analysis of a text for C-like languages.
- * The programming language syntax used is set as a static class variable.
+ * The programming language syntax used is set as a static class variable,
+ * and tokenized with the LexerTable compiled from its LanguageSpec.
+ *
+ * The lexer state at a line start is recorded every CHECKPOINT_INTERVAL chars
+ * or so, along with the spans. After the text is edited, it is tokenized
+ * again from the last recorded state before the edited range. Tokenizing
+ * stops at the first recorded state after the edited range that is the same
+ * as the new state there, because the old spans after it are still valid.
+ * The new spans are then spliced into the old ones by
+ * DocumentProvider.applyLexResult().
+ *
+ * Long scans publish their spans every PUBLISH_INTERVAL chars or so, instead
+ * of all at once at the end. If the whole text after the scan position has
+ * to be tokenized, and the viewport set by setViewport() is far ahead, the
+ * viewport is tokenized first from a guessed lexer state, so that the rows
+ * on screen are highlighted without waiting for the text before them.
+ *
+ * If more than PARALLEL_THRESHOLD chars have to be tokenized without a
+ * chance of stopping early, like the first time a large file is tokenized,
+ * the text is split into chunks at line starts, which are tokenized on all
+ * cores. Every chunk but the first starts from a guessed NORMAL state. The
+ * chunks are then checked in order: a chunk whose real starting state is
+ * different is tokenized again from it, until the new state at one of its
+ * recorded line starts is the same as the guessed one there.
  */
 public class Lexer{
 	private final static int MAX_KEYWORD_LENGTH = 31;
+	/** Minimum number of chars between two recorded lexer states */
+	private final static int CHECKPOINT_INTERVAL = 1024;
+	/** Minimum number of chars tokenized between two published results */
+	private final static int PUBLISH_INTERVAL = 64 * 1024;
+	/** Time in ms without calls to tokenize() before the worker starts lexing */
+	private final static int DEBOUNCE_DELAY = 50;
+	/** Minimum number of chars to tokenize in parallel */
+	private final static int PARALLEL_THRESHOLD = 1024 * 1024;
+	/** Minimum number of chars in a chunk tokenized in parallel */
+	private final static int MIN_CHUNK_SIZE = 256 * 1024;
+	/** Chunks per thread, so that threads with easy chunks do more of them */
+	private final static int CHUNKS_PER_THREAD = 4;
 
 	public final static int UNKNOWN = -1;
 	public final static int NORMAL = 0;
@@ -71,50 +111,211 @@ public class Lexer{
 	}
 
 
-	private DocumentProvider _hDoc;
 	private LexThread _workerThread = null;
 	LexCallback _callback = null;
+	/** The range of chars to tokenize first. See setViewport() */
+	private int _viewportStart = 0;
+	private int _viewportEnd = 0;
+
+	/** The latest request not taken by the worker yet, or null */
+	private LexRequest _pendingRequest = null;
+	/** Time of the latest call to tokenize(), in ns */
+	private long _lastRequestTime = 0;
+	/** Time of the oldest call to tokenize() not served by a finished lex
+	 * yet, in ns, or 0 if there is none */
+	private long _unservedSince = 0;
+	/** Number of calls to tokenize() that _pendingRequest stands for */
+	private int _queueDepth = 0;
+	private int _coalescedCount = 0;
+	private int _lexCount = 0;
+	private long _lastLatency = 0;
+	private long _totalLatency = 0;
 
 	public Lexer(LexCallback callback){
 		_callback = callback;
 	}
 
+	/**
+	 * Tokenizes the lines of hDoc edited since its spans were last updated,
+	 * or all of hDoc if its spans are not from the current language.
+	 * Must be called on the thread that edits hDoc.
+	 *
+	 * The lex is done by a worker thread that lives until stop() is called.
+	 * A call aborts the lex in progress. The worker only starts tokenizing
+	 * when no call was made for DEBOUNCE_DELAY ms, and then tokenizes the
+	 * snapshot of the latest call only, so a burst of edits is lexed once.
+	 */
 	public void tokenize(DocumentProvider hDoc){
-		if(!Lexer.getLanguage().isProgLang()){
+		Language language = Lexer.getLanguage();
+		if(!language.isProgLang()){
 			return;
 		}
 
-		//tokenize will modify the state of hDoc; make a copy
-		setDocument(new DocumentProvider(hDoc));
-		if(_workerThread == null){
-			_workerThread = new LexThread(this);
-			_workerThread.start();
+		//scan a snapshot, so that hDoc can be edited while it is tokenized.
+		//Another thread may append to hDoc meanwhile (see
+		//TextBuffer.loadMore()), so the lexer states are read again until
+		//they are from the same version of the text as the snapshot
+		LexRequest request;
+		while(true){
+			request = new LexRequest(hDoc.snapshot(), language,
+					hDoc.copyLexStates(language),
+					hDoc.getLexDirtyStart(), hDoc.getLexDirtyEnd());
+			if(request._text.getVersion() == hDoc.getVersion()){
+				break;
+			}
+			request._text.release();
 		}
-		else{
-			_workerThread.restart();
+		synchronized(this){
+			if(_pendingRequest != null){
+				++_coalescedCount;
+				_pendingRequest._text.release();
+			}
+			++_queueDepth;
+			_pendingRequest = request;
+			_lastRequestTime = System.nanoTime();
+			if(_unservedSince == 0){
+				_unservedSince = _lastRequestTime;
+			}
+
+			if(_workerThread == null){
+				_workerThread = new LexThread();
+				_workerThread.start();
+			}
+			else{
+				// the lex in progress is for an older snapshot
+				_workerThread.abort();
+				notifyAll();
+			}
 		}
 	}
 
-	void tokenizeDone(List<Pair> result){
+	/**
+	 * Sets the range of chars on screen, which is tokenized before the
+	 * rest of the text if the text has to be tokenized from far before it.
+	 * Can be called while tokenizing, to move the viewport as the text is
+	 * scrolled.
+	 */
+	public synchronized void setViewport(int start, int end){
+		_viewportStart = start;
+		_viewportEnd = end;
+	}
+
+	void tokenizeProgress(LexResult result){
 		if(_callback != null){
 			_callback.lexDone(result);
 		}
-		_workerThread = null;
 	}
 
-	public void cancelTokenize(){
+	void tokenizeDone(LexResult result){
+		if(_callback != null){
+			_callback.lexDone(result);
+		}
+	}
+
+	/**
+	 * Abandons the lex in progress and the calls to tokenize() not
+	 * served yet
+	 */
+	public synchronized void cancelTokenize(){
+		if(_pendingRequest != null){
+			_pendingRequest._text.release();
+		}
+		_pendingRequest = null;
+		_queueDepth = 0;
+		_unservedSince = 0;
 		if(_workerThread != null){
 			_workerThread.abort();
-			_workerThread = null;
 		}
 	}
 
-	public synchronized void setDocument(DocumentProvider hDoc){
-		_hDoc = hDoc;
+	/**
+	 * Cancels tokenizing and ends the worker thread.
+	 * The next call to tokenize() starts a new worker.
+	 */
+	public synchronized void stop(){
+		cancelTokenize();
+		_workerThread = null;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until a request was not followed by another one for
+	 * DEBOUNCE_DELAY ms, and takes it.
+	 *
+	 * @return The request, or null if worker has to end
+	 */
+	private synchronized LexRequest takeRequest(LexThread worker)
+			throws InterruptedException{
+		while(worker == _workerThread){
+			if(_pendingRequest == null){
+				wait();
+				continue;
+			}
+
+			long delay = _lastRequestTime + DEBOUNCE_DELAY * 1000000L - System.nanoTime();
+			if(delay > 0){
+				wait(delay / 1000000L, (int) (delay % 1000000L));
+				continue;
+			}
+
+			LexRequest request = _pendingRequest;
+			_pendingRequest = null;
+			_queueDepth = 0;
+			worker.clearAbort();
+			return request;
+		}
+		return null;
+	}
+
+	/**
+	 * Records the latency of a lex that served all calls to tokenize()
+	 */
+	private synchronized void lexFinished(){
+		if(_pendingRequest == null && _unservedSince != 0){
+			_lastLatency = (System.nanoTime() - _unservedSince) / 1000000L;
+			_totalLatency += _lastLatency;
+			++_lexCount;
+			_unservedSince = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of calls to tokenize() waiting for the worker.
+	 * They are all served by a single lex of the latest snapshot.
+	 */
+	public synchronized int getQueueDepth(){
+		return _queueDepth;
+	}
+
+	/**
+	 * Returns the number of calls to tokenize() that were superseded by
+	 * a later call before the worker took them
+	 */
+	public synchronized int getCoalescedCount(){
+		return _coalescedCount;
+	}
+
+	/**
+	 * Returns the number of lexes that finished with no call to tokenize()
+	 * waiting
+	 */
+	public synchronized int getLexCount(){
+		return _lexCount;
+	}
+
+	/**
+	 * Returns the time in ms from the first call to tokenize() served by the
+	 * last finished lex, until its final result was passed to the callback
+	 */
+	public synchronized long getLastLatency(){
+		return _lastLatency;
 	}
 
-	public synchronized DocumentProvider getDocument(){
-		return _hDoc;
+	/**
+	 * Returns the mean of getLastLatency() over all finished lexes, in ms
+	 */
+	public synchronized long getAverageLatency(){
+		return (_lexCount > 0) ? _totalLatency / _lexCount : 0;
 	}
 
 
@@ -122,229 +323,664 @@ public class Lexer{
 
 
 	private class LexThread extends Thread{
-		private boolean rescan = false;
-		private final Lexer _lexManager;
 		/** can be set by another thread to stop the scan immediately */
 		private final Flag _abort;
-		/** A collection of Pairs, where Pair.first is the start
-		 *  position of the token, and Pair.second is the type of the token.*/
-		private ArrayList<Pair> _tokens;
+		/** The spans found by the last part of the last scan */
+		private LexResult _result;
+		/** The part of the text last tokenized by lexViewport() */
+		private int _viewStart;
+		private int _viewEnd;
 
-		public LexThread(Lexer p){
-			_lexManager = p;
+		public LexThread(){
 			_abort = new Flag();
+			setDaemon(true);
 		}
 
 		@Override
 		public void run(){
-			do{
-				rescan = false;
-				_abort.clear();
-				tokenize();
+			try{
+				LexRequest request;
+				while((request = takeRequest(this)) != null){
+					tokenize(request);
+					request._text.release();
+					if(!_abort.isSet()){
+						// lex complete
+						tokenizeDone(_result);
+						lexFinished();
+					}
+				}
 			}
-			while(rescan);
-
-			if(!_abort.isSet()){
-				// lex complete
-				_lexManager.tokenizeDone(_tokens);
+			catch(InterruptedException e){
+				// end the worker
 			}
 		}
 
-		public void restart() {
-			rescan = true;
+		public void abort() {
 			_abort.set();
 		}
 
-		public void abort() {
-			_abort.set();
+		void clearAbort() {
+			_abort.clear();
 		}
 
 		/**
-		 * Scans the document referenced by _lexManager for tokens.
-		 * The result is stored internally.
+		 * Scans the document of request for tokens.
+		 * The spans found are published every PUBLISH_INTERVAL chars or so,
+		 * and the last part is stored internally.
 		 */
-		public void tokenize(){
-			DocumentProvider hDoc = getDocument();
-			Language language = Lexer.getLanguage();
-			ArrayList<Pair> tokens = new ArrayList<Pair>();
-
-			if(!language.isProgLang()){
-				tokens.add(new Pair(0, NORMAL));
-				_tokens = tokens;
+		public void tokenize(LexRequest request){
+			DocumentProvider hDoc = request._text;
+			Language language = request._language;
+			Scanner scanner = new Scanner(language, _abort, true);
+			_viewStart = -1;
+			_viewEnd = -1;
+
+			SpanList oldStates = request._states;
+			if(oldStates != null){
+				if(request._dirtyStart < 0){
+					// nothing was edited
+					_result = new LexResult(hDoc, language, new SpanList(),
+							new SpanList(), 0, 0, true);
+					return;
+				}
+
+				int restart = oldStates.findFirstFrom(request._dirtyStart) - 1;
+				if(restart >= 0){
+					scanner.startAtLine(oldStates.getStart(restart),
+							oldStates.getType(restart));
+				}
+				scanner.setOldStates(oldStates,
+						oldStates.findFirstFrom(request._dirtyEnd + 1));
+			}
+
+			int threadCount = Runtime.getRuntime().availableProcessors();
+			if(threadCount > 1 && !scanner.canConverge()
+					&& hDoc.docLength() - scanner.getPosition() >= PARALLEL_THRESHOLD){
+				tokenizeInParallel(hDoc, language, scanner, threadCount);
 				return;
 			}
 
-			char[] candidateWord = new char[MAX_KEYWORD_LENGTH];
-			int currentCharInWord = 0;
+			boolean isDone = false;
+			while(!isDone && !_abort.isSet()){
+				lexViewport(hDoc, language, scanner.getPosition(),
+						scanner.canConverge());
+				final int chunkStart = scanner.getPosition();
+				isDone = scanner.scan(hDoc, chunkStart + PUBLISH_INTERVAL);
+				if(_abort.isSet()){
+					break;
+				}
 
-			int spanStartPosition = 0;
-			int workingPosition = 0;
-			int state = UNKNOWN;
-			char prevChar = 0;
-
-			hDoc.seekChar(0);
-			while (hDoc.hasNext() && !_abort.isSet()){
-				char currentChar = hDoc.next();
-
-				switch(state){
-				case UNKNOWN: //fall-through
-				case NORMAL: //fall-through
-				case KEYWORD: //fall-through
-				case SINGLE_SYMBOL_WORD:
-					int pendingState = state;
-					boolean stateChanged = false;
-					if (language.isLineStart(prevChar, currentChar)){
-						pendingState = DOUBLE_SYMBOL_LINE;
-						stateChanged = true;
-					}
-					else if (language.isMultilineStartDelimiter(prevChar, currentChar)){
-						pendingState = DOUBLE_SYMBOL_DELIMITED_MULTILINE;
-						stateChanged = true;
+				SpanList tokens = scanner.takeTokens();
+				if (tokens.size() == 0 && chunkStart == 0){
+					// spans of the whole text cannot be empty
+					tokens.add(0, NORMAL);
+				}
+				_result = new LexResult(hDoc, language, tokens,
+						scanner.takeStates(), chunkStart, scanner.getPosition(),
+						isDone);
+				if(!isDone){
+					tokenizeProgress(_result);
+				}
+			}
+		}
+
+		/**
+		 * Tokenizes the text from the position of scanner to the end in
+		 * chunks, on a pool of threadCount threads, and publishes the spans
+		 * of each chunk in order once they are fixed up.
+		 */
+		private void tokenizeInParallel(DocumentProvider hDoc, Language language,
+				Scanner scanner, int threadCount){
+			final int start = scanner.getPosition();
+			final int length = hDoc.docLength();
+			int chunkSize = Math.max(MIN_CHUNK_SIZE,
+					(length - start) / (threadCount * CHUNKS_PER_THREAD));
+
+			List<LexChunk> chunks = new ArrayList<LexChunk>();
+			LexChunk chunk = new LexChunk(hDoc, scanner);
+			chunks.add(chunk);
+			int chunkStart = findLineStartFrom(hDoc, start + chunkSize);
+			while(chunkStart < length){
+				chunk.setEnd(chunkStart);
+				scanner = new Scanner(language, _abort, true);
+				// chunks usually start in code, outside comments and strings
+				scanner.startAtLine(chunkStart, NORMAL);
+				chunk = new LexChunk(hDoc, scanner);
+				chunks.add(chunk);
+				chunkStart = findLineStartFrom(hDoc, chunkStart + chunkSize);
+			}
+			chunk.setEnd(length);
+
+			ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+			try{
+				List<Future<LexChunk>> results = new ArrayList<Future<LexChunk>>(chunks.size());
+				for(LexChunk c : chunks){
+					results.add(pool.submit(c));
+				}
+
+				int state = UNKNOWN;
+				for(int i = 0; i < chunks.size() && !_abort.isSet(); ++i){
+					lexViewport(hDoc, language, chunks.get(i)._start, false);
+					chunk = results.get(i).get();
+					if(_abort.isSet()){
+						break;
 					}
-					else if (language.isDelimiterA(currentChar)){
-						pendingState = SINGLE_SYMBOL_DELIMITED_A;
-						stateChanged = true;
+
+					if(i > 0 && state != NORMAL){
+						// the guessed starting state was wrong
+						chunk.fixUp(language, _abort, state);
+						if(_abort.isSet()){
+							break;
+						}
 					}
-					else if (language.isDelimiterB(currentChar)){
-						pendingState = SINGLE_SYMBOL_DELIMITED_B;
-						stateChanged = true;
+					if(chunk._tokens.size() == 0 && chunk._start == 0){
+						// spans of the whole text cannot be empty
+						chunk._tokens.add(0, NORMAL);
 					}
-					else if (language.isLineAStart(currentChar)){
-						pendingState = SINGLE_SYMBOL_LINE_A;
-						stateChanged = true;
+					state = chunk._endState;
+
+					boolean isDone = (i == chunks.size() - 1);
+					_result = new LexResult(hDoc, language, chunk._tokens,
+							chunk._states, chunk._start, chunk._end, isDone);
+					if(!isDone){
+						tokenizeProgress(_result);
 					}
-					else if (language.isLineBStart(currentChar)){
-						pendingState = SINGLE_SYMBOL_LINE_B;
-						stateChanged = true;
+				}
+			}
+			catch(InterruptedException ex){
+				_abort.set();
+			}
+			catch(ExecutionException ex){
+				_abort.set();
+				TextWarriorException.fail("Lexing failed: " + ex.getCause());
+			}
+			finally{
+				pool.shutdownNow();
+			}
+		}
+
+		/**
+		 * Returns the first line start at or after position, or the length
+		 * of hDoc if there is none
+		 */
+		private int findLineStartFrom(DocumentProvider hDoc, int position){
+			SegmentCursor segments = new SegmentCursor();
+			segments.seek(hDoc, position - 1, hDoc.docLength());
+			while(segments.next()){
+				char[] chars = segments.array;
+				int segmentEnd = segments.offset + segments.count;
+				for(int i = segments.offset; i < segmentEnd; ++i){
+					if(chars[i] == Language.NEWLINE){
+						return segments.getPosition() + i - segments.offset + 1;
 					}
+				}
+			}
+			return hDoc.docLength();
+		}
 
+		/**
+		 * Tokenizes the viewport from a guessed lexer state and publishes the
+		 * spans found, if it is far ahead of scanPosition. This is only done
+		 * when the scan will not stop before the viewport, so that the
+		 * spans published are replaced when the scan reaches them.
+		 */
+		private void lexViewport(DocumentProvider hDoc, Language language,
+				int scanPosition, boolean canScanStop){
+			int start;
+			int end;
+			synchronized(Lexer.this){
+				start = _viewportStart;
+				end = Math.min(_viewportEnd, hDoc.docLength());
+			}
+			if(canScanStop || start < scanPosition + PUBLISH_INTERVAL
+					|| start >= end
+					|| (start >= _viewStart && end <= _viewEnd)){
+				return;
+			}
 
-					if(stateChanged){
-						if (pendingState == DOUBLE_SYMBOL_LINE ||
-								pendingState == DOUBLE_SYMBOL_DELIMITED_MULTILINE){
-							// account for previous char
-							spanStartPosition = workingPosition - 1;
-//TODO consider less greedy approach and avoid adding token for previous char
-							if(tokens.get(tokens.size()-1).getFirst() == spanStartPosition){
-								tokens.remove(tokens.size() - 1);
-							}
+			// the viewport usually starts at a line start, where a state
+			// outside comments and strings is the most likely
+			Scanner scanner = new Scanner(language, _abort, false);
+			scanner.startAtLine(start, UNKNOWN);
+			scanner.beginSpan(NORMAL);
+			scanner.scan(hDoc, end);
+			if(!_abort.isSet()){
+				_viewStart = start;
+				_viewEnd = scanner.getPosition();
+				tokenizeProgress(new LexResult(hDoc, language,
+						scanner.takeTokens(), null, _viewStart, _viewEnd, false));
+			}
+		}
+	}//end inner class
+
+
+	/**
+	 * The state machine of the lexer. Scans a text from a position where the
+	 * lexer state is known, and collects the spans found.
+	 *
+	 * The next state is looked up in the LexerTable of the language for each
+	 * char. Spans are only added by the actions of the table entries.
+	 *
+	 * At a line start outside a word, the lexer state is fully described by
+	 * the current token type. Scanning can start and pause only there.
+	 */
+	private static class Scanner{
+		private final Language _language;
+		private final LexerTable _table;
+		private final Flag _abort;
+		private final char[] _candidateWord = new char[MAX_KEYWORD_LENGTH];
+		private int _currentCharInWord = 0;
+		private int _state = UNKNOWN;
+		private char _prevChar = 0;
+		/** Row of the transition table for _state and the class of _prevChar */
+		private int _row;
+		private int _position = 0;
+		private SpanList _tokens = new SpanList();
+		/** Lexer states recorded at line starts, or null if not recorded */
+		private SpanList _states;
+		private int _lastCheckpoint = 0;
+		/** Old states where scanning can stop. Only states from the next
+		 * old state to check onwards are of interest */
+		private SpanList _oldStates = null;
+		private int _nextOldState = 0;
+
+		Scanner(Language language, Flag abort, boolean isRecordingStates){
+			_language = language;
+			_table = language.getLexerTable();
+			_row = _table.getRow(_state, _table.getCharClass(_prevChar));
+			_abort = abort;
+			_states = isRecordingStates ? new SpanList() : null;
+		}
+
+		/**
+		 * Starts scanning from the line start at position, in state
+		 */
+		void startAtLine(int position, int state){
+			_position = position;
+			_state = state;
+			_prevChar = Language.NEWLINE;
+			_row = _table.getRow(state, _table.getCharClass(_prevChar));
+			_currentCharInWord = 0;
+			_lastCheckpoint = position;
+			if(_states != null){
+				_states.add(position, state);
+			}
+		}
+
+		/**
+		 * Starts a span of tokenType at the current position
+		 */
+		void beginSpan(int tokenType){
+			_tokens.add(_position, tokenType);
+		}
+
+		/**
+		 * Sets the old states where scanning stops when the state at their
+		 * position is the same as theirs, from the one at index from onwards
+		 */
+		void setOldStates(SpanList oldStates, int from){
+			_oldStates = oldStates;
+			_nextOldState = from;
+		}
+
+		/**
+		 * Returns true if there are old states ahead of the current position
+		 * where scanning may stop before the end of the text
+		 */
+		boolean canConverge(){
+			return _oldStates != null && _nextOldState < _oldStates.size()
+					&& _oldStates.getLastStart() >= _position;
+		}
+
+		int getPosition(){
+			return _position;
+		}
+
+		/**
+		 * Returns the lexer state at the current position. It fully
+		 * describes the state of the scan after scan() pauses.
+		 */
+		int getState(){
+			return _state;
+		}
+
+		/**
+		 * Returns the spans found since the last call, and starts collecting
+		 * new ones
+		 */
+		SpanList takeTokens(){
+			SpanList tokens = _tokens;
+			_tokens = new SpanList();
+			return tokens;
+		}
+
+		/**
+		 * Returns the states recorded since the last call, and starts
+		 * recording new ones. Returns null if states are not recorded.
+		 */
+		SpanList takeStates(){
+			SpanList states = _states;
+			if(states != null){
+				_states = new SpanList();
+			}
+			return states;
+		}
+
+		/**
+		 * Scans text from the current position until the end of the text, an
+		 * old state that is the same as the state there, or the first line
+		 * start at or after pauseAt, whichever comes first.
+		 *
+		 * @return True if the end of the text or an old state was reached
+		 */
+		boolean scan(DocumentProvider text, int pauseAt){
+			final Language language = _language;
+			final LexerTable table = _table;
+			final byte[] asciiClasses = table.getAsciiClasses();
+			final int[] transitions = table.getTransitions();
+			final SpanList oldStates = _oldStates;
+			final int oldStateCount = (oldStates != null) ? oldStates.size() : 0;
+			int spanStartPosition = 0;
+
+			SegmentCursor segments = new SegmentCursor();
+			segments.seek(text, _position, text.docLength());
+			while (!_abort.isSet() && segments.next()){
+				char[] chars = segments.array;
+				int segmentEnd = segments.offset + segments.count;
+
+				for(int i = segments.offset; i < segmentEnd; ++i){
+					if(_prevChar == Language.NEWLINE && _currentCharInWord == 0){
+						// at a line start, the state is fully described by _state
+						while(_nextOldState < oldStateCount
+								&& oldStates.getStart(_nextOldState) < _position){
+							++_nextOldState;
 						}
-						else{
-							spanStartPosition = workingPosition;
+						if(_nextOldState < oldStateCount
+								&& oldStates.getStart(_nextOldState) == _position
+								&& oldStates.getType(_nextOldState) == _state){
+							// the old spans from here on are still valid
+							return true;
 						}
 
-						// If a span appears mid-word, mark the chars preceding
-						// it as NORMAL, if the previous span isn't already NORMAL
-						if(currentCharInWord > 0 && state != NORMAL){
-							tokens.add(new Pair(workingPosition - currentCharInWord, NORMAL));
+						if(_states != null
+								&& _position - _lastCheckpoint >= CHECKPOINT_INTERVAL){
+							_states.add(_position, _state);
+							_lastCheckpoint = _position;
+						}
+						if(_position >= pauseAt){
+							return false;
 						}
-
-						state = pendingState;
-						tokens.add(new Pair(spanStartPosition, state));
-						currentCharInWord = 0;
 					}
 
-					else if (language.isWhitespace(currentChar) || language.isOperator(currentChar)){
-						if (currentCharInWord > 0){
+					char currentChar = chars[i];
+					int charClass = (currentChar < LexerTable.ASCII_SIZE)
+						? asciiClasses[currentChar]
+						: table.getCharClass(currentChar);
+					int entry = transitions[_row + charClass];
+					int nextRow = LexerTable.getNextRow(entry);
+					int action = LexerTable.getAction(entry);
+
+					switch(action){
+					case LexerTable.NONE:
+						break;
+
+					case LexerTable.WORD_CHAR:
+						if (_currentCharInWord < MAX_KEYWORD_LENGTH){
+							// collect non-whitespace chars up to MAX_KEYWORD_LENGTH
+							_candidateWord[_currentCharInWord] = currentChar;
+							_currentCharInWord++;
+						}
+						break;
+
+					case LexerTable.END_WORD: //fall-through
+					case LexerTable.END_WORD_AT_OPERATOR:
+						if (_currentCharInWord > 0){
 							// full word obtained; mark the beginning of the word accordingly
-							if( language.isWordStart(candidateWord[0]) ){
-								spanStartPosition = workingPosition - currentCharInWord;
-								state = SINGLE_SYMBOL_WORD;
-								tokens.add(new Pair(spanStartPosition, state));
+							if( language.isWordStart(_candidateWord[0]) ){
+								spanStartPosition = _position - _currentCharInWord;
+								_state = SINGLE_SYMBOL_WORD;
+								_tokens.add(spanStartPosition, _state);
 							}
-							else if(language.isKeyword( new String(candidateWord, 0, currentCharInWord)) ){
-								spanStartPosition = workingPosition - currentCharInWord;
-								state = KEYWORD;
-								tokens.add(new Pair(spanStartPosition, state));
+							else if(language.isKeyword(_candidateWord, 0, _currentCharInWord) ){
+								spanStartPosition = _position - _currentCharInWord;
+								_state = KEYWORD;
+								_tokens.add(spanStartPosition, _state);
 							}
-							else if (state != NORMAL){
-								spanStartPosition = workingPosition - currentCharInWord;
-								state = NORMAL;
-								tokens.add(new Pair(spanStartPosition, state));
+							else if (_state != NORMAL){
+								spanStartPosition = _position - _currentCharInWord;
+								_state = NORMAL;
+								_tokens.add(spanStartPosition, _state);
 							}
-							currentCharInWord = 0;
+							_currentCharInWord = 0;
 						}
 
 						// mark operators as normal
-						if (state != NORMAL && language.isOperator(currentChar) ){
-							state = NORMAL;
-							tokens.add(new Pair(workingPosition, state));
+						if (_state != NORMAL && action == LexerTable.END_WORD_AT_OPERATOR){
+							_state = NORMAL;
+							_tokens.add(_position, _state);
 						}
-					}
-					else if (currentCharInWord < MAX_KEYWORD_LENGTH){
-						// collect non-whitespace chars up to MAX_KEYWORD_LENGTH
-						candidateWord[currentCharInWord] = currentChar;
-						currentCharInWord++;
-					}
-					break;
+						// the next row depends on the state just decided
+						nextRow = table.getRow(_state, charClass);
+						break;
 
+					case LexerTable.START_TOKEN: //fall-through
+					case LexerTable.START_TOKEN_AT_PREVIOUS:
+						if (action == LexerTable.START_TOKEN_AT_PREVIOUS){
+							// account for previous char
+							spanStartPosition = _position - 1;
+//TODO consider less greedy approach and avoid adding token for previous char
+							if(_tokens.getLastStart() == spanStartPosition){
+								_tokens.removeLast();
+							}
+						}
+						else{
+							spanStartPosition = _position;
+						}
 
-				case DOUBLE_SYMBOL_LINE: // fall-through
-				case SINGLE_SYMBOL_LINE_A: // fall-through
-				case SINGLE_SYMBOL_LINE_B:
-					if (currentChar == '\n'){
-						state = UNKNOWN;
-					}
-					break;
+						// If a span appears mid-word, mark the chars preceding
+						// it as NORMAL, if the previous span isn't already NORMAL
+						if(_currentCharInWord > 0 && _state != NORMAL){
+							_tokens.add(_position - _currentCharInWord, NORMAL);
+						}
 
+						_state = LexerTable.getNewState(entry);
+						_tokens.add(spanStartPosition, _state);
+						_currentCharInWord = 0;
+						break;
 
-				case SINGLE_SYMBOL_DELIMITED_A:
-					if ((language.isDelimiterA(currentChar) || currentChar == '\n')
-							&& !language.isEscapeChar(prevChar) ){
-						state = UNKNOWN;
-					}
-					// consume escape of the escape character by assigning
-					// currentChar as something else so that it would not be
-					// treated as an escape char in the next iteration
-					else if (language.isEscapeChar(currentChar) && language.isEscapeChar(prevChar)){
-						currentChar = ' ';
+					case LexerTable.END_TOKEN:
+						_state = UNKNOWN;
+						break;
+
+					default:
+						TextWarriorException.fail("Invalid action in TokenScanner");
+						break;
 					}
-					break;
+					_row = nextRow;
+					++_position;
+					_prevChar = currentChar;
+				}
+			}
+			return !_abort.isSet();
+		}
+	}
 
 
-				case SINGLE_SYMBOL_DELIMITED_B:
-					if ((language.isDelimiterB(currentChar) || currentChar == '\n')
-							&& !language.isEscapeChar(prevChar) ){
-						state = UNKNOWN;
-					}
-					// consume escape of the escape character by assigning
-					// currentChar as something else so that it would not be
-					// treated as an escape char in the next iteration
-					else if (language.isEscapeChar(currentChar)
-							&& language.isEscapeChar(prevChar)){
-						currentChar = ' ';
-					}
-					break;
+	/**
+	 * A range of a text that starts at a line start, tokenized on its own
+	 * from a known or guessed lexer state
+	 */
+	private static class LexChunk implements Callable<LexChunk>{
+		private final DocumentProvider _text;
+		private final Scanner _scanner;
+		private final int _start;
+		private int _end;
+		private SpanList _tokens;
+		private SpanList _states;
+		/** The lexer state at _end */
+		private int _endState;
+
+		LexChunk(DocumentProvider text, Scanner scanner){
+			_text = text;
+			_scanner = scanner;
+			_start = scanner.getPosition();
+		}
 
-				case DOUBLE_SYMBOL_DELIMITED_MULTILINE:
-					if (language.isMultilineEndDelimiter(prevChar, currentChar)){
-						state = UNKNOWN;
-					}
-					break;
+		/**
+		 * Sets the end of the chunk, which has to be a line start, or the
+		 * length of the text
+		 */
+		void setEnd(int end){
+			_end = end;
+		}
 
-				default:
-					TextWarriorException.fail("Invalid state in TokenScanner");
-					break;
-				}
-				++workingPosition;
-				prevChar = currentChar;
+		@Override
+		public LexChunk call(){
+			// the end of the chunk is the first line start at or after it
+			_scanner.scan(_text, _end);
+			_tokens = _scanner.takeTokens();
+			_states = _scanner.takeStates();
+			_endState = _scanner.getState();
+			return this;
+		}
+
+		/**
+		 * Tokenizes the chunk again, starting from state, until the new
+		 * state at a recorded line start is the same as the old one
+		 */
+		void fixUp(Language language, Flag abort, int state){
+			Scanner scanner = new Scanner(language, abort, true);
+			scanner.startAtLine(_start, state);
+			scanner.setOldStates(_states, 0);
+			boolean isConverged = scanner.scan(_text, _end);
+
+			// the old spans and states after the point of convergence
+			// are still valid
+			int position = scanner.getPosition();
+			SpanList tokens = scanner.takeTokens();
+			tokens.splice(_tokens, position, _end, 0);
+			SpanList states = scanner.takeStates();
+			states.splice(_states, position, _end, 0);
+			_tokens = tokens;
+			_states = states;
+			if(!isConverged){
+				_endState = scanner.getState();
 			}
-			// end state machine
+		}
+	}
 
 
-			if (tokens.isEmpty()){
-				// return value cannot be empty
-				tokens.add(new Pair(0, NORMAL));
-			}
+	private static class LexRequest{
+		/** Snapshot of the document to tokenize */
+		private final DocumentProvider _text;
+		private final Language _language;
+		/** Copy of the lexer states recorded by the last lex, or null to
+		 * tokenize the whole text */
+		private final SpanList _states;
+		/* Range edited since the last lex. See TextBuffer.getLexDirtyStart() */
+		private final int _dirtyStart;
+		private final int _dirtyEnd;
+
+		LexRequest(DocumentProvider text, Language language, SpanList states,
+				int dirtyStart, int dirtyEnd){
+			_text = text;
+			_language = language;
+			_states = states;
+			_dirtyStart = dirtyStart;
+			_dirtyEnd = dirtyEnd;
+		}
+	}
 
-			_tokens = tokens;
+	/**
+	 * The spans and lexer states found in a range of a snapshot of a document.
+	 * See DocumentProvider.applyLexResult()
+	 */
+	public static class LexResult{
+		private final Language _language;
+		private final int _version;
+		private final int _textLength;
+		private final SpanList _spans;
+		private final SpanList _states;
+		private final int _start;
+		private final int _end;
+		private final boolean _isFinal;
+
+		LexResult(DocumentProvider text, Language language, SpanList spans,
+				SpanList states, int start, int end, boolean isFinal){
+			_language = language;
+			_version = text.getVersion();
+			_textLength = text.docLength();
+			_spans = spans;
+			_states = states;
+			_start = start;
+			_end = end;
+			_isFinal = isFinal;
 		}
 
+		public Language getLanguage(){
+			return _language;
+		}
 
-	}//end inner class
+		/**
+		 * Returns the version of the document that was tokenized.
+		 * See DocumentProvider.getVersion()
+		 */
+		public int getVersion(){
+			return _version;
+		}
 
+		/**
+		 * Returns the length of the document that was tokenized
+		 */
+		public int getTextLength(){
+			return _textLength;
+		}
+
+		/**
+		 * Returns the spans starting in [getStart(), getEnd())
+		 */
+		public SpanList getSpans(){
+			return _spans;
+		}
+
+		/**
+		 * Returns the lexer states recorded in [getStart(), getEnd()), or
+		 * null if the result is speculative
+		 */
+		public SpanList getStates(){
+			return _states;
+		}
+
+		public int getStart(){
+			return _start;
+		}
+
+		public int getEnd(){
+			return _end;
+		}
+
+		/**
+		 * Returns true if this is the last result of a lex. Otherwise, the
+		 * text after getEnd() is still being tokenized.
+		 */
+		public boolean isFinal(){
+			return _isFinal;
+		}
+
+		/**
+		 * Returns true if the spans were found from a guessed lexer state,
+		 * and are only meant to be shown until the lex reaches them
+		 */
+		public boolean isSpeculative(){
+			return _states == null;
+		}
+	}
 
 	public interface LexCallback {
-		public void lexDone(List<Pair> results);
+		/**
+		 * Called with each part of the spans found, in order, until
+		 * a final result. Usually called from a non-UI thread.
+		 */
+		public void lexDone(LexResult result);
 	}
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The state machine of the Lexer for a language, compiled from its
+ * LanguageSpec into a dense transition table.
+ *
+ * Chars are grouped into classes. All the chars in a class play the same
+ * roles in the language, like operator, string delimiter or first symbol of
+ * a comment, so the lexer treats them the same way. Since the token types
+ * that start or end at a char also depend on the char before it, a row of
+ * the table is a pair of (lexer state, class of the previous char).
+ *
+ * Every entry of the table holds the row of the next char and the action
+ * to take at the current char. Most chars need no action, or only
+ * extend the word being read. Actions that end a word depend on the
+ * keywords, so their next row is found at run time with getRow().
+ *
+ * Immutable, so the same table can be used by many threads.
+ */
+final class LexerTable {
+	/** Chars below this have their classes looked up in an array */
+	final static int ASCII_SIZE = 128;
+
+	/** The lexer state does not change */
+	final static int NONE = 0;
+	/** The char is part of a word */
+	final static int WORD_CHAR = 1;
+	/** Whitespace that ends a word */
+	final static int END_WORD = 2;
+	/** Operator that ends a word, and is a token by itself */
+	final static int END_WORD_AT_OPERATOR = 3;
+	/** A token of type getNewState() starts at the char */
+	final static int START_TOKEN = 4;
+	/** A token of type getNewState() starts at the char before */
+	final static int START_TOKEN_AT_PREVIOUS = 5;
+	/** The current token ends after the char */
+	final static int END_TOKEN = 6;
+
+	private final static int ACTION_BITS = 3;
+	private final static int ACTION_MASK = (1 << ACTION_BITS) - 1;
+	private final static int MODE_BITS = 4;
+	private final static int MODE_MASK = (1 << MODE_BITS) - 1;
+	private final static int ROW_SHIFT = ACTION_BITS + MODE_BITS;
+
+	/** The lexer states, indexed by mode */
+	private final static int[] MODE_STATES = {
+		Lexer.UNKNOWN, Lexer.NORMAL, Lexer.KEYWORD, Lexer.SINGLE_SYMBOL_WORD,
+		Lexer.SINGLE_SYMBOL_LINE_A, Lexer.SINGLE_SYMBOL_LINE_B,
+		Lexer.DOUBLE_SYMBOL_LINE, Lexer.DOUBLE_SYMBOL_DELIMITED_MULTILINE,
+		Lexer.SINGLE_SYMBOL_DELIMITED_A, Lexer.SINGLE_SYMBOL_DELIMITED_B
+	};
+	/** The mode of each lexer state, indexed by state - Lexer.UNKNOWN */
+	private final static byte[] STATE_MODES =
+		new byte[Lexer.SINGLE_SYMBOL_DELIMITED_B - Lexer.UNKNOWN + 1];
+	static{
+		for(int mode = 0; mode < MODE_STATES.length; ++mode){
+			STATE_MODES[MODE_STATES[mode] - Lexer.UNKNOWN] = (byte) mode;
+		}
+	}
+
+	// Roles of chars. A class is a distinct combination of roles
+	private final static int ROLE_WHITESPACE = 1;
+	private final static int ROLE_OPERATOR = 1 << 1;
+	private final static int ROLE_NEWLINE = 1 << 2;
+	private final static int ROLE_DELIMITER_A = 1 << 3;
+	private final static int ROLE_DELIMITER_B = 1 << 4;
+	private final static int ROLE_LINE_A = 1 << 5;
+	private final static int ROLE_LINE_B = 1 << 6;
+	private final static int ROLE_ESCAPE = 1 << 7;
+	private final static int ROLE_LINE_COMMENT_0 = 1 << 8;
+	private final static int ROLE_LINE_COMMENT_1 = 1 << 9;
+	private final static int ROLE_MULTILINE_START_0 = 1 << 10;
+	private final static int ROLE_MULTILINE_START_1 = 1 << 11;
+	private final static int ROLE_MULTILINE_END_0 = 1 << 12;
+	private final static int ROLE_MULTILINE_END_1 = 1 << 13;
+
+	private final static char[] WHITESPACE = {
+		' ', '\n', '\t', '\r', '\f', Language.EOF
+	};
+
+	/** Class of each char below ASCII_SIZE */
+	private final byte[] _asciiClasses = new byte[ASCII_SIZE];
+	/** Chars from ASCII_SIZE onwards that are not in class 0, sorted */
+	private final char[] _otherChars;
+	private final byte[] _otherClasses;
+	/** Roles of each class. Class 0 has no roles */
+	private final int[] _classRoles;
+	private final int _classCount;
+	private final int[] _transitions;
+
+	LexerTable(LanguageSpec spec){
+		// roles of every char that has any
+		TreeMap<Character, Integer> roles = new TreeMap<Character, Integer>();
+		for(char c : WHITESPACE){
+			addRole(roles, c, ROLE_WHITESPACE);
+		}
+		addRole(roles, Language.NEWLINE, ROLE_NEWLINE);
+		for(char c : spec.getOperators()){
+			addRole(roles, c, ROLE_OPERATOR);
+		}
+		addRole(roles, spec.getDelimiterA(), ROLE_DELIMITER_A);
+		addRole(roles, spec.getDelimiterB(), ROLE_DELIMITER_B);
+		addRole(roles, spec.getLineAStart(), ROLE_LINE_A);
+		addRole(roles, spec.getLineBStart(), ROLE_LINE_B);
+		addRole(roles, spec.getEscapeChar(), ROLE_ESCAPE);
+		addRole(roles, spec.getLineComment(0), ROLE_LINE_COMMENT_0);
+		addRole(roles, spec.getLineComment(1), ROLE_LINE_COMMENT_1);
+		addRole(roles, spec.getMultilineStart(0), ROLE_MULTILINE_START_0);
+		addRole(roles, spec.getMultilineStart(1), ROLE_MULTILINE_START_1);
+		addRole(roles, spec.getMultilineEnd(0), ROLE_MULTILINE_END_0);
+		addRole(roles, spec.getMultilineEnd(1), ROLE_MULTILINE_END_1);
+
+		// number the distinct combinations of roles
+		int[] classRoles = new int[roles.size() + 1];
+		int classCount = 1;
+		int otherCount = 0;
+		for(Integer role : roles.values()){
+			if(findClass(classRoles, classCount, role) < 0){
+				classRoles[classCount++] = role;
+			}
+		}
+		for(Character c : roles.keySet()){
+			if(c >= ASCII_SIZE){
+				++otherCount;
+			}
+		}
+
+		_otherChars = new char[otherCount];
+		_otherClasses = new byte[otherCount];
+		otherCount = 0;
+		for(Map.Entry<Character, Integer> e : roles.entrySet()){
+			char c = e.getKey();
+			byte charClass = (byte) findClass(classRoles, classCount, e.getValue());
+			if(c < ASCII_SIZE){
+				_asciiClasses[c] = charClass;
+			}
+			else{
+				// TreeMap keys are in order, so _otherChars is sorted
+				_otherChars[otherCount] = c;
+				_otherClasses[otherCount] = charClass;
+				++otherCount;
+			}
+		}
+		_classRoles = Arrays.copyOf(classRoles, classCount);
+		_classCount = classCount;
+
+		_transitions = new int[MODE_STATES.length * classCount * classCount];
+		for(int mode = 0; mode < MODE_STATES.length; ++mode){
+			for(int prev = 0; prev < classCount; ++prev){
+				int row = getRowOfMode(mode, prev);
+				for(int curr = 0; curr < classCount; ++curr){
+					_transitions[row + curr] = compile(mode, prev, curr);
+				}
+			}
+		}
+	}
+
+	private static void addRole(TreeMap<Character, Integer> roles, char c, int role){
+		if(c == Language.NULL_CHAR){
+			return;
+		}
+		Integer old = roles.get(c);
+		roles.put(c, (old != null) ? (old | role) : role);
+	}
+
+	private static int findClass(int[] classRoles, int classCount, int role){
+		for(int i = 1; i < classCount; ++i){
+			if(classRoles[i] == role){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the table entry for the char of class curr, after a char of
+	 * class prev, in mode
+	 */
+	private int compile(int mode, int prev, int curr){
+		final int p = _classRoles[prev];
+		final int c = _classRoles[curr];
+		final int state = MODE_STATES[mode];
+
+		switch(state){
+		case Lexer.UNKNOWN: //fall-through
+		case Lexer.NORMAL: //fall-through
+		case Lexer.KEYWORD: //fall-through
+		case Lexer.SINGLE_SYMBOL_WORD:
+			if((p & ROLE_LINE_COMMENT_0) != 0 && (c & ROLE_LINE_COMMENT_1) != 0){
+				return entry(START_TOKEN_AT_PREVIOUS, Lexer.DOUBLE_SYMBOL_LINE, curr);
+			}
+			if((p & ROLE_MULTILINE_START_0) != 0 && (c & ROLE_MULTILINE_START_1) != 0){
+				return entry(START_TOKEN_AT_PREVIOUS,
+						Lexer.DOUBLE_SYMBOL_DELIMITED_MULTILINE, curr);
+			}
+			if((c & ROLE_DELIMITER_A) != 0){
+				return entry(START_TOKEN, Lexer.SINGLE_SYMBOL_DELIMITED_A, curr);
+			}
+			if((c & ROLE_DELIMITER_B) != 0){
+				return entry(START_TOKEN, Lexer.SINGLE_SYMBOL_DELIMITED_B, curr);
+			}
+			if((c & ROLE_LINE_A) != 0){
+				return entry(START_TOKEN, Lexer.SINGLE_SYMBOL_LINE_A, curr);
+			}
+			if((c & ROLE_LINE_B) != 0){
+				return entry(START_TOKEN, Lexer.SINGLE_SYMBOL_LINE_B, curr);
+			}
+			if((c & ROLE_OPERATOR) != 0){
+				return entry(END_WORD_AT_OPERATOR, state, curr);
+			}
+			if((c & ROLE_WHITESPACE) != 0){
+				return entry(END_WORD, state, curr);
+			}
+			return entry(WORD_CHAR, state, curr);
+
+		case Lexer.DOUBLE_SYMBOL_LINE: //fall-through
+		case Lexer.SINGLE_SYMBOL_LINE_A: //fall-through
+		case Lexer.SINGLE_SYMBOL_LINE_B:
+			if((c & ROLE_NEWLINE) != 0){
+				return entry(END_TOKEN, Lexer.UNKNOWN, curr);
+			}
+			return entry(NONE, state, curr);
+
+		case Lexer.SINGLE_SYMBOL_DELIMITED_A: //fall-through
+		case Lexer.SINGLE_SYMBOL_DELIMITED_B:
+			int delimiter = (state == Lexer.SINGLE_SYMBOL_DELIMITED_A)
+				? ROLE_DELIMITER_A : ROLE_DELIMITER_B;
+			if((c & (delimiter | ROLE_NEWLINE)) != 0 && (p & ROLE_ESCAPE) == 0){
+				return entry(END_TOKEN, Lexer.UNKNOWN, curr);
+			}
+			if((c & ROLE_ESCAPE) != 0 && (p & ROLE_ESCAPE) != 0){
+				// an escaped escape char does not escape the next char,
+				// so it is taken to be a space
+				return entry(NONE, state, getCharClass(' '));
+			}
+			return entry(NONE, state, curr);
+
+		case Lexer.DOUBLE_SYMBOL_DELIMITED_MULTILINE:
+			if((p & ROLE_MULTILINE_END_0) != 0 && (c & ROLE_MULTILINE_END_1) != 0){
+				return entry(END_TOKEN, Lexer.UNKNOWN, curr);
+			}
+			return entry(NONE, state, curr);
+
+		default:
+			TextWarriorException.fail("Invalid state in LexerTable");
+			return entry(NONE, state, curr);
+		}
+	}
+
+	private int entry(int action, int newState, int nextClass){
+		int mode = getMode(newState);
+		return (getRowOfMode(mode, nextClass) << ROW_SHIFT)
+				| (mode << ACTION_BITS) | action;
+	}
+
+	private static int getMode(int state){
+		return STATE_MODES[state - Lexer.UNKNOWN];
+	}
+
+	private int getRowOfMode(int mode, int prevClass){
+		return (mode * _classCount + prevClass) * _classCount;
+	}
+
+	/**
+	 * Returns the row of the table for the lexer in state, after a char of
+	 * class prevClass
+	 */
+	int getRow(int state, int prevClass){
+		return getRowOfMode(getMode(state), prevClass);
+	}
+
+	int getCharClass(char c){
+		if(c < ASCII_SIZE){
+			return _asciiClasses[c];
+		}
+		int i = Arrays.binarySearch(_otherChars, c);
+		return (i >= 0) ? _otherClasses[i] : 0;
+	}
+
+	/**
+	 * The class of each char below ASCII_SIZE. Must not be modified.
+	 */
+	byte[] getAsciiClasses(){
+		return _asciiClasses;
+	}
+
+	/**
+	 * The transition table. Must not be modified.
+	 * The entry for a char of class c at row r is at r + c.
+	 */
+	int[] getTransitions(){
+		return _transitions;
+	}
+
+	static int getAction(int entry){
+		return entry & ACTION_MASK;
+	}
+
+	static int getNextRow(int entry){
+		return entry >>> ROW_SHIFT;
+	}
+
+	/**
+	 * Returns the lexer state after the char of entry
+	 */
+	static int getNewState(int entry){
+		return MODE_STATES[(entry >>> ACTION_BITS) & MODE_MASK];
+	}
+
+	boolean isOperator(char c){
+		return (_classRoles[getCharClass(c)] & ROLE_OPERATOR) != 0;
+	}
+
+	/**
+	 * Returns true if c is whitespace or an operator, either of which ends
+	 * a word
+	 */
+	boolean isWordSeparator(char c){
+		return (_classRoles[getCharClass(c)] & (ROLE_WHITESPACE | ROLE_OPERATOR)) != 0;
+	}
+}
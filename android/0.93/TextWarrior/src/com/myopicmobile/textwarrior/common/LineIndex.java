@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * Maps between line numbers and char offsets in O(log n) time, regardless
+ * of the access pattern.
+ *
+ * The lengths of all lines are kept in a SegmentIndex. Each line includes
+ * its terminating newline; the last line includes the EOF char. The index
+ * has to be told about every insertion and deletion, which only touch the
+ * lines that were edited.
+ */
+public class LineIndex {
+	private SegmentIndex _lines = new SegmentIndex();
+
+	public LineIndex(){
+		_lines.reset(new int[]{1}, 1);
+	}
+
+	/**
+	 * Builds the index for the first textSize chars of text, followed by EOF
+	 */
+	public void setContents(char[] text, int textSize, int lineCount){
+		int[] lengths = new int[Math.max(lineCount, 1)];
+		int count = 0;
+		int lineStart = 0;
+		for(int i = 0; i < textSize; ++i){
+			if(text[i] == Language.NEWLINE){
+				if(count == lengths.length - 1){
+					int[] temp = new int[2 * lengths.length];
+					System.arraycopy(lengths, 0, temp, 0, count);
+					lengths = temp;
+				}
+				lengths[count++] = i + 1 - lineStart;
+				lineStart = i + 1;
+			}
+		}
+		lengths[count++] = textSize + 1 - lineStart; // last line and EOF
+		_lines.reset(lengths, count);
+	}
+
+	/**
+	 * Builds the index from the lengths of the first count lines. Each
+	 * length includes the terminating newline, and the last one the EOF char.
+	 */
+	public void setLineLengths(int[] lengths, int count){
+		_lines.reset(lengths, count);
+	}
+
+	public int getLineCount(){
+		return _lines.getSegmentCount();
+	}
+
+	/**
+	 * @return The char offset of lineNumber, or -1 if the line does not exist
+	 */
+	public int getLineOffset(int lineNumber){
+		if(lineNumber < 0 || lineNumber >= _lines.getSegmentCount()){
+			return -1;
+		}
+		return _lines.getOffset(lineNumber);
+	}
+
+	/**
+	 * @return The line number that charOffset is on, or -1 if charOffset is invalid
+	 */
+	public int findLineNumber(int charOffset){
+		if(charOffset < 0 || charOffset >= _lines.getTotalLength()){
+			return -1;
+		}
+		return _lines.findSegment(charOffset);
+	}
+
+	/**
+	 * Updates the index for an insertion of c[start, start+count)
+	 * at charOffset
+	 */
+	public void insert(char[] c, int start, int count, int charOffset){
+		int line = _lines.findSegment(charOffset);
+		int lineLength = _lines.getLength(line);
+		int head = charOffset - _lines.getOffset(line);
+
+		int newlines = 0;
+		for(int i = start; i < start + count; ++i){
+			if(c[i] == Language.NEWLINE){
+				++newlines;
+			}
+		}
+
+		if(newlines == 0){
+			_lines.setLength(line, lineLength + count);
+			return;
+		}
+
+		// the edited line is split into newlines + 1 lines
+		int[] lengths = new int[newlines + 1];
+		int n = 0;
+		int segmentStart = start;
+		for(int i = start; i < start + count; ++i){
+			if(c[i] == Language.NEWLINE){
+				lengths[n++] = i + 1 - segmentStart;
+				segmentStart = i + 1;
+			}
+		}
+		lengths[0] += head;
+		lengths[n] = (start + count - segmentStart) + (lineLength - head);
+		_lines.replace(line, 1, lengths, 0, lengths.length);
+	}
+
+	/**
+	 * Updates the index for a deletion of totalChars chars starting
+	 * from charOffset. The EOF char cannot be deleted.
+	 */
+	public void delete(int charOffset, int totalChars){
+		int endOffset = charOffset + totalChars;
+		int firstLine = _lines.findSegment(charOffset);
+		int lastLine = _lines.findSegment(endOffset);
+
+		if(firstLine == lastLine){
+			_lines.setLength(firstLine, _lines.getLength(firstLine) - totalChars);
+			return;
+		}
+
+		// the remains of firstLine and lastLine are joined
+		int lastLineEnd = _lines.getOffset(lastLine) + _lines.getLength(lastLine);
+		int joinedLength = (charOffset - _lines.getOffset(firstLine))
+				+ (lastLineEnd - endOffset);
+		_lines.replace(firstLine, lastLine - firstLine + 1,
+				new int[]{joinedLength}, 0, 1);
+	}
+}
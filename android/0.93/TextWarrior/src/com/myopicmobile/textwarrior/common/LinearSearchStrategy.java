@@ -10,7 +10,18 @@ package com.myopicmobile.textwarrior.common;
 
 
 public class LinearSearchStrategy implements SearchStrategy{
-	private int _unitsDone = 0;
+	/** The lower case of every char, so that case-insensitive comparisons
+	 * do not have to call Character.toLowerCase() for every char */
+	private final static char[] LOWER_CASE = new char[Character.MAX_VALUE + 1];
+	static{
+		for(int c = 0; c <= Character.MAX_VALUE; ++c){
+			LOWER_CASE[c] = Character.toLowerCase((char) c);
+		}
+	}
+
+	protected int _unitsDone = 0;
+	/** Reused by equals() to scan the document */
+	private final SegmentCursor _segments = new SegmentCursor();
 
 	@Override
 	// only applicable to replaceAll operation
@@ -118,38 +129,66 @@ public class LinearSearchStrategy implements SearchStrategy{
 		}
 	}
 
+	/**
+	 * Finds all matches first, then builds the text from the first match to
+	 * the end of the last match with the replacements in one pass, and
+	 * swaps it into the document as a single edit. Matches are found in the
+	 * original text, so a replacement can never be matched again.
+	 */
 	@Override
 	public Pair replaceAll(DocumentProvider src, String searchText,
 			String replacementText, int mark,
 			boolean isCaseSensitive, boolean isWholeWord){
-		int replacementCount = 0;
-		int anchor = mark;
 		_unitsDone = 0;
+		final int searchLength = searchText.length();
+		final int replacementLength = replacementText.length();
 
-		final char[] replacement = replacementText.toCharArray();
+		int[] matches = new int[16];
+		int replacementCount = 0;
 		int foundIndex = find(src, searchText, 0, src.docLength(),
 				isCaseSensitive, isWholeWord);
-		long timestamp = System.nanoTime();
-
-		src.beginBatchEdit();
 		while (foundIndex != -1){
-			src.deleteAt(foundIndex, searchText.length(), timestamp);
-			src.insertBefore(replacement, foundIndex, timestamp);
-			if(foundIndex < anchor){
-				// adjust anchor because of differences in doc length
-				// after word replacement
-				anchor += replacementText.length() - searchText.length();
+			if(replacementCount == matches.length){
+				int[] temp = new int[2 * matches.length];
+				System.arraycopy(matches, 0, temp, 0, replacementCount);
+				matches = temp;
 			}
-			++replacementCount;
-			_unitsDone += searchText.length(); //skip replaced chars
+			matches[replacementCount++] = foundIndex;
+			_unitsDone += searchLength; //skip matched chars
 			foundIndex = find(
 					src,
 					searchText,
-					foundIndex + replacementText.length(),
+					foundIndex + searchLength,
 					src.docLength(),
 					isCaseSensitive,
 					isWholeWord);
 		}
+
+		if(replacementCount == 0){
+			return new Pair(0, Math.max(mark, 0));
+		}
+
+		final int spanStart = matches[0];
+		final int spanEnd = matches[replacementCount - 1] + searchLength;
+		final int delta = replacementLength - searchLength;
+		char[] replaced = new char[spanEnd - spanStart + replacementCount * delta];
+		int anchor = mark;
+		int copied = 0;
+		int offset = spanStart;
+		for(int i = 0; i < replacementCount; ++i){
+			copied += src.getChars(offset, matches[i], replaced, copied);
+			replacementText.getChars(0, replacementLength, replaced, copied);
+			copied += replacementLength;
+			offset = matches[i] + searchLength;
+			if(matches[i] < mark){
+				// adjust anchor because of differences in doc length
+				// after word replacement
+				anchor += delta;
+			}
+		}
+
+		src.beginBatchEdit();
+		src.replaceAt(spanStart, spanEnd - spanStart, replaced, System.nanoTime());
 		src.endBatchEdit();
 
 		return new Pair(replacementCount, Math.max(anchor, 0));
@@ -163,24 +202,35 @@ public class LinearSearchStrategy implements SearchStrategy{
 			return false;
 		}
 
-		int i;
-		for(i = 0; i < target.length(); ++i){
-			if (isCaseSensitive &&
-					target.charAt(i) != src.charAt(i + srcOffset)){
-				return false;
-			}
-			// for case-insensitive search, compare both strings in lower case
-			if (!isCaseSensitive &&
-					Character.toLowerCase(target.charAt(i)) !=
-					Character.toLowerCase(src.charAt(i + srcOffset))){
-				return false;
+		int i = 0;
+		_segments.seek(src, srcOffset, srcOffset + target.length());
+		while(_segments.next()){
+			char[] chars = _segments.array;
+			int end = _segments.offset + _segments.count;
+
+			for(int j = _segments.offset; j < end; ++j, ++i){
+				if (isCaseSensitive &&
+						target.charAt(i) != chars[j]){
+					return false;
+				}
+				// for case-insensitive search, compare both strings in lower case
+				if (!isCaseSensitive &&
+						toLowerCase(target.charAt(i)) != toLowerCase(chars[j])){
+					return false;
+				}
 			}
-
 		}
 
 		return true;
 	}
 
+	/**
+	 * Same as Character.toLowerCase(c), looked up in a table
+	 */
+	protected static char toLowerCase(char c){
+		return LOWER_CASE[c];
+	}
+
 	/**
 	 * Checks if a word starting at startPosition with size length is bounded
 	 * by whitespace.
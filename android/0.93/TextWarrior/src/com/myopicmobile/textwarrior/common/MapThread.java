@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Opens a file by mapping it into memory instead of reading all of it.
+ *
+ * READ completion is broadcast as soon as the first page of the file is
+ * available, so the first screen can be shown without waiting for the rest.
+ * The thread then keeps indexing the file page by page, appending each page
+ * to the document, and broadcasts INDEX completion when the whole file is
+ * available.
+ *
+ * Files that MappedFileStorage does not support are read like ReadThread does.
+ */
+public class MapThread extends ReadThread{
+	private MappedFileStorage _storage = null;
+
+	public MapThread(File file, TextBuffer buf,
+			String encoding, String EOLchar){
+		super(file, buf, encoding, EOLchar);
+	}
+
+	@Override
+	protected void realRead() throws IOException{
+		detectEncodingAndEOL();
+		if(!MappedFileStorage.isSupported(_encoding, _EOLchar)){
+			super.realRead();
+			return;
+		}
+
+		_storage = new MappedFileStorage(_file, _encoding, _EOLchar);
+		_buf.setStorage(_storage, _encoding, _EOLchar);
+		_isDone = true;
+		broadcastComplete(ProgressSource.READ);
+
+		_buf.finishLoading(_abortFlag);
+
+		if(!_abortFlag.isSet()){
+			broadcastComplete(ProgressSource.INDEX);
+		}
+	}
+
+	@Override
+	public int getCurrent(){
+		if(_storage == null){
+			return super.getCurrent();
+		}
+
+		int fileSize = _storage.getFileSize();
+		double progressProportion = (fileSize == 0) ? 1 :
+			(double) _storage.getIndexedBytes() / (double) fileSize;
+		return (int) (progressProportion * getMax());
+	}
+}
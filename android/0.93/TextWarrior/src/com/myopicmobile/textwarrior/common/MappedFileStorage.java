@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A PieceTable whose original buffer is a file mapped into memory.
+ *
+ * The file is divided into pages of about PAGE_SIZE bytes. Pages are decoded
+ * only when their chars are needed, and only the most recently used pages are
+ * kept decoded. Edits go into the add buffer of the piece table; the file
+ * itself is never modified.
+ *
+ * The number of chars and newlines in a page is only known after the page is
+ * decoded, so the file is made available incrementally. Initially, only the
+ * first page is part of the text. Each call to indexNextPage() appends the
+ * next page to the end of the text, just before EOF. MapThread does this in
+ * the background after the first screen is shown.
+ *
+ * Only single-byte and UTF-8 encodings are supported, and CRLF line
+ * terminators are not, since they are not one char in the text.
+ * See isSupported().
+ *
+ * Calling setContents() discards the mapped file and turns this into an
+ * ordinary PieceTable.
+ *
+ * Snapshots read the original text through this storage from other threads,
+ * so all access to the page table and the decoded page cache is synchronized.
+ */
+public class MappedFileStorage extends PieceTable {
+	private final static int PAGE_SIZE = 64 * 1024; // in bytes
+	private final static int DECODED_PAGES = 8;
+
+	private final File _file;
+	private final boolean _isUtf8;
+	/** Whether '\r' is the line terminator and should be read as '\n' */
+	private final boolean _isCrEOL;
+	private final CharsetDecoder _decoder;
+	/** null once setContents() is called */
+	private MappedByteBuffer _map;
+	private final int _byteLength;
+
+	/* Page table. Only the first _indexedPages entries are valid */
+	private int _indexedPages = 0;
+	/** Byte offset up to which the file has been indexed */
+	private int _indexedBytes;
+	private int[] _pageByteStart;
+	/** Position of the first char of each page in the original buffer,
+	 * plus an entry for the end of the last indexed page */
+	private int[] _pageCharStart;
+	/** Number of newlines before each page, plus an entry for the total */
+	private int[] _pageNewlineStart;
+
+	/* Cache of decoded pages, replaced round-robin */
+	private final int[] _decodedPageIds = new int[DECODED_PAGES];
+	private final char[][] _decodedPages = new char[DECODED_PAGES][];
+	private int _nextDecodedSlot = 0;
+	/** Index into the decoded page cache of the last page used */
+	private int _lastSlot = 0;
+
+	/**
+	 * Maps file and makes its first page available.
+	 *
+	 * @param encoding One of the encodings accepted by isSupported()
+	 * @param EOLchar One of the line terminator styles accepted by isSupported()
+	 */
+	public MappedFileStorage(File file, String encoding, String EOLchar)
+	throws IOException{
+		TextWarriorException.assertVerbose(isSupported(encoding, EOLchar),
+				"Unsupported encoding or line terminator for mapping");
+
+		_file = file;
+		_isUtf8 = encoding.equals(EncodingScheme.TEXT_ENCODING_UTF8);
+		_isCrEOL = EOLchar.equals(EncodingScheme.LINE_BREAK_CR);
+		_decoder = Charset.forName(encoding).newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)
+				.replaceWith("?");
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			long size = raf.length();
+			if(size > Integer.MAX_VALUE){
+				throw new IOException("File too large to map");
+			}
+			_map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			_byteLength = (int) size;
+		}
+		finally{
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+
+		_indexedBytes = hasByteOrderMark() ? 3 : 0;
+		int initialPages = _byteLength / PAGE_SIZE + 2;
+		_pageByteStart = new int[initialPages];
+		_pageCharStart = new int[initialPages + 1];
+		_pageNewlineStart = new int[initialPages + 1];
+		for(int i = 0; i < DECODED_PAGES; ++i){
+			_decodedPageIds[i] = -1;
+		}
+
+		indexNextPage();
+	}
+
+	/**
+	 * Whether files with the given encoding and line terminator style can
+	 * be mapped
+	 */
+	public static boolean isSupported(String encoding, String EOLchar){
+		return (encoding.equals(EncodingScheme.TEXT_ENCODING_UTF8)
+				|| encoding.equals(EncodingScheme.TEXT_ENCODING_LATIN1))
+				&& !EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF);
+	}
+
+	/**
+	 * Whether the text is still read from file, which therefore should not
+	 * be overwritten in place
+	 */
+	public boolean isMappedFrom(File file){
+		return _map != null
+				&& _file.getAbsoluteFile().equals(file.getAbsoluteFile());
+	}
+
+	public boolean isFullyIndexed(){
+		return _map == null || _indexedBytes >= _byteLength;
+	}
+
+	/** Returns the number of bytes of the file indexed so far */
+	public int getIndexedBytes(){
+		return _indexedBytes;
+	}
+
+	public int getFileSize(){
+		return _byteLength;
+	}
+
+	/**
+	 * Decodes the next page of the file and appends it to the text.
+	 *
+	 * @return The number of chars appended, or 0 if the whole file
+	 * 		has been indexed
+	 */
+	synchronized public int indexNextPage(){
+		if(isFullyIndexed()){
+			return 0;
+		}
+
+		int start = _indexedBytes;
+		int end = Math.min(start + PAGE_SIZE, _byteLength);
+		if(_isUtf8 && end < _byteLength){
+			// do not split a multi-byte sequence across pages
+			int pageEnd = end;
+			while(end > start && (_map.get(end) & 0xC0) == 0x80){
+				--end;
+			}
+			if(end == start){
+				// malformed run of continuation bytes; split it anyway
+				end = pageEnd;
+			}
+		}
+
+		int page = _indexedPages;
+		if(page + 1 >= _pageByteStart.length){
+			growPageTable();
+		}
+		char[] chars = decode(start, end);
+		int newlines = 0;
+		for(int i = 0; i < chars.length; ++i){
+			if(chars[i] == Language.NEWLINE){
+				++newlines;
+			}
+		}
+
+		_pageByteStart[page] = start;
+		_pageCharStart[page + 1] = _pageCharStart[page] + chars.length;
+		_pageNewlineStart[page + 1] = _pageNewlineStart[page] + newlines;
+		_indexedPages = page + 1;
+		_indexedBytes = end;
+		cachePage(page, chars);
+
+		appendOriginal(_pageCharStart[page], chars.length, newlines);
+		return chars.length;
+	}
+
+	@Override
+	synchronized public void setContents(char[] buffer, int textSize, int lineCount){
+		_map = null;
+		for(int i = 0; i < DECODED_PAGES; ++i){
+			_decodedPageIds[i] = -1;
+			_decodedPages[i] = null;
+		}
+		super.setContents(buffer, textSize, lineCount);
+	}
+
+	@Override
+	synchronized protected char originalCharAt(int position){
+		if(_map == null){
+			return super.originalCharAt(position);
+		}
+
+		int page = findPage(position);
+		return getPage(page)[position - _pageCharStart[page]];
+	}
+
+	@Override
+	synchronized protected void copyOriginal(int position, char[] dest, int destOffset, int count){
+		if(_map == null){
+			super.copyOriginal(position, dest, destOffset, count);
+			return;
+		}
+
+		int page = findPage(position);
+		while(count > 0){
+			int pageOffset = position - _pageCharStart[page];
+			int n = Math.min(count, _pageCharStart[page + 1] - position);
+			System.arraycopy(getPage(page), pageOffset, dest, destOffset, n);
+			position += n;
+			destOffset += n;
+			count -= n;
+			++page;
+		}
+	}
+
+	@Override
+	synchronized protected void getOriginalSegment(int position, int maxChars, SegmentCursor seg){
+		if(_map == null){
+			super.getOriginalSegment(position, maxChars, seg);
+			return;
+		}
+
+		int page = findPage(position);
+		// decoded pages are never modified, so they can be handed out
+		seg.set(getPage(page), position - _pageCharStart[page],
+				Math.min(maxChars, _pageCharStart[page + 1] - position));
+	}
+
+	@Override
+	synchronized protected int countOriginalNewlines(int start, int end){
+		if(_map == null){
+			return super.countOriginalNewlines(start, end);
+		}
+		if(start >= end){
+			return 0;
+		}
+
+		int firstPage = findPage(start);
+		int lastPage = findPage(end - 1);
+		if(firstPage == lastPage){
+			return countPageNewlines(firstPage, start, end);
+		}
+
+		return countPageNewlines(firstPage, start, _pageCharStart[firstPage + 1])
+				+ _pageNewlineStart[lastPage] - _pageNewlineStart[firstPage + 1]
+				+ countPageNewlines(lastPage, _pageCharStart[lastPage], end);
+	}
+
+	@Override
+	synchronized protected int findOriginalNewline(int start, int n){
+		if(_map == null){
+			return super.findOriginalNewline(start, n);
+		}
+
+		int page = findPage(start);
+		int inFirstPage = countPageNewlines(page, start, _pageCharStart[page + 1]);
+		if(n > inFirstPage){
+			// find the page containing the target newline by its running total
+			int target = _pageNewlineStart[page + 1] + n - inFirstPage;
+			int low = page + 1;
+			int high = _indexedPages - 1;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(_pageNewlineStart[mid + 1] < target){
+					low = mid + 1;
+				}
+				else{
+					high = mid;
+				}
+			}
+			page = low;
+			start = _pageCharStart[page];
+			n = target - _pageNewlineStart[page];
+		}
+
+		char[] chars = getPage(page);
+		int i = start - _pageCharStart[page];
+		while(true){
+			if(chars[i] == Language.NEWLINE && --n == 0){
+				return _pageCharStart[page] + i;
+			}
+			++i;
+		}
+	}
+
+	private int countPageNewlines(int page, int start, int end){
+		char[] chars = getPage(page);
+		int pageStart = _pageCharStart[page];
+		int newlines = 0;
+		for(int i = start - pageStart; i < end - pageStart; ++i){
+			if(chars[i] == Language.NEWLINE){
+				++newlines;
+			}
+		}
+		return newlines;
+	}
+
+	/**
+	 * Returns the indexed page containing the char at position of the
+	 * original buffer
+	 */
+	private int findPage(int position){
+		int last = _decodedPageIds[_lastSlot];
+		if(last >= 0 && position >= _pageCharStart[last]
+				&& position < _pageCharStart[last + 1]){
+			return last;
+		}
+
+		int low = 0;
+		int high = _indexedPages - 1;
+		while(low < high){
+			int mid = (low + high + 1) >>> 1;
+			if(_pageCharStart[mid] <= position){
+				low = mid;
+			}
+			else{
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/** Returns the decoded chars of an indexed page */
+	private char[] getPage(int page){
+		if(_decodedPageIds[_lastSlot] == page){
+			return _decodedPages[_lastSlot];
+		}
+		for(int i = 0; i < DECODED_PAGES; ++i){
+			if(_decodedPageIds[i] == page){
+				_lastSlot = i;
+				return _decodedPages[i];
+			}
+		}
+
+		int end = (page + 1 < _indexedPages) ? _pageByteStart[page + 1] : _indexedBytes;
+		char[] chars = decode(_pageByteStart[page], end);
+		TextWarriorException.assertVerbose(
+				chars.length == _pageCharStart[page + 1] - _pageCharStart[page],
+				"Page decoded to a different length than when it was indexed");
+		cachePage(page, chars);
+		return chars;
+	}
+
+	private void cachePage(int page, char[] chars){
+		int slot = _nextDecodedSlot;
+		_decodedPageIds[slot] = page;
+		_decodedPages[slot] = chars;
+		_lastSlot = slot;
+		_nextDecodedSlot = (slot + 1) % DECODED_PAGES;
+	}
+
+	/** Decodes bytes in [start, end) of the file */
+	private char[] decode(int start, int end){
+		ByteBuffer in = _map.duplicate();
+		in.limit(end);
+		in.position(start);
+		// neither UTF-8 nor single-byte encodings produce more chars than bytes
+		CharBuffer out = CharBuffer.allocate(end - start);
+
+		_decoder.reset();
+		_decoder.decode(in, out, true);
+		_decoder.flush(out);
+
+		char[] chars = new char[out.position()];
+		out.flip();
+		out.get(chars);
+		if(_isCrEOL){
+			for(int i = 0; i < chars.length; ++i){
+				if(chars[i] == '\r'){
+					chars[i] = Language.NEWLINE;
+				}
+			}
+		}
+		return chars;
+	}
+
+	private boolean hasByteOrderMark(){
+		return _isUtf8 && _byteLength >= 3
+				&& _map.get(0) == (byte) 0xEF
+				&& _map.get(1) == (byte) 0xBB
+				&& _map.get(2) == (byte) 0xBF;
+	}
+
+	private void growPageTable(){
+		int size = 2 * _pageByteStart.length;
+		int[] byteStart = new int[size];
+		int[] charStart = new int[size + 1];
+		int[] newlineStart = new int[size + 1];
+		System.arraycopy(_pageByteStart, 0, byteStart, 0, _indexedPages);
+		System.arraycopy(_pageCharStart, 0, charStart, 0, _indexedPages + 1);
+		System.arraycopy(_pageNewlineStart, 0, newlineStart, 0, _indexedPages + 1);
+		_pageByteStart = byteStart;
+		_pageCharStart = charStart;
+		_pageNewlineStart = newlineStart;
+	}
+}
@@ -0,0 +1,774 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A storage engine that never moves existing text around.
+ *
+ * The text is described by a sequence of pieces. Each piece refers to a run
+ * of characters in one of two buffers: the original buffer, which holds the
+ * contents given to setContents() and is never modified, and the add buffer,
+ * which only ever has characters appended to it.
+ *
+ * An insertion appends the new characters to the add buffer and splits the
+ * piece at the insertion point. A deletion trims or removes the pieces that
+ * cover the deleted range. Unlike GapBuffer, the cost of an edit does not
+ * depend on how far it is from the previous edit, and the text is never
+ * copied to a larger array.
+ *
+ * The pieces are the leaves of a B-tree. Every node caches the number of
+ * chars and newlines under it, so finding the piece at an offset or line,
+ * inserting and deleting only descend one path of the tree, taking
+ * O(log n) time in the number of pieces. Like in Rope, nodes are split when
+ * they overflow and removed when they become empty.
+ *
+ * The positions of the newlines in both buffers are indexed as characters are
+ * added to them. The number of newlines in any part of a piece, and therefore
+ * the offset of any line, can then be found by binary search instead of
+ * scanning the text.
+ *
+ * The terminal EOF character is the first character of the add buffer.
+ *
+ * Neither buffer is ever modified in place, and nodes made before the last
+ * snapshot are never modified again; an edit copies the nodes on the path
+ * to the pieces it changes instead. A snapshot is therefore only a pointer
+ * to the root of the tree.
+ */
+public class PieceTable implements TextStorage {
+	private final static int MIN_ADD_BUFFER_SIZE = 64;
+	private final static int MAX_CHILDREN = 32;
+
+	private char[] _original;
+	/** Sorted positions of newlines in _original */
+	private int[] _originalNewlines;
+	private int _originalNewlineCount;
+
+	private char[] _added;
+	private int _addedLength;
+	/** Sorted positions of newlines in _added */
+	private int[] _addedNewlines;
+	private int _addedNewlineCount;
+
+	/** The pieces are all at the same depth below the root */
+	private Internal _root;
+	/** Owns the nodes made since the last snapshot, which can be modified
+	 * in place. Other nodes may be shared with snapshots */
+	private Object _owner = new Object();
+
+	/* The most recently used piece, for fast sequential access.
+	 * Invalidated by edits. */
+	private Piece _cachedPiece = null;
+	/** Offset of the first char of _cachedPiece */
+	private int _cachedPieceStart;
+	/** Number of newlines before _cachedPiece */
+	private int _cachedPieceLine;
+
+	public PieceTable(){
+		_original = new char[0];
+		_originalNewlines = new int[0];
+		_originalNewlineCount = 0;
+		initAddBuffer();
+
+		ArrayList<Node> pieces = new ArrayList<Node>();
+		pieces.add(new Piece(_owner, true, 0, 1, 0)); // EOF
+		_root = new Internal(_owner, pieces);
+	}
+
+	private void initAddBuffer(){
+		_added = new char[MIN_ADD_BUFFER_SIZE];
+		_added[0] = Language.EOF;
+		_addedLength = 1;
+		_addedNewlines = new int[MIN_ADD_BUFFER_SIZE];
+		_addedNewlineCount = 0;
+	}
+
+	@Override
+	public void setContents(char[] buffer, int textSize, int lineCount){
+		int[] newlines = new int[Math.max(lineCount - 1, 0)];
+		int newlineCount = 0;
+		for(int i = 0; i < textSize; ++i){
+			if(buffer[i] == Language.NEWLINE){
+				if(newlineCount == newlines.length){
+					newlines = growArray(newlines, newlineCount + 1);
+				}
+				newlines[newlineCount++] = i;
+			}
+		}
+
+		_original = buffer;
+		_originalNewlines = newlines;
+		_originalNewlineCount = newlineCount;
+		initAddBuffer();
+
+		ArrayList<Node> pieces = new ArrayList<Node>();
+		if(textSize > 0){
+			pieces.add(new Piece(_owner, false, 0, textSize, newlineCount));
+		}
+		pieces.add(new Piece(_owner, true, 0, 1, 0)); // EOF
+		_root = new Internal(_owner, pieces);
+		_cachedPiece = null;
+	}
+
+	@Override
+	public int length(){
+		return _root._length;
+	}
+
+	@Override
+	public int getLineCount(){
+		return _root._newlines + 1;
+	}
+
+	@Override
+	public char charAt(int charOffset){
+		seekPiece(charOffset);
+		Piece p = _cachedPiece;
+		int position = p._start + charOffset - _cachedPieceStart;
+		return p._isAdded ? _added[position] : originalCharAt(position);
+	}
+
+	@Override
+	public char[] subSequence(int charOffset, int totalChars){
+		char[] chars = new char[totalChars];
+		getChars(charOffset, charOffset + totalChars, chars, 0);
+		return chars;
+	}
+
+	@Override
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		int offset = srcBegin;
+		while(offset < srcEnd){
+			seekPiece(offset);
+			Piece p = _cachedPiece;
+			int pieceOffset = offset - _cachedPieceStart;
+			int count = Math.min(p._length - pieceOffset, srcEnd - offset);
+			if(p._isAdded){
+				System.arraycopy(_added, p._start + pieceOffset, dst,
+						dstBegin + offset - srcBegin, count);
+			}
+			else{
+				copyOriginal(p._start + pieceOffset, dst,
+						dstBegin + offset - srcBegin, count);
+			}
+			offset += count;
+		}
+	}
+
+	@Override
+	public void getSegment(int charOffset, int maxChars, SegmentCursor seg){
+		seekPiece(charOffset);
+		Piece p = _cachedPiece;
+		int pieceOffset = charOffset - _cachedPieceStart;
+		int count = Math.min(maxChars, p._length - pieceOffset);
+		if(p._isAdded){
+			seg.set(_added, p._start + pieceOffset, count);
+		}
+		else{
+			getOriginalSegment(p._start + pieceOffset, count, seg);
+		}
+	}
+
+	@Override
+	public TextSnapshot snapshot(){
+		_owner = new Object();
+		return new PieceSnapshot(this);
+	}
+
+	/**
+	 * Returns node if it can be modified in place, or else a copy of it
+	 * that can, leaving node to the snapshots that share it
+	 */
+	private Node mutable(Node node){
+		if(node._owner == _owner){
+			return node;
+		}
+		return (node instanceof Piece)
+				? new Piece(_owner, (Piece) node)
+				: new Internal(_owner, (Internal) node);
+	}
+
+	/**
+	 * Replaces the child at index with a copy of it if it cannot be
+	 * modified in place
+	 *
+	 * @return The child at index
+	 */
+	private Node mutableChild(ArrayList<Node> children, int index){
+		Node child = children.get(index);
+		Node copy = mutable(child);
+		if(copy != child){
+			children.set(index, copy);
+		}
+		return copy;
+	}
+
+	@Override
+	public void insert(char[] c, int charOffset){
+		if(c.length == 0){
+			return;
+		}
+
+		int addStart = _addedLength;
+		int newlines = append(c);
+		insertPiece(charOffset, true, addStart, c.length, newlines);
+	}
+
+	/**
+	 * Inserts a piece at charOffset. If the piece that ends at charOffset
+	 * is in the same buffer and ends where the new piece starts, it is
+	 * grown instead.
+	 */
+	private void insertPiece(int charOffset, boolean isAdded, int start,
+			int length, int newlines){
+		_cachedPiece = null;
+
+		_root = (Internal) mutable(_root);
+		ArrayList<Node> siblings = insert(_root, charOffset,
+				isAdded, start, length, newlines);
+		while(siblings != null){
+			// root was split; grow the tree by one level
+			ArrayList<Node> children = new ArrayList<Node>();
+			children.add(_root);
+			children.addAll(siblings);
+			Internal newRoot = new Internal(_owner, children);
+			siblings = split(newRoot);
+			_root = newRoot;
+		}
+	}
+
+	/**
+	 * Inserts a piece into node at charOffset. node must be mutable.
+	 *
+	 * @return New nodes split off from node, which should be placed
+	 * 		immediately after it, or null if node did not overflow
+	 */
+	private ArrayList<Node> insert(Internal node, int charOffset,
+			boolean isAdded, int start, int length, int newlines){
+		ArrayList<Node> children = node._children;
+		int i = 0;
+		Node child = children.get(0);
+		// an offset between two children goes to the end of the first one,
+		// so that the piece before it can be grown
+		while(charOffset > child._length && i < children.size() - 1){
+			charOffset -= child._length;
+			child = children.get(++i);
+		}
+
+		if(child instanceof Internal){
+			child = mutableChild(children, i);
+			ArrayList<Node> siblings = insert((Internal) child, charOffset,
+					isAdded, start, length, newlines);
+			if(siblings != null){
+				children.addAll(i + 1, siblings);
+			}
+		}
+		else{
+			Piece p = (Piece) child;
+			if(charOffset == p._length && p._isAdded == isAdded
+					&& p._start + p._length == start){
+				// continuation of the previous insertion; grow its piece
+				p = (Piece) mutableChild(children, i);
+				p._length += length;
+				p._newlines += newlines;
+			}
+			else if(charOffset == p._length){
+				children.add(i + 1, new Piece(_owner, isAdded, start, length, newlines));
+			}
+			else if(charOffset == 0){
+				children.add(i, new Piece(_owner, isAdded, start, length, newlines));
+			}
+			else{
+				// split p around the insertion point
+				p = (Piece) mutableChild(children, i);
+				int leftNewlines = countNewlines(p, p._start, p._start + charOffset);
+				Piece right = new Piece(_owner, p._isAdded, p._start + charOffset,
+						p._length - charOffset, p._newlines - leftNewlines);
+				p._length = charOffset;
+				p._newlines = leftNewlines;
+				children.add(i + 1, new Piece(_owner, isAdded, start, length, newlines));
+				children.add(i + 2, right);
+			}
+		}
+
+		node._length += length;
+		node._newlines += newlines;
+		return split(node);
+	}
+
+	/**
+	 * If node has more than MAX_CHILDREN children, moves the excess
+	 * children to new nodes. node must be mutable.
+	 *
+	 * @return The new nodes, which should be placed immediately after node,
+	 * 		or null if node did not overflow
+	 */
+	private ArrayList<Node> split(Internal node){
+		ArrayList<Node> children = node._children;
+		int childCount = children.size();
+		if(childCount <= MAX_CHILDREN){
+			return null;
+		}
+
+		int nodeCount = (childCount + MAX_CHILDREN - 1) / MAX_CHILDREN;
+		int groupSize = (childCount + nodeCount - 1) / nodeCount;
+		ArrayList<Node> siblings = new ArrayList<Node>(nodeCount - 1);
+		for(int i = groupSize; i < childCount; i += groupSize){
+			int end = Math.min(i + groupSize, childCount);
+			siblings.add(new Internal(_owner, children.subList(i, end)));
+		}
+
+		ArrayList<Node> remaining = new ArrayList<Node>(children.subList(0, groupSize));
+		node._children = remaining;
+		node.recount();
+		return siblings;
+	}
+
+	@Override
+	public void delete(int charOffset, int totalChars){
+		if(totalChars <= 0){
+			return;
+		}
+		_cachedPiece = null;
+
+		_root = (Internal) mutable(_root);
+		ArrayList<Node> siblings = delete(_root, charOffset, charOffset + totalChars);
+		while(siblings != null){
+			// a piece split by the deletion overflowed the root
+			ArrayList<Node> children = new ArrayList<Node>();
+			children.add(_root);
+			children.addAll(siblings);
+			Internal newRoot = new Internal(_owner, children);
+			siblings = split(newRoot);
+			_root = newRoot;
+		}
+	}
+
+	/**
+	 * Deletes [start, end) of the text under node. Children that are
+	 * wholly deleted are removed. node must be mutable.
+	 *
+	 * @return New nodes split off from node, which should be placed
+	 * 		immediately after it, or null if node did not overflow
+	 */
+	private ArrayList<Node> delete(Internal node, int start, int end){
+		ArrayList<Node> children = node._children;
+		int i = 0;
+		int childStart = 0;
+		while(i < children.size() && childStart < end){
+			Node child = children.get(i);
+			int childEnd = childStart + child._length;
+			if(childEnd <= start){
+				++i;
+			}
+			else if(start <= childStart && childEnd <= end){
+				children.remove(i);
+			}
+			else{
+				int from = Math.max(start, childStart) - childStart;
+				int to = Math.min(end, childEnd) - childStart;
+				child = mutableChild(children, i);
+				ArrayList<Node> siblings = (child instanceof Piece)
+						? deleteFromPiece((Piece) child, from, to)
+						: delete((Internal) child, from, to);
+				if(siblings != null){
+					children.addAll(i + 1, siblings);
+					i += siblings.size();
+				}
+				++i;
+			}
+			childStart = childEnd;
+		}
+
+		node.recount();
+		return split(node);
+	}
+
+	/**
+	 * Deletes [from, to) of p, which must be mutable. Part of p is kept.
+	 *
+	 * @return The part of p after the deletion as a new piece, if the
+	 * 		deletion lies strictly inside p, or else null
+	 */
+	private ArrayList<Node> deleteFromPiece(Piece p, int from, int to){
+		if(from == 0){
+			// trim the head of p
+			int headNewlines = countNewlines(p, p._start, p._start + to);
+			p._start += to;
+			p._length -= to;
+			p._newlines -= headNewlines;
+			return null;
+		}
+
+		int leftNewlines = countNewlines(p, p._start, p._start + from);
+		ArrayList<Node> siblings = null;
+		if(to < p._length){
+			// deletion lies strictly inside p; split p
+			int midNewlines = countNewlines(p, p._start + from, p._start + to);
+			siblings = new ArrayList<Node>(1);
+			siblings.add(new Piece(_owner, p._isAdded, p._start + to,
+					p._length - to, p._newlines - leftNewlines - midNewlines));
+		}
+		p._length = from;
+		p._newlines = leftNewlines;
+		return siblings;
+	}
+
+	@Override
+	public int getLineOffset(int lineNumber){
+		if(lineNumber == 0){
+			return 0;
+		}
+		if(lineNumber < 0 || lineNumber > _root._newlines){
+			return -1;
+		}
+
+		// find the piece containing the newline that ends line (lineNumber-1)
+		Node node = _root;
+		int offset = 0;
+		while(node instanceof Internal){
+			for(Node child : ((Internal) node)._children){
+				if(lineNumber <= child._newlines){
+					node = child;
+					break;
+				}
+				lineNumber -= child._newlines;
+				offset += child._length;
+			}
+		}
+
+		Piece p = (Piece) node;
+		int newlinePosition;
+		if(p._isAdded){
+			int firstNewline = lowerBound(_addedNewlines, _addedNewlineCount, p._start);
+			newlinePosition = _addedNewlines[firstNewline + lineNumber - 1];
+		}
+		else{
+			newlinePosition = findOriginalNewline(p._start, lineNumber);
+		}
+		return offset + (newlinePosition - p._start) + 1;
+	}
+
+	@Override
+	public int findLineNumber(int charOffset){
+		if(charOffset < 0 || charOffset >= _root._length){
+			return -1;
+		}
+
+		seekPiece(charOffset);
+		Piece p = _cachedPiece;
+		return _cachedPieceLine + countNewlines(p, p._start,
+				p._start + charOffset - _cachedPieceStart);
+	}
+
+	/**
+	 * Returns the number of pieces the text is split into
+	 */
+	public int getPieceCount(){
+		return countPieces(_root);
+	}
+
+	private static int countPieces(Node node){
+		if(node instanceof Piece){
+			return 1;
+		}
+		int count = 0;
+		for(Node child : ((Internal) node)._children){
+			count += countPieces(child);
+		}
+		return count;
+	}
+
+	/**
+	 * Sets the cache to the piece containing charOffset.
+	 * Precondition: 0 <= charOffset < length()
+	 */
+	private void seekPiece(int charOffset){
+		if(_cachedPiece != null && charOffset >= _cachedPieceStart
+				&& charOffset < _cachedPieceStart + _cachedPiece._length){
+			return;
+		}
+
+		Node node = _root;
+		int start = 0;
+		int lines = 0;
+		while(node instanceof Internal){
+			ArrayList<Node> children = ((Internal) node)._children;
+			int i = 0;
+			Node child = children.get(0);
+			while(charOffset >= start + child._length){
+				start += child._length;
+				lines += child._newlines;
+				child = children.get(++i);
+			}
+			node = child;
+		}
+
+		_cachedPiece = (Piece) node;
+		_cachedPieceStart = start;
+		_cachedPieceLine = lines;
+	}
+
+	/**
+	 * Appends c to the add buffer and indexes its newlines.
+	 *
+	 * @return The number of newlines in c
+	 */
+	private int append(char[] c){
+		if(_addedLength + c.length > _added.length){
+			char[] temp = new char[Math.max(2 * _added.length, _addedLength + c.length)];
+			System.arraycopy(_added, 0, temp, 0, _addedLength);
+			_added = temp;
+		}
+
+		int newlines = 0;
+		for(int i = 0; i < c.length; ++i){
+			if(c[i] == Language.NEWLINE){
+				if(_addedNewlineCount == _addedNewlines.length){
+					_addedNewlines = growArray(_addedNewlines, _addedNewlineCount + 1);
+				}
+				_addedNewlines[_addedNewlineCount++] = _addedLength + i;
+				++newlines;
+			}
+		}
+
+		System.arraycopy(c, 0, _added, _addedLength, c.length);
+		_addedLength += c.length;
+		return newlines;
+	}
+
+	/**
+	 * Counts the newlines in the buffer of p, from start (inclusive) to
+	 * end (exclusive)
+	 */
+	private int countNewlines(Piece p, int start, int end){
+		if(p._isAdded){
+			return lowerBound(_addedNewlines, _addedNewlineCount, end)
+					- lowerBound(_addedNewlines, _addedNewlineCount, start);
+		}
+		return countOriginalNewlines(start, end);
+	}
+
+	/**
+	 * Appends the chars in [start, start+length) of the original buffer to
+	 * the end of the text, just before EOF. For subclasses that make the
+	 * original text available incrementally.
+	 *
+	 * @param newlines The number of newlines in the appended chars
+	 */
+	protected void appendOriginal(int start, int length, int newlines){
+		// the piece before EOF is grown if it ends where the new chars start
+		insertPiece(_root._length - 1, false, start, length, newlines);
+	}
+
+	/*
+	 * Access to the original buffer. Subclasses that do not keep the
+	 * original text in a char array override all of these.
+	 */
+
+	protected char originalCharAt(int position){
+		return _original[position];
+	}
+
+	protected void copyOriginal(int position, char[] dest, int destOffset, int count){
+		System.arraycopy(_original, position, dest, destOffset, count);
+	}
+
+	/**
+	 * Points seg at a contiguous run of chars of the original buffer starting
+	 * at position, up to maxChars long
+	 */
+	protected void getOriginalSegment(int position, int maxChars, SegmentCursor seg){
+		seg.set(_original, position, maxChars);
+	}
+
+	/**
+	 * Counts the newlines in the original buffer, from start (inclusive) to
+	 * end (exclusive)
+	 */
+	protected int countOriginalNewlines(int start, int end){
+		return lowerBound(_originalNewlines, _originalNewlineCount, end)
+				- lowerBound(_originalNewlines, _originalNewlineCount, start);
+	}
+
+	/**
+	 * Returns the position of the n-th newline, counting from 1, at or
+	 * after start in the original buffer. The newline must exist.
+	 */
+	protected int findOriginalNewline(int start, int n){
+		int first = lowerBound(_originalNewlines, _originalNewlineCount, start);
+		return _originalNewlines[first + n - 1];
+	}
+
+	/**
+	 * Returns the index of the first element in a[0, count) that is not
+	 * less than key, or count if there is no such element
+	 */
+	private static int lowerBound(int[] a, int count, int key){
+		int left = 0;
+		int right = count;
+		while(left < right){
+			int mid = (left + right) >>> 1;
+			if(a[mid] < key){
+				left = mid + 1;
+			}
+			else{
+				right = mid;
+			}
+		}
+		return left;
+	}
+
+	private static int[] growArray(int[] a, int minSize){
+		int[] temp = new int[Math.max(2 * a.length, minSize)];
+		System.arraycopy(a, 0, temp, 0, a.length);
+		return temp;
+	}
+
+
+	/**
+	 * Reads the add buffer directly and the original buffer through the
+	 * PieceTable it was made from. Subclasses that give out original text
+	 * from a cache have to synchronize their access to it.
+	 *
+	 * The nodes of the tree are never modified, so it can be read by
+	 * several threads at once.
+	 */
+	private static class PieceSnapshot extends TextSnapshot{
+		private final PieceTable _source;
+		private final char[] _added;
+		private final Internal _root;
+
+		PieceSnapshot(PieceTable source){
+			_source = source;
+			_added = source._added;
+			_root = source._root;
+		}
+
+		@Override
+		public int length(){
+			return _root._length;
+		}
+
+		@Override
+		public int getLineCount(){
+			return _root._newlines + 1;
+		}
+
+		@Override
+		public char charAt(int charOffset){
+			Node node = _root;
+			while(node instanceof Internal){
+				ArrayList<Node> children = ((Internal) node)._children;
+				int i = 0;
+				Node child = children.get(0);
+				while(charOffset >= child._length){
+					charOffset -= child._length;
+					child = children.get(++i);
+				}
+				node = child;
+			}
+			Piece p = (Piece) node;
+			int position = p._start + charOffset;
+			return p._isAdded ? _added[position] : _source.originalCharAt(position);
+		}
+
+		@Override
+		public void getSegment(int charOffset, int maxChars, SegmentCursor seg){
+			Node node = _root;
+			int pieceOffset = charOffset;
+			while(node instanceof Internal){
+				ArrayList<Node> children = ((Internal) node)._children;
+				int i = 0;
+				Node child = children.get(0);
+				while(pieceOffset >= child._length){
+					pieceOffset -= child._length;
+					child = children.get(++i);
+				}
+				node = child;
+			}
+			Piece p = (Piece) node;
+			int position = p._start + pieceOffset;
+			int count = Math.min(maxChars, p._length - pieceOffset);
+			if(p._isAdded){
+				seg.set(_added, position, count);
+			}
+			else{
+				_source.getOriginalSegment(position, count, seg);
+			}
+		}
+	}
+
+
+	private static abstract class Node{
+		/** The owner token of the table when this node was made */
+		final Object _owner;
+		/** Number of chars under this node */
+		int _length;
+		/** Number of newlines under this node */
+		int _newlines;
+
+		Node(Object owner){
+			_owner = owner;
+		}
+	}
+
+	private static class Piece extends Node{
+		/** Whether the chars are in the add buffer or the original buffer */
+		final boolean _isAdded;
+		/** Position of the first char in the buffer */
+		int _start;
+
+		public Piece(Object owner, boolean isAdded, int start, int length, int newlines){
+			super(owner);
+			_isAdded = isAdded;
+			_start = start;
+			_length = length;
+			_newlines = newlines;
+		}
+
+		/**
+		 * Copies piece
+		 */
+		public Piece(Object owner, Piece piece){
+			this(owner, piece._isAdded, piece._start, piece._length, piece._newlines);
+		}
+	}
+
+	private static class Internal extends Node{
+		ArrayList<Node> _children;
+
+		public Internal(Object owner, List<Node> children){
+			super(owner);
+			_children = new ArrayList<Node>(children);
+			recount();
+		}
+
+		/**
+		 * Copies node. The children are shared.
+		 */
+		public Internal(Object owner, Internal node){
+			super(owner);
+			_children = new ArrayList<Node>(node._children);
+			_length = node._length;
+			_newlines = node._newlines;
+		}
+
+		void recount(){
+			_length = 0;
+			_newlines = 0;
+			for(Node child : _children){
+				_length += child._length;
+				_newlines += child._newlines;
+			}
+		}
+	}
+}
@@ -36,6 +36,7 @@ public interface ProgressSource {
 	static final public int FIND_BACKWARDS = 8;
 	static final public int REPLACE_ALL = 16;
 	static final public int ANALYZE_TEXT = 32;
+	static final public int INDEX = 64;
 	
 	/* Error codes */
 	static final public int ERROR_UNKNOWN = 0;
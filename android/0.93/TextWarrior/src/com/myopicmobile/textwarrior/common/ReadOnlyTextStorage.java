@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * Read access to the characters of a TextBuffer. See TextStorage.
+ *
+ * Like TextStorage, the chars always end with a terminal EOF character,
+ * which is counted in length() and terminates the last line. No error
+ * checking is done on parameters unless otherwise specified.
+ */
+public interface ReadOnlyTextStorage {
+	/**
+	 * Returns the total number of characters stored, including the
+	 * EOF sentinel char
+	 */
+	public int length();
+
+	public int getLineCount();
+
+	/**
+	 * Returns the char at charOffset. If charOffset is invalid, the result
+	 * is undefined.
+	 */
+	public char charAt(int charOffset);
+
+	/**
+	 * Returns a copy of totalChars number of chars starting at charOffset.
+	 * The range must lie within [0, length())
+	 */
+	public char[] subSequence(int charOffset, int totalChars);
+
+	/**
+	 * Copies the chars in [srcBegin, srcEnd) into dst, starting at dstBegin.
+	 * The range must lie within [0, length())
+	 */
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin);
+
+	/**
+	 * Points seg at a run of chars that starts at charOffset and is stored
+	 * contiguously, up to maxChars long. The range [charOffset,
+	 * charOffset + maxChars) must be non-empty and lie within [0, length()).
+	 *
+	 * The array given to seg must not be modified. It is only guaranteed to
+	 * hold the chars until the next call to any method of the storage.
+	 */
+	public void getSegment(int charOffset, int maxChars, SegmentCursor seg);
+
+	/**
+	 * Returns a read-only copy of the current contents, which can be read
+	 * by another thread while this storage is being modified. Storage that
+	 * never changes may return itself.
+	 */
+	public TextSnapshot snapshot();
+
+	/**
+	 * Get the offset of the first character of the line with index lineNumber.
+	 *
+	 * @return The character offset of lineNumber, or -1 if the line does not exist
+	 */
+	public int getLineOffset(int lineNumber);
+
+	/**
+	 * Get the line number that charOffset is on
+	 *
+	 * @return The line number that charOffset is on, or -1 if charOffset is invalid
+	 */
+	public int findLineNumber(int charOffset);
+}
@@ -14,6 +14,14 @@ import java.io.IOException;
 
 
 public class ReadThread extends FileIOThread{
+	/** Files with at least this many chars, but fewer than ROPE_THRESHOLD,
+	 * are loaded into a CompactStorage a chunk at a time. Smaller files are
+	 * kept in a GapBuffer, which undo can take deleted text from lazily. */
+	public final static int COMPACT_THRESHOLD = 256 * 1024;
+	/** Files with at least this many chars are loaded into a Rope, which
+	 * is built a chunk at a time instead of from one array of the whole text */
+	public final static int ROPE_THRESHOLD = 2 * 1024 * 1024;
+
 	final protected TextBuffer _buf;
 
 	public ReadThread(File file, TextBuffer buf,
@@ -45,11 +53,20 @@ public class ReadThread extends FileIOThread{
 	    }
 	}
 
-	private void realRead() throws IOException{
+	protected void realRead() throws IOException{
 		FileInputStream fs = new FileInputStream(_file);
 		
 		try{
 			detectEncodingAndEOL();
+			int textLength = estimateTextLength();
+			if(textLength >= ROPE_THRESHOLD){
+				readIntoRope(fs);
+				return;
+			}
+			if(textLength >= COMPACT_THRESHOLD){
+				readCompact(fs, textLength);
+				return;
+			}
 			char[] newBuffer = allocateBuffer();
 
 			Pair statistics = _converter.readAndConvert(fs, newBuffer,
@@ -73,9 +90,57 @@ public class ReadThread extends FileIOThread{
 		}
 	}
 
+	private void readIntoRope(FileInputStream fs) throws IOException{
+		Rope.Builder builder = new Rope.Builder();
+		_converter.readAndConvert(fs, builder, _encoding, _EOLchar, _abortFlag);
+
+		if(!_abortFlag.isSet()){
+			completeRead(builder.build());
+		}
+		else{
+			broadcastCancel(ProgressSource.READ);
+		}
+	}
+
+	/**
+	 * Narrows the text into bytes as it is converted, unless it turns out
+	 * not to be all Latin-1
+	 */
+	private void readCompact(FileInputStream fs, int textLength) throws IOException{
+		CompactStorage.Builder builder = new CompactStorage.Builder(textLength);
+		_converter.readAndConvert(fs, builder, _encoding, _EOLchar, _abortFlag);
+
+		if(!_abortFlag.isSet()){
+			completeRead(builder.build());
+		}
+		else{
+			broadcastCancel(ProgressSource.READ);
+		}
+	}
+
+	private void completeRead(TextStorage storage){
+		_buf.setStorage(storage, _encoding, _EOLchar);
+		_isDone = true;
+		broadcastComplete(ProgressSource.READ);
+	}
+
 	// throws OutOfMemoryError if there is not enough memory or
 	// total characters > Integer.MAX_VALUE
 	private char[] allocateBuffer(){
+		int implSize = TextBuffer.memoryNeeded(estimateTextLength());
+		if(implSize == -1){
+			throw new OutOfMemoryError();
+		}
+
+		return new char[implSize];
+	}
+
+	/**
+	 * Returns the maximum number of chars in the file, which is also
+	 * used to report progress.
+	 * Throws OutOfMemoryError if it is more than Integer.MAX_VALUE.
+	 */
+	private int estimateTextLength(){
 		TextWarriorException.assertVerbose(
 				!_encoding.equals(EncodingScheme.TEXT_ENCODING_AUTO),
 				"AUTO encoding not yet resolved");
@@ -92,16 +157,11 @@ public class ReadThread extends FileIOThread{
 			throw new OutOfMemoryError();
 		}
 
-		int implSize = TextBuffer.memoryNeeded((int) textLength);
-		if(implSize == -1){
-			throw new OutOfMemoryError();
-		}
-
 		_totalChar = (int) textLength;
-		return new char[implSize];
+		return _totalChar;
 	}
 
-	private void detectEncodingAndEOL() throws IOException{
+	protected void detectEncodingAndEOL() throws IOException{
 		if (_encoding.equals(EncodingScheme.TEXT_ENCODING_AUTO)){
 			_encoding = _converter.getEncodingScheme(_file);
 		}
@@ -0,0 +1,725 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A storage engine for very large texts.
+ *
+ * The text is split into small leaf arrays of at most LEAF_SIZE chars, which
+ * are the leaves of a B-tree. Every node caches the number of chars and
+ * newlines under it, so insert, delete, charAt, getLineOffset and
+ * findLineNumber only descend one path of the tree, taking O(log n) time.
+ * Edits never copy more than a leaf, and no allocation is larger than a leaf
+ * or the text being inserted. Builder loads a file into a rope the same way,
+ * without first reading all of it into one array.
+ *
+ * Nodes are split when they overflow. Empty nodes are removed and small
+ * neighbouring leaves are merged, but underfull internal nodes are kept;
+ * the height of the tree only grows when the root is split.
+ *
+ * Snapshots share the tree. Nodes made before the last snapshot are never
+ * modified again; an edit copies the nodes on the path to the leaves it
+ * changes instead. A snapshot is therefore only a pointer to the root, and
+ * the first edit after it copies O(log n) nodes and a leaf.
+ */
+public class Rope implements TextStorage {
+	private final static int LEAF_SIZE = 2048;
+	private final static int MAX_CHILDREN = 32;
+
+	private Node _root;
+	/** Owns the nodes made since the last snapshot, which can be modified
+	 * in place. Other nodes may be shared with snapshots */
+	private Object _owner = new Object();
+
+	/* The most recently used leaf, for fast sequential access.
+	 * Invalidated by edits. */
+	private Leaf _cachedLeaf = null;
+	/** Offset of the first char of _cachedLeaf */
+	private int _cachedLeafStart;
+	/** Number of newlines before _cachedLeaf */
+	private int _cachedLeafLine;
+
+	public Rope(){
+		Leaf leaf = new Leaf(_owner, new char[]{Language.EOF}, 1);
+		_root = leaf;
+	}
+
+	private Rope(Object owner, Node root){
+		_owner = owner;
+		_root = root;
+	}
+
+	@Override
+	public void setContents(char[] buffer, int textSize, int lineCount){
+		_cachedLeaf = null;
+		int totalChars = textSize + 1;
+		int leafCount = (totalChars + LEAF_SIZE - 1) / LEAF_SIZE;
+		ArrayList<Node> nodes = new ArrayList<Node>(leafCount);
+
+		int start = 0;
+		for(int i = 0; i < leafCount; ++i){
+			int size = Math.min(LEAF_SIZE, totalChars - start);
+			char[] chars = new char[size];
+			int textChars = Math.min(size, textSize - start);
+			System.arraycopy(buffer, start, chars, 0, textChars);
+			if(textChars < size){
+				chars[textChars] = Language.EOF;
+			}
+			nodes.add(new Leaf(_owner, chars, size));
+			start += size;
+		}
+		_root = buildTree(_owner, nodes);
+	}
+
+	/**
+	 * Builds the upper levels of a tree whose leaves are nodes, filling
+	 * each internal node with MAX_CHILDREN children
+	 *
+	 * @return The root of the tree
+	 */
+	private static Node buildTree(Object owner, ArrayList<Node> nodes){
+		while(nodes.size() > 1){
+			ArrayList<Node> parents = new ArrayList<Node>();
+			for(int i = 0; i < nodes.size(); i += MAX_CHILDREN){
+				int end = Math.min(i + MAX_CHILDREN, nodes.size());
+				parents.add(new Internal(owner, nodes.subList(i, end)));
+			}
+			nodes = parents;
+		}
+		return nodes.get(0);
+	}
+
+	@Override
+	public int length(){
+		return _root._length;
+	}
+
+	@Override
+	public int getLineCount(){
+		return _root._newlines + 1;
+	}
+
+	@Override
+	public char charAt(int charOffset){
+		seekLeaf(charOffset);
+		return _cachedLeaf._chars[charOffset - _cachedLeafStart];
+	}
+
+	@Override
+	public char[] subSequence(int charOffset, int totalChars){
+		char[] chars = new char[totalChars];
+		copy(_root, charOffset, charOffset + totalChars, chars, 0);
+		return chars;
+	}
+
+	@Override
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		if(srcBegin < srcEnd){
+			copy(_root, srcBegin, srcEnd, dst, dstBegin);
+		}
+	}
+
+	/**
+	 * Copies chars in [start, end) of node to dest, starting at destOffset
+	 */
+	private static void copy(Node node, int start, int end, char[] dest, int destOffset){
+		if(node instanceof Leaf){
+			System.arraycopy(((Leaf) node)._chars, start, dest, destOffset, end - start);
+			return;
+		}
+
+		int childStart = 0;
+		for(Node child : ((Internal) node)._children){
+			int childEnd = childStart + child._length;
+			if(childEnd > start && childStart < end){
+				int from = Math.max(start, childStart);
+				int to = Math.min(end, childEnd);
+				copy(child, from - childStart, to - childStart,
+						dest, destOffset + from - start);
+			}
+			if(childEnd >= end){
+				break;
+			}
+			childStart = childEnd;
+		}
+	}
+
+	@Override
+	public void getSegment(int charOffset, int maxChars, SegmentCursor seg){
+		seekLeaf(charOffset);
+		int leafOffset = charOffset - _cachedLeafStart;
+		seg.set(_cachedLeaf._chars, leafOffset,
+				Math.min(maxChars, _cachedLeaf._length - leafOffset));
+	}
+
+	/**
+	 * The snapshot shares the tree. From now on, its nodes are copied
+	 * before they are modified.
+	 */
+	@Override
+	public TextSnapshot snapshot(){
+		_owner = new Object();
+		return new RopeSnapshot(_root);
+	}
+
+	/**
+	 * Returns node if it can be modified in place, or else a copy of it
+	 * that can, leaving node to the snapshots that share it
+	 */
+	private Node mutable(Node node){
+		if(node._owner == _owner){
+			return node;
+		}
+		return (node instanceof Leaf)
+				? new Leaf(_owner, (Leaf) node)
+				: new Internal(_owner, (Internal) node);
+	}
+
+	/**
+	 * Replaces the child at index with a copy of it if it cannot be
+	 * modified in place
+	 *
+	 * @return The child at index
+	 */
+	private Node mutableChild(ArrayList<Node> children, int index){
+		Node child = children.get(index);
+		Node copy = mutable(child);
+		if(copy != child){
+			children.set(index, copy);
+		}
+		return copy;
+	}
+
+	@Override
+	public void insert(char[] c, int charOffset){
+		if(c.length == 0){
+			return;
+		}
+		_cachedLeaf = null;
+
+		_root = mutable(_root);
+		ArrayList<Node> siblings = insert(_root, charOffset, c, countNewlines(c, 0, c.length));
+		while(siblings != null){
+			// root was split; grow the tree by one level
+			ArrayList<Node> children = new ArrayList<Node>();
+			children.add(_root);
+			children.addAll(siblings);
+			Internal newRoot = new Internal(_owner, children);
+			siblings = split(newRoot);
+			_root = newRoot;
+		}
+	}
+
+	/**
+	 * Inserts c into node at charOffset. node must be mutable.
+	 *
+	 * @return New nodes split off from node, which should be placed
+	 * 		immediately after it, or null if node did not overflow
+	 */
+	private ArrayList<Node> insert(Node node, int charOffset, char[] c, int newlines){
+		if(node instanceof Leaf){
+			return insertIntoLeaf((Leaf) node, charOffset, c, newlines);
+		}
+
+		Internal parent = (Internal) node;
+		ArrayList<Node> children = parent._children;
+		int i = 0;
+		Node child = children.get(0);
+		// insert at the end of the last child if charOffset == node._length
+		while(charOffset >= child._length && i < children.size() - 1){
+			charOffset -= child._length;
+			child = children.get(++i);
+		}
+
+		child = mutableChild(children, i);
+		ArrayList<Node> siblings = insert(child, charOffset, c, newlines);
+		parent._length += c.length;
+		parent._newlines += newlines;
+		if(siblings == null){
+			return null;
+		}
+
+		children.addAll(i + 1, siblings);
+		return split(parent);
+	}
+
+	private ArrayList<Node> insertIntoLeaf(Leaf leaf, int charOffset, char[] c, int newlines){
+		int newLength = leaf._length + c.length;
+
+		if(newLength <= LEAF_SIZE){
+			if(newLength > leaf._chars.length){
+				char[] temp = new char[Math.min(LEAF_SIZE,
+						Math.max(newLength, 2 * leaf._chars.length))];
+				System.arraycopy(leaf._chars, 0, temp, 0, leaf._length);
+				leaf._chars = temp;
+			}
+			System.arraycopy(leaf._chars, charOffset, leaf._chars,
+					charOffset + c.length, leaf._length - charOffset);
+			System.arraycopy(c, 0, leaf._chars, charOffset, c.length);
+			leaf._length = newLength;
+			leaf._newlines += newlines;
+			return null;
+		}
+
+		// overflow; spread the combined text evenly over several leaves
+		char[] combined = new char[newLength];
+		System.arraycopy(leaf._chars, 0, combined, 0, charOffset);
+		System.arraycopy(c, 0, combined, charOffset, c.length);
+		System.arraycopy(leaf._chars, charOffset, combined,
+				charOffset + c.length, leaf._length - charOffset);
+
+		int leafCount = (newLength + LEAF_SIZE - 1) / LEAF_SIZE;
+		int chunkSize = (newLength + leafCount - 1) / leafCount;
+		ArrayList<Node> siblings = new ArrayList<Node>(leafCount - 1);
+
+		char[] chars = new char[LEAF_SIZE];
+		System.arraycopy(combined, 0, chars, 0, chunkSize);
+		leaf._chars = chars;
+		leaf._length = chunkSize;
+		leaf._newlines = countNewlines(chars, 0, chunkSize);
+
+		for(int start = chunkSize; start < newLength; start += chunkSize){
+			int size = Math.min(chunkSize, newLength - start);
+			chars = new char[size];
+			System.arraycopy(combined, start, chars, 0, size);
+			siblings.add(new Leaf(_owner, chars, size));
+		}
+		return siblings;
+	}
+
+	/**
+	 * If node has more than MAX_CHILDREN children, moves the excess
+	 * children to new nodes. node must be mutable.
+	 *
+	 * @return The new nodes, which should be placed immediately after node,
+	 * 		or null if node did not overflow
+	 */
+	private ArrayList<Node> split(Internal node){
+		ArrayList<Node> children = node._children;
+		int childCount = children.size();
+		if(childCount <= MAX_CHILDREN){
+			return null;
+		}
+
+		int nodeCount = (childCount + MAX_CHILDREN - 1) / MAX_CHILDREN;
+		int groupSize = (childCount + nodeCount - 1) / nodeCount;
+		ArrayList<Node> siblings = new ArrayList<Node>(nodeCount - 1);
+		for(int i = groupSize; i < childCount; i += groupSize){
+			int end = Math.min(i + groupSize, childCount);
+			siblings.add(new Internal(_owner, children.subList(i, end)));
+		}
+
+		ArrayList<Node> remaining = new ArrayList<Node>(children.subList(0, groupSize));
+		node._children = remaining;
+		node.recount();
+		return siblings;
+	}
+
+	@Override
+	public void delete(int charOffset, int totalChars){
+		if(totalChars <= 0){
+			return;
+		}
+		_cachedLeaf = null;
+
+		_root = mutable(_root);
+		delete(_root, charOffset, charOffset + totalChars);
+		while(_root instanceof Internal
+				&& ((Internal) _root)._children.size() == 1){
+			_root = ((Internal) _root)._children.get(0);
+		}
+	}
+
+	/**
+	 * Deletes chars in [start, end) of node, which must be mutable.
+	 * Children that become empty are removed.
+	 */
+	private void delete(Node node, int start, int end){
+		if(node instanceof Leaf){
+			Leaf leaf = (Leaf) node;
+			leaf._newlines -= countNewlines(leaf._chars, start, end);
+			System.arraycopy(leaf._chars, end, leaf._chars, start, leaf._length - end);
+			leaf._length -= end - start;
+			return;
+		}
+
+		Internal parent = (Internal) node;
+		ArrayList<Node> children = parent._children;
+		int firstTouched = -1;
+		int childStart = 0;
+		int i = 0;
+		while(i < children.size() && childStart < end){
+			Node child = children.get(i);
+			int childLength = child._length;
+			int childEnd = childStart + childLength;
+			if(childEnd > start){
+				if(firstTouched < 0){
+					firstTouched = i;
+				}
+				int from = Math.max(start, childStart) - childStart;
+				int to = Math.min(end, childEnd) - childStart;
+				if(from == 0 && to == childLength){
+					// the whole child is deleted, so it need not be copied
+					parent._newlines -= child._newlines;
+					parent._length -= childLength;
+					children.remove(i);
+					childStart = childEnd;
+					continue;
+				}
+				child = mutableChild(children, i);
+				parent._newlines -= child._newlines;
+				delete(child, from, to);
+				parent._newlines += child._newlines;
+				parent._length -= to - from;
+			}
+			childStart = childEnd;
+			++i;
+		}
+
+		if(firstTouched >= 0){
+			// the deleted range ends between firstTouched - 1 and i
+			int mergeFrom = Math.max(firstTouched - 1, 0);
+			int mergeTo = Math.min(i, children.size() - 1);
+			for(int j = mergeTo; j > mergeFrom; --j){
+				mergeLeaves(children, j - 1);
+			}
+		}
+	}
+
+	/**
+	 * Merges the child at index with the one after it if both are leaves
+	 * and the combined leaf is not larger than LEAF_SIZE
+	 */
+	private void mergeLeaves(ArrayList<Node> children, int index){
+		if(index + 1 >= children.size()){
+			return;
+		}
+		Node first = children.get(index);
+		Node second = children.get(index + 1);
+		if(!(first instanceof Leaf) || !(second instanceof Leaf)
+				|| first._length + second._length > LEAF_SIZE){
+			return;
+		}
+
+		Leaf left = (Leaf) mutableChild(children, index);
+		Leaf right = (Leaf) second;
+		if(left._chars.length < left._length + right._length){
+			char[] temp = new char[LEAF_SIZE];
+			System.arraycopy(left._chars, 0, temp, 0, left._length);
+			left._chars = temp;
+		}
+		System.arraycopy(right._chars, 0, left._chars, left._length, right._length);
+		left._length += right._length;
+		left._newlines += right._newlines;
+		children.remove(index + 1);
+	}
+
+	@Override
+	public int getLineOffset(int lineNumber){
+		return getLineOffset(_root, lineNumber);
+	}
+
+	private static int getLineOffset(Node root, int lineNumber){
+		if(lineNumber == 0){
+			return 0;
+		}
+		if(lineNumber < 0 || lineNumber > root._newlines){
+			return -1;
+		}
+
+		// find the leaf containing the newline that ends line (lineNumber-1)
+		Node node = root;
+		int offset = 0;
+		while(node instanceof Internal){
+			for(Node child : ((Internal) node)._children){
+				if(lineNumber <= child._newlines){
+					node = child;
+					break;
+				}
+				lineNumber -= child._newlines;
+				offset += child._length;
+			}
+		}
+
+		char[] chars = ((Leaf) node)._chars;
+		int i = 0;
+		while(true){
+			if(chars[i] == Language.NEWLINE && --lineNumber == 0){
+				break;
+			}
+			++i;
+		}
+		return offset + i + 1;
+	}
+
+	@Override
+	public int findLineNumber(int charOffset){
+		if(charOffset < 0 || charOffset >= _root._length){
+			return -1;
+		}
+
+		seekLeaf(charOffset);
+		return _cachedLeafLine + countNewlines(_cachedLeaf._chars, 0,
+				charOffset - _cachedLeafStart);
+	}
+
+	/**
+	 * Sets the cache to the leaf containing charOffset.
+	 * Precondition: 0 <= charOffset < length()
+	 */
+	private void seekLeaf(int charOffset){
+		if(_cachedLeaf != null && charOffset >= _cachedLeafStart
+				&& charOffset < _cachedLeafStart + _cachedLeaf._length){
+			return;
+		}
+
+		Node node = _root;
+		int start = 0;
+		int lines = 0;
+		while(node instanceof Internal){
+			ArrayList<Node> children = ((Internal) node)._children;
+			int i = 0;
+			Node child = children.get(0);
+			while(charOffset >= start + child._length){
+				start += child._length;
+				lines += child._newlines;
+				child = children.get(++i);
+			}
+			node = child;
+		}
+
+		_cachedLeaf = (Leaf) node;
+		_cachedLeafStart = start;
+		_cachedLeafLine = lines;
+	}
+
+	/**
+	 * Returns the height of the tree. A rope with a single leaf has height 1.
+	 */
+	public int getHeight(){
+		int height = 1;
+		Node node = _root;
+		while(node instanceof Internal){
+			node = ((Internal) node)._children.get(0);
+			++height;
+		}
+		return height;
+	}
+
+	private static int countNewlines(char[] chars, int start, int end){
+		int newlines = 0;
+		for(int i = start; i < end; ++i){
+			if(chars[i] == Language.NEWLINE){
+				++newlines;
+			}
+		}
+		return newlines;
+	}
+
+
+	private static abstract class Node{
+		/** The owner token of the rope when this node was made */
+		final Object _owner;
+		/** Number of chars under this node */
+		int _length;
+		/** Number of newlines under this node */
+		int _newlines;
+
+		Node(Object owner){
+			_owner = owner;
+		}
+	}
+
+	private static class Leaf extends Node{
+		char[] _chars;
+
+		public Leaf(Object owner, char[] chars, int length){
+			super(owner);
+			_chars = chars;
+			_length = length;
+			_newlines = countNewlines(chars, 0, length);
+		}
+
+		/**
+		 * Copies leaf
+		 */
+		public Leaf(Object owner, Leaf leaf){
+			super(owner);
+			_chars = leaf._chars.clone();
+			_length = leaf._length;
+			_newlines = leaf._newlines;
+		}
+	}
+
+	private static class Internal extends Node{
+		ArrayList<Node> _children;
+
+		public Internal(Object owner, List<Node> children){
+			super(owner);
+			_children = new ArrayList<Node>(children);
+			recount();
+		}
+
+		/**
+		 * Copies node. The children are shared.
+		 */
+		public Internal(Object owner, Internal node){
+			super(owner);
+			_children = new ArrayList<Node>(node._children);
+			_length = node._length;
+			_newlines = node._newlines;
+		}
+
+		void recount(){
+			_length = 0;
+			_newlines = 0;
+			for(Node child : _children){
+				_length += child._length;
+				_newlines += child._newlines;
+			}
+		}
+	}
+
+
+	/**
+	 * Builds a rope from text received a chunk at a time, such as a file as
+	 * it is converted. The text is copied straight into full leaves, so
+	 * unlike setContents(), it never has to be held in one large array.
+	 */
+	public static class Builder implements TextSink{
+		private final Object _owner = new Object();
+		private final ArrayList<Node> _leaves = new ArrayList<Node>();
+		/** The leaf being filled */
+		private char[] _chars = new char[LEAF_SIZE];
+		private int _length = 0;
+
+		@Override
+		public void append(char[] chars, int count){
+			int start = 0;
+			while(start < count){
+				int size = Math.min(LEAF_SIZE - _length, count - start);
+				System.arraycopy(chars, start, _chars, _length, size);
+				_length += size;
+				start += size;
+				if(_length == LEAF_SIZE){
+					_leaves.add(new Leaf(_owner, _chars, LEAF_SIZE));
+					_chars = new char[LEAF_SIZE];
+					_length = 0;
+				}
+			}
+		}
+
+		/**
+		 * Returns a rope of the text appended so far, followed by EOF.
+		 * The builder should not be used afterwards.
+		 */
+		public Rope build(){
+			// full leaves are added as soon as they are filled,
+			// so there is always room for EOF
+			_chars[_length++] = Language.EOF;
+			_leaves.add(new Leaf(_owner, _chars, _length));
+			return new Rope(_owner, buildTree(_owner, _leaves));
+		}
+	}
+
+
+	/**
+	 * A snapshot of the tree of a Rope. The nodes of the tree are never
+	 * modified, so it can be read by several threads at once.
+	 */
+	private static class RopeSnapshot extends TextSnapshot{
+		private final Node _root;
+
+		RopeSnapshot(Node root){
+			_root = root;
+		}
+
+		@Override
+		public int length(){
+			return _root._length;
+		}
+
+		@Override
+		public int getLineCount(){
+			return _root._newlines + 1;
+		}
+
+		@Override
+		public char charAt(int charOffset){
+			Node node = _root;
+			while(node instanceof Internal){
+				ArrayList<Node> children = ((Internal) node)._children;
+				int i = 0;
+				Node child = children.get(0);
+				while(charOffset >= child._length){
+					charOffset -= child._length;
+					child = children.get(++i);
+				}
+				node = child;
+			}
+			return ((Leaf) node)._chars[charOffset];
+		}
+
+		@Override
+		public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+			if(srcBegin < srcEnd){
+				copy(_root, srcBegin, srcEnd, dst, dstBegin);
+			}
+		}
+
+		@Override
+		public void getSegment(int charOffset, int maxChars, SegmentCursor seg){
+			Node node = _root;
+			int leafOffset = charOffset;
+			while(node instanceof Internal){
+				ArrayList<Node> children = ((Internal) node)._children;
+				int i = 0;
+				Node child = children.get(0);
+				while(leafOffset >= child._length){
+					leafOffset -= child._length;
+					child = children.get(++i);
+				}
+				node = child;
+			}
+			Leaf leaf = (Leaf) node;
+			seg.set(leaf._chars, leafOffset,
+					Math.min(maxChars, leaf._length - leafOffset));
+		}
+
+		@Override
+		public int getLineOffset(int lineNumber){
+			return Rope.getLineOffset(_root, lineNumber);
+		}
+
+		@Override
+		public int findLineNumber(int charOffset){
+			if(charOffset < 0 || charOffset >= _root._length){
+				return -1;
+			}
+
+			Node node = _root;
+			int lines = 0;
+			while(node instanceof Internal){
+				ArrayList<Node> children = ((Internal) node)._children;
+				int i = 0;
+				Node child = children.get(0);
+				while(charOffset >= child._length){
+					charOffset -= child._length;
+					lines += child._newlines;
+					child = children.get(++i);
+				}
+				node = child;
+			}
+			return lines + countNewlines(((Leaf) node)._chars, 0, charOffset);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * Iterates over a range of a document as a series of char array slices, so
+ * that tight loops can scan the text directly instead of calling
+ * DocumentProvider.next() and taking the document lock for every char.
+ *
+ * The usage procedure is as follows:
+ * 1. Call seek(src, start, end) to mark the range to iterate over
+ * 2. Call next() to move to the next slice. It returns false when the
+ *    range is exhausted.
+ * 3. Read array[offset] to array[offset + count - 1]
+ *
+ * A gap buffer gives out at most two slices for the whole document, and tree
+ * storage one slice per node. Slices are capped at MAX_SEGMENT_SIZE chars,
+ * so callers can check for abort requests between slices.
+ *
+ * The array belongs to the storage engine and must not be modified. It is
+ * only guaranteed to hold the document's chars until the document is next
+ * accessed or modified.
+ */
+public class SegmentCursor {
+	public final static int MAX_SEGMENT_SIZE = 16 * 1024;
+
+	public char[] array = null;
+	public int offset = 0;
+	public int count = 0;
+
+	private DocumentProvider _src = null;
+	/** Position in the document of array[offset] */
+	private int _position = 0;
+	/** Position in the document of the start of the next slice */
+	private int _nextPosition = 0;
+	private int _end = 0;
+	/** Holds the chars of slices that storage engines convert as they are
+	 * read. Allocated on first use */
+	private char[] _buffer = null;
+
+	/**
+	 * Sets the cursor to iterate over the chars of src in [start, end).
+	 * end is clamped to the length of src.
+	 */
+	public void seek(DocumentProvider src, int start, int end){
+		_src = src;
+		_position = start;
+		_nextPosition = start;
+		_end = Math.min(end, src.docLength());
+		array = null;
+		offset = 0;
+		count = 0;
+	}
+
+	/**
+	 * Moves to the next slice of the range
+	 *
+	 * @return false if there are no more chars in the range
+	 */
+	public boolean next(){
+		if(_src == null || _nextPosition >= _end){
+			count = 0;
+			return false;
+		}
+
+		int maxChars = Math.min(_end - _nextPosition, MAX_SEGMENT_SIZE);
+		if(_src.getSegment(_nextPosition, maxChars, this) == 0){
+			return false;
+		}
+		_position = _nextPosition;
+		_nextPosition += count;
+		return true;
+	}
+
+	/**
+	 * Returns the position in the document of array[offset]
+	 */
+	public int getPosition(){
+		return _position;
+	}
+
+	/**
+	 * Returns a buffer of at least size chars, owned by this cursor, for
+	 * storage engines that cannot point the cursor at their own arrays.
+	 * Snapshots use it instead of a buffer of their own, so that several
+	 * threads can read a snapshot with their own cursors at the same time.
+	 */
+	char[] getBuffer(int size){
+		if(_buffer == null || _buffer.length < size){
+			_buffer = new char[size];
+		}
+		return _buffer;
+	}
+
+	/**
+	 * Called by storage engines to point the cursor at a slice
+	 */
+	void set(char[] newArray, int newOffset, int newCount){
+		array = newArray;
+		offset = newOffset;
+		count = newCount;
+	}
+}
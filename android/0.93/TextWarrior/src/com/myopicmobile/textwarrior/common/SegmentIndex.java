@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * A sequence of consecutive segments of text, such as lines or rows,
+ * described by their lengths.
+ *
+ * Segments are grouped into blocks of about BLOCK_SIZE lengths each.
+ * Two Fenwick trees over the blocks hold the running totals of segments and
+ * chars, so finding the offset of a segment, or the segment containing an
+ * offset, takes O(log n + BLOCK_SIZE) time. Because only lengths are stored,
+ * an edit inside a segment only updates that segment and the trees; the
+ * segments after it do not have to be shifted.
+ *
+ * Blocks are allocated with little spare room, so that about 4 bytes are
+ * used per segment.
+ *
+ * No error checking is done on parameters.
+ */
+public class SegmentIndex {
+	private final static int BLOCK_SIZE = 64;
+	private final static int MAX_BLOCK_SIZE = 2 * BLOCK_SIZE;
+	/** Spare room added when a block has to grow */
+	private final static int BLOCK_GROWTH = 8;
+
+	/** Lengths of the segments in each block */
+	private int[][] _blocks;
+	/** Number of segments in each block */
+	private int[] _blockSizes;
+	/** Sum of the segment lengths in each block */
+	private int[] _blockLengths;
+	private int _blockCount;
+	/** Fenwick trees of _blockSizes and _blockLengths, indexed from 1 */
+	private int[] _sizeTree;
+	private int[] _lengthTree;
+
+	private int _segmentCount;
+	private int _totalLength;
+	/** Remainder of the last call to search() */
+	private int _remainder;
+
+	public SegmentIndex(){
+		reset(new int[0], 0);
+	}
+
+	/**
+	 * Replaces all segments with the first count entries of lengths
+	 */
+	public void reset(int[] lengths, int count){
+		_blockCount = Math.max((count + BLOCK_SIZE - 1) / BLOCK_SIZE, 1);
+		_blocks = new int[_blockCount][];
+		_blockSizes = new int[_blockCount];
+		_blockLengths = new int[_blockCount];
+		_segmentCount = count;
+		_totalLength = 0;
+
+		for(int b = 0; b < _blockCount; ++b){
+			int start = b * BLOCK_SIZE;
+			int size = Math.max(Math.min(BLOCK_SIZE, count - start), 0);
+			int[] block = new int[size];
+			System.arraycopy(lengths, start, block, 0, size);
+			int sum = 0;
+			for(int i = 0; i < size; ++i){
+				sum += block[i];
+			}
+			_blocks[b] = block;
+			_blockSizes[b] = size;
+			_blockLengths[b] = sum;
+			_totalLength += sum;
+		}
+		rebuildTrees();
+	}
+
+	public int getSegmentCount(){
+		return _segmentCount;
+	}
+
+	public int getTotalLength(){
+		return _totalLength;
+	}
+
+	/**
+	 * Returns the offset of the first char of segment. If segment is
+	 * getSegmentCount(), returns getTotalLength().
+	 */
+	public int getOffset(int segment){
+		if(segment >= _segmentCount){
+			return _totalLength;
+		}
+
+		int b = search(_sizeTree, segment);
+		int local = _remainder;
+		int offset = prefixSum(_lengthTree, b);
+		int[] block = _blocks[b];
+		for(int i = 0; i < local; ++i){
+			offset += block[i];
+		}
+		return offset;
+	}
+
+	/**
+	 * Returns the segment containing the char at offset.
+	 * Precondition: 0 <= offset < getTotalLength()
+	 */
+	public int findSegment(int offset){
+		int b = search(_lengthTree, offset);
+		int remainder = _remainder;
+		int[] block = _blocks[b];
+		int i = 0;
+		while(remainder >= block[i]){
+			remainder -= block[i];
+			++i;
+		}
+		return prefixSum(_sizeTree, b) + i;
+	}
+
+	public int getLength(int segment){
+		int b = search(_sizeTree, segment);
+		return _blocks[b][_remainder];
+	}
+
+	public void setLength(int segment, int length){
+		int b = search(_sizeTree, segment);
+		int delta = length - _blocks[b][_remainder];
+		_blocks[b][_remainder] = length;
+		_blockLengths[b] += delta;
+		_totalLength += delta;
+		fenwickAdd(_lengthTree, b, delta);
+	}
+
+	/**
+	 * Replaces removeCount segments starting from first with the count
+	 * segments in lengths, starting from lengths[start]
+	 */
+	public void replace(int first, int removeCount, int[] lengths, int start, int count){
+		int b;
+		int local;
+		if(first >= _segmentCount){
+			b = _blockCount - 1;
+			local = _blockSizes[b];
+		}
+		else{
+			b = search(_sizeTree, first);
+			local = _remainder;
+		}
+
+		boolean isStructureChanged = false;
+
+		// remove, possibly over several blocks
+		int remaining = removeCount;
+		int removeBlock = b;
+		int removeLocal = local;
+		while(remaining > 0){
+			int[] block = _blocks[removeBlock];
+			int size = _blockSizes[removeBlock];
+			int k = Math.min(remaining, size - removeLocal);
+			int removedLength = 0;
+			for(int i = removeLocal; i < removeLocal + k; ++i){
+				removedLength += block[i];
+			}
+			System.arraycopy(block, removeLocal + k, block, removeLocal,
+					size - removeLocal - k);
+			_blockSizes[removeBlock] -= k;
+			_blockLengths[removeBlock] -= removedLength;
+			_totalLength -= removedLength;
+			fenwickAdd(_sizeTree, removeBlock, -k);
+			fenwickAdd(_lengthTree, removeBlock, -removedLength);
+			if(_blockSizes[removeBlock] == 0){
+				isStructureChanged = true;
+			}
+			remaining -= k;
+			++removeBlock;
+			removeLocal = 0;
+		}
+		_segmentCount -= removeCount;
+
+		// insert into block b
+		if(count > 0){
+			int[] block = _blocks[b];
+			int size = _blockSizes[b];
+			int addedLength = 0;
+			for(int i = start; i < start + count; ++i){
+				addedLength += lengths[i];
+			}
+
+			if(size + count <= MAX_BLOCK_SIZE){
+				if(size + count > block.length){
+					int[] temp = new int[Math.min(size + count + BLOCK_GROWTH,
+							MAX_BLOCK_SIZE)];
+					System.arraycopy(block, 0, temp, 0, size);
+					block = temp;
+					_blocks[b] = block;
+				}
+				System.arraycopy(block, local, block, local + count, size - local);
+				System.arraycopy(lengths, start, block, local, count);
+				_blockSizes[b] += count;
+				_blockLengths[b] += addedLength;
+				fenwickAdd(_sizeTree, b, count);
+				fenwickAdd(_lengthTree, b, addedLength);
+			}
+			else{
+				int[] combined = new int[size + count];
+				System.arraycopy(block, 0, combined, 0, local);
+				System.arraycopy(lengths, start, combined, local, count);
+				System.arraycopy(block, local, combined, local + count, size - local);
+				splitBlock(b, combined);
+				isStructureChanged = true;
+			}
+			_segmentCount += count;
+			_totalLength += addedLength;
+		}
+
+		if(isStructureChanged){
+			removeEmptyBlocks();
+			rebuildTrees();
+		}
+	}
+
+	/**
+	 * Replaces block b with as many blocks as needed to hold segments
+	 */
+	private void splitBlock(int b, int[] segments){
+		int newBlocks = (segments.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int newCount = _blockCount + newBlocks - 1;
+		if(newCount > _blocks.length){
+			int capacity = Math.max(newCount, 2 * _blocks.length);
+			int[][] blocks = new int[capacity][];
+			int[] sizes = new int[capacity];
+			int[] blockLengths = new int[capacity];
+			System.arraycopy(_blocks, 0, blocks, 0, _blockCount);
+			System.arraycopy(_blockSizes, 0, sizes, 0, _blockCount);
+			System.arraycopy(_blockLengths, 0, blockLengths, 0, _blockCount);
+			_blocks = blocks;
+			_blockSizes = sizes;
+			_blockLengths = blockLengths;
+		}
+
+		int tail = _blockCount - b - 1;
+		System.arraycopy(_blocks, b + 1, _blocks, b + newBlocks, tail);
+		System.arraycopy(_blockSizes, b + 1, _blockSizes, b + newBlocks, tail);
+		System.arraycopy(_blockLengths, b + 1, _blockLengths, b + newBlocks, tail);
+
+		for(int i = 0; i < newBlocks; ++i){
+			int from = i * BLOCK_SIZE;
+			int size = Math.min(BLOCK_SIZE, segments.length - from);
+			int[] block = new int[size];
+			System.arraycopy(segments, from, block, 0, size);
+			int sum = 0;
+			for(int j = 0; j < size; ++j){
+				sum += block[j];
+			}
+			_blocks[b + i] = block;
+			_blockSizes[b + i] = size;
+			_blockLengths[b + i] = sum;
+		}
+		_blockCount = newCount;
+	}
+
+	private void removeEmptyBlocks(){
+		int to = 0;
+		for(int from = 0; from < _blockCount; ++from){
+			if(_blockSizes[from] > 0){
+				_blocks[to] = _blocks[from];
+				_blockSizes[to] = _blockSizes[from];
+				_blockLengths[to] = _blockLengths[from];
+				++to;
+			}
+		}
+
+		if(to == 0){
+			// keep one empty block to insert into
+			_blockSizes[0] = 0;
+			_blockLengths[0] = 0;
+			to = 1;
+		}
+		for(int i = to; i < _blockCount; ++i){
+			_blocks[i] = null;
+		}
+		_blockCount = to;
+	}
+
+	private void rebuildTrees(){
+		_sizeTree = new int[_blockCount + 1];
+		_lengthTree = new int[_blockCount + 1];
+		for(int i = 1; i <= _blockCount; ++i){
+			_sizeTree[i] += _blockSizes[i - 1];
+			_lengthTree[i] += _blockLengths[i - 1];
+			int parent = i + (i & -i);
+			if(parent <= _blockCount){
+				_sizeTree[parent] += _sizeTree[i];
+				_lengthTree[parent] += _lengthTree[i];
+			}
+		}
+	}
+
+	/**
+	 * Finds the block containing the element at target, where the blocks
+	 * hold as many elements as given by tree. The position of target in the
+	 * block is left in _remainder.
+	 */
+	private int search(int[] tree, int target){
+		int pos = 0;
+		for(int mask = Integer.highestOneBit(_blockCount); mask != 0; mask >>= 1){
+			int next = pos + mask;
+			if(next <= _blockCount && tree[next] <= target){
+				pos = next;
+				target -= tree[next];
+			}
+		}
+		// skip empty blocks at the end
+		if(pos >= _blockCount){
+			pos = _blockCount - 1;
+			target += (tree == _sizeTree) ? _blockSizes[pos] : _blockLengths[pos];
+		}
+		_remainder = target;
+		return pos;
+	}
+
+	/** Returns the sum of the first count blocks of tree */
+	private static int prefixSum(int[] tree, int count){
+		int sum = 0;
+		for(int i = count; i > 0; i -= i & -i){
+			sum += tree[i];
+		}
+		return sum;
+	}
+
+	private void fenwickAdd(int[] tree, int block, int delta){
+		for(int i = block + 1; i <= _blockCount; i += i & -i){
+			tree[i] += delta;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * The live snapshots that share the array of a gap buffer, and the part of
+ * the array that lies in the gap of every one of them. The array can be
+ * written to in that part without copying it first.
+ *
+ * A snapshot is live until it is released or garbage collected. Once no
+ * snapshot is live, the whole array can be written to.
+ *
+ * Not thread-safe. Only the storage that owns the array should use it.
+ */
+class SnapshotSet{
+	private final ArrayList<Entry> _entries = new ArrayList<Entry>();
+	/** The part of the array in the gap of every snapshot in _entries */
+	private int _gapStart = 0;
+	private int _gapEnd = 0;
+
+	/**
+	 * Adds a snapshot of the array whose gap is [gapStart, gapEnd)
+	 */
+	public void add(TextSnapshot snapshot, int gapStart, int gapEnd){
+		removeDead();
+		_entries.add(new Entry(snapshot, gapStart, gapEnd));
+		if(_entries.size() == 1){
+			_gapStart = gapStart;
+			_gapEnd = gapEnd;
+		}
+		else{
+			_gapStart = Math.max(_gapStart, gapStart);
+			_gapEnd = Math.min(_gapEnd, gapEnd);
+		}
+	}
+
+	/**
+	 * Returns true if [start, end) of the array can be written to without
+	 * changing the text of a live snapshot
+	 */
+	public boolean canWrite(int start, int end){
+		if(_entries.isEmpty() || (start >= _gapStart && end <= _gapEnd)){
+			return true;
+		}
+		// some snapshots may have been released since the gap was narrowed
+		removeDead();
+		return _entries.isEmpty() || (start >= _gapStart && end <= _gapEnd);
+	}
+
+	/**
+	 * Forgets all snapshots. Called when the array is no longer written
+	 * to, because it was copied or replaced.
+	 */
+	public void clear(){
+		_entries.clear();
+	}
+
+	/**
+	 * Removes the snapshots that are released or garbage collected, and
+	 * widens the gap to that of the rest
+	 */
+	private void removeDead(){
+		int gapStart = 0;
+		int gapEnd = Integer.MAX_VALUE;
+		int to = 0;
+		final int count = _entries.size();
+		for(int i = 0; i < count; ++i){
+			Entry entry = _entries.get(i);
+			TextSnapshot snapshot = entry.get();
+			if(snapshot != null && !snapshot.isReleased()){
+				gapStart = Math.max(gapStart, entry._gapStart);
+				gapEnd = Math.min(gapEnd, entry._gapEnd);
+				_entries.set(to++, entry);
+			}
+		}
+		for(int i = count - 1; i >= to; --i){
+			_entries.remove(i);
+		}
+		_gapStart = gapStart;
+		_gapEnd = gapEnd;
+	}
+
+
+	private static class Entry extends WeakReference<TextSnapshot>{
+		private final int _gapStart;
+		/** One past end of gap */
+		private final int _gapEnd;
+
+		Entry(TextSnapshot snapshot, int gapStart, int gapEnd){
+			super(snapshot);
+			_gapStart = gapStart;
+			_gapEnd = gapEnd;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * The spans of a text, in order of their start positions.
+ *
+ * A span is a continuous sequence of chars that have the same format, like
+ * color, font, etc. It extends from its start position to the start of the
+ * next span. The first span also covers the chars before its start.
+ *
+ * Spans are kept in parallel primitive arrays of start positions and token
+ * types, so that a span takes 5 bytes and no object, and the span at an
+ * offset can be found by binary search. insert() and delete() shift the
+ * spans after an edit, so that the spans stay in place over the text that
+ * was not edited until the text is tokenized again.
+ *
+ * Not thread-safe.
+ */
+public class SpanList {
+	private final static int MIN_CAPACITY = 16;
+
+	private int[] _starts;
+	private byte[] _types;
+	private int _count = 0;
+
+	/**
+	 * Creates an empty list. A list must have at least one span before
+	 * it is used by a document.
+	 */
+	public SpanList(){
+		this(MIN_CAPACITY);
+	}
+
+	public SpanList(int capacity){
+		capacity = Math.max(capacity, MIN_CAPACITY);
+		_starts = new int[capacity];
+		_types = new byte[capacity];
+	}
+
+	public SpanList(SpanList rhs){
+		this(rhs._count);
+		System.arraycopy(rhs._starts, 0, _starts, 0, rhs._count);
+		System.arraycopy(rhs._types, 0, _types, 0, rhs._count);
+		_count = rhs._count;
+	}
+
+	/**
+	 * Returns a list with a single span of normal text
+	 */
+	public static SpanList createDefault(){
+		SpanList spans = new SpanList();
+		spans.add(0, Lexer.NORMAL);
+		return spans;
+	}
+
+	public final int size(){
+		return _count;
+	}
+
+	public final int getStart(int index){
+		return _starts[index];
+	}
+
+	/**
+	 * Returns the token type of the span at index. See Lexer
+	 */
+	public final int getType(int index){
+		return _types[index];
+	}
+
+	/**
+	 * Returns the start of the span at index + 1, or Integer.MAX_VALUE if
+	 * the span at index is the last one
+	 */
+	public final int getNextStart(int index){
+		return (index + 1 < _count) ? _starts[index + 1] : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the start of the last span, or -1 if the list is empty
+	 */
+	public int getLastStart(){
+		return (_count > 0) ? _starts[_count - 1] : -1;
+	}
+
+	/**
+	 * Appends a span of tokenType starting at start, which must not be less
+	 * than the start of the last span. If the last span starts at start, it
+	 * is replaced.
+	 */
+	public void add(int start, int tokenType){
+		if(_count > 0 && _starts[_count - 1] == start){
+			_types[_count - 1] = (byte) tokenType;
+			return;
+		}
+
+		ensureCapacity(_count + 1);
+		_starts[_count] = start;
+		_types[_count] = (byte) tokenType;
+		++_count;
+	}
+
+	public void removeLast(){
+		if(_count > 0){
+			--_count;
+		}
+	}
+
+	/**
+	 * Returns the index of the span that contains charOffset, which is the
+	 * last span starting at or before charOffset, or 0 if there is none
+	 */
+	public int findSpan(int charOffset){
+		return Math.max(findFirstFrom(charOffset + 1) - 1, 0);
+	}
+
+	/**
+	 * Returns the index of the first span starting at or after charOffset,
+	 * or size() if there is none
+	 */
+	public int findFirstFrom(int charOffset){
+		int low = 0;
+		int high = _count;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(_starts[mid] < charOffset){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Shifts the spans after totalChars chars are inserted at charOffset.
+	 * The inserted chars join the span before them.
+	 */
+	public void insert(int charOffset, int totalChars){
+		// the first span always starts at the start of the text
+		for(int i = findFirstFrom(Math.max(charOffset, 1)); i < _count; ++i){
+			_starts[i] += totalChars;
+		}
+	}
+
+	/**
+	 * Shifts the spans after totalChars chars starting from charOffset are
+	 * deleted. Spans that start in the deleted range are removed, except for
+	 * the last one, which starts at charOffset afterwards.
+	 */
+	public void delete(int charOffset, int totalChars){
+		int first = findFirstFrom(charOffset);
+		int end = findFirstFrom(charOffset + totalChars + 1);
+		if(end - first > 1){
+			// keep the span of the char after the deleted range
+			int removed = end - first - 1;
+			System.arraycopy(_starts, end - 1, _starts, first, _count - end + 1);
+			System.arraycopy(_types, end - 1, _types, first, _count - end + 1);
+			_count -= removed;
+			end -= removed;
+		}
+
+		if(first < end){
+			_starts[first] = charOffset;
+		}
+		for(int i = end; i < _count; ++i){
+			_starts[i] -= totalChars;
+		}
+	}
+
+	/**
+	 * Replaces the spans starting in [from + shift, to + shift) with the
+	 * spans of src starting in [from, to), moved by shift
+	 */
+	public void splice(SpanList src, int from, int to, int shift){
+		if(from >= to){
+			return;
+		}
+		int first = findFirstFrom(from + shift);
+		int end = findFirstFrom(to + shift);
+		int srcFirst = src.findFirstFrom(from);
+		int srcEnd = src.findFirstFrom(to);
+		int added = srcEnd - srcFirst;
+
+		int newCount = _count - (end - first) + added;
+		ensureCapacity(newCount);
+		System.arraycopy(_starts, end, _starts, first + added, _count - end);
+		System.arraycopy(_types, end, _types, first + added, _count - end);
+		for(int i = 0; i < added; ++i){
+			_starts[first + i] = src._starts[srcFirst + i] + shift;
+			_types[first + i] = src._types[srcFirst + i];
+		}
+		_count = newCount;
+	}
+
+	private void ensureCapacity(int capacity){
+		if(capacity > _starts.length){
+			capacity = Math.max(capacity, 2 * _starts.length);
+			int[] starts = new int[capacity];
+			byte[] types = new byte[capacity];
+			System.arraycopy(_starts, 0, starts, 0, _count);
+			System.arraycopy(_types, 0, types, 0, _count);
+			_starts = starts;
+			_types = types;
+		}
+	}
+}
@@ -8,40 +8,59 @@
  */
 package com.myopicmobile.textwarrior.common;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.List;
-import java.util.Vector;
 
 
-//TODO Have all methods work with charOffsets and move all gap handling to logicalToRealIndex()
+/**
+ * A text document that supports undo/redo. The characters are kept by a
+ * TextStorage engine, which can be selected at construction. By default, a
+ * GapBuffer is used.
+ */
 public class TextBuffer {
-	// gap size must be > 0 to insert into full buffers successfully
-	protected final static int MIN_GAP_SIZE = 50;
-	protected char[] _contents;
-	protected int _gapStartIndex;
-	/** One past end of gap */
-	protected int _gapEndIndex;
-	protected int _lineCount;
-	/** The number of times memory is allocated for the buffer */
-	private int _allocMultiplier;
-	private TextBufferCache _cache;
+	/** The storage engine, or a snapshot of one if this buffer is a
+	 * read-only snapshot. See snapshot() */
+	protected ReadOnlyTextStorage _storage;
 	private UndoStack _undoStack;
 
 	protected String _originalFormat;
 	protected String _originalEOLType;
 	/** Continuous seq of chars that have the same format (color, font, etc.) */
-	protected List<Pair> _spans;
+	protected SpanList _spans;
+	/** Lexer states at some line starts, found by the last lex applied, in
+	 * the same format as spans. null if the text has to be lexed from the
+	 * start. See Lexer */
+	private SpanList _lexStates = null;
+	/** Language of _lexStates */
+	private Language _lexLanguage = null;
+	/* Range edited since the last lex was applied, whose spans and lexer
+	 * states are not valid. _lexDirtyStart is -1 if there is none */
+	private int _lexDirtyStart = -1;
+	private int _lexDirtyEnd = 0;
+	/** Live view of the whole text. See getCharSequence() */
+	private final CharSequence _charSequence = new TextCharSequence(0, -1);
+	/** Incremented on every change to the text. See getVersion() */
+	private int _version = 0;
 
 
 	public TextBuffer(){
-		_contents = new char[MIN_GAP_SIZE + 1]; // extra char for EOF
-		_contents[MIN_GAP_SIZE] = Language.EOF;
-		_allocMultiplier = 1;
-		_gapStartIndex = 0;
-		_gapEndIndex = MIN_GAP_SIZE;
-		_lineCount = 1;
-		_cache = new TextBufferCache();
+		this(new GapBuffer());
+	}
+
+	public TextBuffer(TextStorage storage){
+		_storage = storage;
+		_undoStack = new UndoStack(this);
+		_originalFormat = EncodingScheme.TEXT_ENCODING_UTF8;
+		_originalEOLType = EncodingScheme.LINE_BREAK_LF;
+	}
+
+	/**
+	 * Creates a read-only buffer over a snapshot. Edits to it fail.
+	 * See snapshot()
+	 */
+	protected TextBuffer(TextSnapshot snapshot){
+		_storage = snapshot;
 		_undoStack = new UndoStack(this);
 		_originalFormat = EncodingScheme.TEXT_ENCODING_UTF8;
 		_originalEOLType = EncodingScheme.LINE_BREAK_LF;
@@ -59,21 +78,99 @@ public class TextBuffer {
 	 * 		cannot be satisfied
 	 */
 	public static int memoryNeeded(int textSize){
-		long bufferSize = textSize + MIN_GAP_SIZE + 1; // extra char for EOF
-		if(bufferSize < Integer.MAX_VALUE){
-			return (int) bufferSize;
-		}
-		return -1;
+		return GapBuffer.memoryNeeded(textSize);
 	}
 
 	synchronized public void setBuffer(char[] newBuffer, String encoding,
 			String EOLstyle, int textSize, int lineCount){
 		_originalFormat = encoding;
 		_originalEOLType = EOLstyle;
-		_contents = newBuffer;
-		initGap(textSize);
-		_lineCount = lineCount;
-		_allocMultiplier = 1;
+		TextStorage storage = writableStorage();
+		if(storage == null){
+			return;
+		}
+		storage.setContents(newBuffer, textSize, lineCount);
+		++_version;
+		resetLexStates();
+	}
+
+	/**
+	 * Replaces the storage engine with storage, which already holds the
+	 * text of a file with the given encoding and line terminator style.
+	 * The undo history is discarded.
+	 */
+	synchronized public void setStorage(TextStorage storage, String encoding,
+			String EOLstyle){
+		_originalFormat = encoding;
+		_originalEOLType = EOLstyle;
+		_storage = storage;
+		UndoStack undoStack = new UndoStack(this);
+		undoStack.setMemoryBudget(_undoStack.getMemoryBudget());
+		_undoStack.close();
+		_undoStack = undoStack;
+		++_version;
+		resetLexStates();
+	}
+
+	/**
+	 * Appends the next part of a file that is still being loaded by the
+	 * storage engine, just before the EOF char.
+	 *
+	 * @return The number of chars appended, or 0 if there is nothing
+	 * 		more to load
+	 */
+	synchronized public int loadMore(){
+		if(!(_storage instanceof MappedFileStorage)){
+			return 0;
+		}
+
+		int charOffset = getTextLength() - 1;
+		int appended = ((MappedFileStorage) _storage).indexNextPage();
+		if(appended > 0){
+			++_version;
+			shiftSpans(charOffset, 0, appended);
+			onTextAppended(charOffset, appended);
+		}
+		return appended;
+	}
+
+	/**
+	 * Loads the rest of a file that is still being loaded by the storage
+	 * engine, so that the whole file is available when this returns,
+	 * unless abort is set first. The file is appended a part at a time
+	 * with loadMore(), so other threads can use the text in between.
+	 */
+	public void finishLoading(Flag abort){
+		while(!abort.isSet() && loadMore() > 0){
+			// let the UI thread get the lock between parts
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Called after loadMore() appends totalChars chars at charOffset.
+	 * Subclasses can override this to update their derived state.
+	 */
+	protected void onTextAppended(int charOffset, int totalChars){
+		// do nothing
+	}
+
+	/**
+	 * Whether the text is read on demand from file, which therefore
+	 * should not be overwritten in place
+	 */
+	synchronized public boolean isMappedFrom(File file){
+		return (_storage instanceof MappedFileStorage)
+				&& ((MappedFileStorage) _storage).isMappedFrom(file);
+	}
+
+	/**
+	 * Returns the number of bytes of memory saved by a compact storage
+	 * engine, or 0 if the text is stored as chars
+	 */
+	synchronized public int getStorageSavings(){
+		return (_storage instanceof CompactStorage)
+				? ((CompactStorage) _storage).getBytesSaved() : 0;
 	}
 
 
@@ -122,98 +219,7 @@ public class TextBuffer {
 		if(lineNumber < 0){
 			return -1;
 		}
-		
-		// start search from nearest known lineIndex~charOffset pair
-		Pair cachedEntry = _cache.getNearestLine(lineNumber);
-		int cachedLine = cachedEntry.getFirst();
-		int cachedOffset = cachedEntry.getSecond();
-
-		int offset;
-		if (lineNumber > cachedLine){
-			offset = findCharOffset(lineNumber, cachedLine, cachedOffset);
-		}
-		else if (lineNumber < cachedLine){
-			offset = findCharOffsetBackward(lineNumber, cachedLine, cachedOffset);
-		}
-		else{
-			offset = cachedOffset;
-		}
-		
-		if (offset >= 0){
-			// seek successful
-			_cache.updateEntry(lineNumber, offset);
-		}
-
-		return offset;
-	}
-
-	/*
-	 * Precondition: startOffset is the offset of startLine
-	 */
-	private int findCharOffset(int targetLine, int startLine, int startOffset){
-		int workingLine = startLine;
-		int offset = logicalToRealIndex(startOffset);
-
-		TextWarriorException.assertVerbose(isValid(startOffset),
-			"findCharOffsetBackward: Invalid startingOffset given");
-		
-		while((workingLine < targetLine) && (offset < _contents.length)){
-			if (_contents[offset] == Language.NEWLINE){
-				++workingLine;
-			}
-			++offset;
-			
-			// skip the gap
-			if(offset == _gapStartIndex){
-				offset = _gapEndIndex;
-			}
-		}
-
-		if (workingLine != targetLine){
-			return -1;
-		}
-		return realToLogicalIndex(offset);
-	}
-
-	/*
-	 * Precondition: startOffset is the offset of startLine
-	 */
-	private int findCharOffsetBackward(int targetLine, int startLine, int startOffset){
-		if (targetLine == 0){
-			return 0;
-		}
-
-		TextWarriorException.assertVerbose(isValid(startOffset),
-			"findCharOffsetBackward: Invalid startOffset given");
-		
-		int workingLine = startLine;
-		int offset = logicalToRealIndex(startOffset);
-		while(workingLine > (targetLine-1) && offset >= 0){ 
-			// skip behind the gap
-			if(offset == _gapEndIndex){
-				offset = _gapStartIndex;
-			}
-			--offset;
-
-			if (_contents[offset] == Language.NEWLINE){
-				--workingLine;
-			}
-
-		}
-		
-		int charOffset;
-		if (offset >= 0){
-			// now at the '\n' of the line before targetLine
-			charOffset = realToLogicalIndex(offset);
-			++charOffset;
-		}
-		else{
-			TextWarriorException.assertVerbose(false,
-				"findCharOffsetBackward: Invalid cache entry or line arguments");
-			charOffset = -1;
-		}
-
-		return charOffset;
+		return _storage.getLineOffset(lineNumber);
 	}
 
 	/**
@@ -225,58 +231,7 @@ public class TextBuffer {
 		if(!isValid(charOffset)){
 			return -1;
 		}
-		
-		Pair cachedEntry = _cache.getNearestCharOffset(charOffset);
-		int line = cachedEntry.getFirst();
-		int offset = logicalToRealIndex(cachedEntry.getSecond());
-		int targetOffset = logicalToRealIndex(charOffset);
-		int lastKnownLine = -1;
-		int lastKnownCharOffset = -1;
-		
-		if (targetOffset > offset){
-			// search forward
-			while((offset < targetOffset) && (offset < _contents.length)){			
-				if (_contents[offset] == Language.NEWLINE){
-					++line;
-					lastKnownLine = line;
-					lastKnownCharOffset = realToLogicalIndex(offset) + 1;
-				}
-				
-				++offset;
-				// skip the gap
-				if(offset == _gapStartIndex){
-					offset = _gapEndIndex;
-				}
-			}
-		}
-		else if (targetOffset < offset){
-			// search backward
-			while((offset > targetOffset) && (offset > 0)){
-				// skip behind the gap
-				if(offset == _gapEndIndex){
-					offset = _gapStartIndex;
-				}
-				--offset;
-				
-				if (_contents[offset] == Language.NEWLINE){
-					lastKnownLine = line;
-					lastKnownCharOffset = realToLogicalIndex(offset) + 1;
-					--line;
-				}
-			}
-		}
-
-
-		if (offset == targetOffset){
-			if(lastKnownLine != -1){
-				// cache the lookup entry
-				_cache.updateEntry(lastKnownLine, lastKnownCharOffset);
-			}
-			return line;
-		}
-		else{
-			return -1;
-		}
+		return _storage.findLineNumber(charOffset);
 	}
 
 
@@ -288,26 +243,15 @@ public class TextBuffer {
 	 * @return The number of chars in lineNumber, or 0 if the line does not exist.
 	 */
 	synchronized public int getLineSize(int lineNumber){
-		int lineLength = 0;
-		int pos = getLineOffset(lineNumber);
-		
-		if (pos != -1){
-			pos = logicalToRealIndex(pos);
-			//TODO consider adding check for (pos < _contents.length) in case EOF is not properly set
-			while(_contents[pos] != Language.NEWLINE &&
-			 _contents[pos] != Language.EOF){
-				++lineLength;
-				++pos;
-				
-				// skip the gap
-				if(pos == _gapStartIndex){
-					pos = _gapEndIndex;
-				}
-			}
-			++lineLength; // account for the line terminator char
+		int lineStart = getLineOffset(lineNumber);
+		if (lineStart < 0){
+			return 0;
 		}
-		
-		return lineLength;
+
+		int nextLineStart = (lineNumber < getLineCount() - 1)
+			? getLineOffset(lineNumber + 1)
+			: getTextLength();
+		return nextLineStart - lineStart;
 	}
 	
 	/**
@@ -318,7 +262,7 @@ public class TextBuffer {
 	 * 		is undefined.
 	 */
 	synchronized public char charAt(int charOffset){
-		return _contents[logicalToRealIndex(charOffset)];
+		return _storage.charAt(charOffset);
 	}
 
 	/**
@@ -336,34 +280,111 @@ public class TextBuffer {
 		if((charOffset + totalChars) > getTextLength()){
 			totalChars = getTextLength() - charOffset;
 		}
-		int realIndex = logicalToRealIndex(charOffset);
-		char[] chars = new char[totalChars];
-		
-		for (int i = 0; i < totalChars; ++i){
-			chars[i] = _contents[realIndex];
-			++realIndex;
-			// skip the gap
-			if(realIndex == _gapStartIndex){
-				realIndex = _gapEndIndex;
+		return _storage.subSequence(charOffset, totalChars);
+	}
+
+	/**
+	 * Copies the chars in [srcBegin, srcEnd) into dst, starting at dstBegin.
+	 * Unlike subSequence(), no memory is allocated, so callers can reuse
+	 * the same buffer on every call.
+	 *
+	 * srcEnd is clamped to the length of the text. dst must be large enough
+	 * to hold the copied chars.
+	 *
+	 * @return The number of chars copied, which is 0 if srcBegin is invalid
+	 * 		or srcEnd is not greater than srcBegin
+	 */
+	synchronized public int getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		if(!isValid(srcBegin) || srcEnd <= srcBegin){
+			return 0;
+		}
+		int end = Math.min(srcEnd, getTextLength());
+		_storage.getChars(srcBegin, end, dst, dstBegin);
+		return end - srcBegin;
+	}
+
+	/**
+	 * Points seg at a run of up to maxChars contiguous chars starting at
+	 * charOffset. Only SegmentCursor should use this method.
+	 *
+	 * @return The number of chars in the run, or 0 if charOffset is invalid
+	 * 		or maxChars is non-positive
+	 */
+	synchronized int getSegment(int charOffset, int maxChars, SegmentCursor seg){
+		if(!isValid(charOffset) || maxChars <= 0){
+			return 0;
+		}
+		_storage.getSegment(charOffset,
+				Math.min(maxChars, getTextLength() - charOffset), seg);
+		return seg.count;
+	}
+
+	/**
+	 * Returns a CharSequence view of the text, including the EOF sentinel char.
+	 *
+	 * The view does not copy the text and reflects subsequent edits.
+	 * Sub-sequences of the view are views with fixed bounds, and are only
+	 * valid until the text is next modified. Use toString() to get a copy.
+	 */
+	public CharSequence getCharSequence(){
+		return _charSequence;
+	}
+
+	private class TextCharSequence implements CharSequence{
+		private final int _start;
+		/** One past the last char of the view, or -1 to extend to EOF */
+		private final int _end;
+
+		TextCharSequence(int start, int end){
+			_start = start;
+			_end = end;
+		}
+
+		@Override
+		public int length(){
+			return (_end < 0) ? getTextLength() - _start : _end - _start;
+		}
+
+		@Override
+		public char charAt(int index){
+			return TextBuffer.this.charAt(_start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end){
+			return new TextCharSequence(_start + start, _start + end);
+		}
+
+		@Override
+		public String toString(){
+			synchronized(TextBuffer.this){
+				char[] chars = new char[length()];
+				getChars(_start, _start + chars.length, chars, 0);
+				return new String(chars);
 			}
 		}
-		
-		return chars;
 	}
 	
 	/**
-	 * Gets charCount number of consecutive characters starting from _gapStartIndex.
+	 * Whether the storage engine is a GapBuffer. If so, deleted characters can
+	 * be retrieved from the gap and the most recent edit can be undone/redone
+	 * by moving the gap boundaries.
 	 * 
-	 * Only UndoStack should use this method. No error checking is done.
+	 * Only UndoStack should use this method.
 	 */
-	char[] gapSubSequence(int charCount){
-		char[] chars = new char[charCount];
-		
-		for (int i = 0; i < charCount; ++i){
-			chars[i] = _contents[_gapStartIndex + i];
-		}
-		
-		return chars;
+	boolean isGapStorage(){
+		return (_storage instanceof GapBuffer);
+	}
+
+	/**
+	 * Copies charCount number of consecutive characters starting from the
+	 * start of the gap into dst, starting at dstBegin.
+	 * 
+	 * Only UndoStack should use this method, and only if isGapStorage()
+	 * is true. No error checking is done.
+	 */
+	void getGapChars(int charCount, char[] dst, int dstBegin){
+		((GapBuffer) _storage).getGapChars(charCount, dst, dstBegin);
 	}
 
 	/**
@@ -373,35 +394,17 @@ public class TextBuffer {
 	 */
 	public synchronized void insert(char[] c, int charOffset, long timestamp,
 			boolean undoable){
+		TextStorage storage = writableStorage();
+		if(storage == null){
+			return;
+		}
 		if(undoable){
 			_undoStack.captureInsert(charOffset, c.length, timestamp);
 		}
 
-		int insertIndex = logicalToRealIndex(charOffset);
-		
-		// shift gap to insertion point
-		if (insertIndex != _gapEndIndex){
-			if (isBeforeGap(insertIndex)){
-				shiftGapLeft(insertIndex);
-			}
-			else{
-				shiftGapRight(insertIndex);
-			}
-		}
-		
-		if(c.length >= gapSize()){
-			growBufferBy(c.length - gapSize());
-		}
-
-		for (int i = 0; i < c.length; ++i){
-			if(c[i] == Language.NEWLINE){
-				++_lineCount;
-			}
-			_contents[_gapStartIndex] = c[i];
-			++_gapStartIndex;
-		}
-
-		_cache.invalidateCache(charOffset);
+		storage.insert(c, charOffset);
+		++_version;
+		shiftSpans(charOffset, 0, c.length);
 	}
 	
 	/**
@@ -412,127 +415,133 @@ public class TextBuffer {
 	 */
 	public synchronized void delete(int charOffset, int totalChars, long timestamp,
 			boolean undoable){
+		TextStorage storage = writableStorage();
+		if(storage == null){
+			return;
+		}
 		if(undoable){
 			_undoStack.captureDelete(charOffset, totalChars, timestamp);
 		}
 		
-		int newGapStart = charOffset + totalChars;
-		
-		// shift gap to deletion point
-		if (newGapStart != _gapStartIndex){
-			if (isBeforeGap(newGapStart)){
-				shiftGapLeft(newGapStart);
-			}
-			else{
-				shiftGapRight(newGapStart + gapSize());
+		storage.delete(charOffset, totalChars);
+		++_version;
+		shiftSpans(charOffset, totalChars, 0);
+	}
+
+	/**
+	 * Replaces the totalChars chars starting from position charOffset with
+	 * all characters in c. The edit is undone as a deletion followed by an
+	 * insertion.
+	 * 
+	 * No error checking is done
+	 */
+	public synchronized void replace(int charOffset, int totalChars, char[] c,
+			long timestamp, boolean undoable){
+		TextStorage storage = writableStorage();
+		if(storage == null){
+			return;
+		}
+		if(totalChars > 0){
+			if(undoable){
+				_undoStack.captureDelete(charOffset, totalChars, timestamp);
 			}
+			storage.delete(charOffset, totalChars);
 		}
 
-		// increase gap size
-		for(int i = 0; i < totalChars; ++i){
-			--_gapStartIndex;
-			if(_contents[_gapStartIndex] == Language.NEWLINE){
-				--_lineCount;
+		if(c.length > 0){
+			if(undoable){
+				_undoStack.captureInsert(charOffset, c.length, timestamp);
 			}
+			storage.insert(c, charOffset);
 		}
-
-		_cache.invalidateCache(charOffset);
+		++_version;
+		shiftSpans(charOffset, totalChars, c.length);
 	}
 
 	/**
-	 * Moves _gapStartIndex by displacement units. Note that displacement can be
-	 * negative and will move _gapStartIndex to the left.
+	 * Moves the start of the gap by displacement units. Note that displacement
+	 * can be negative and will move the start of the gap to the left.
 	 * 
 	 * Only UndoStack should use this method to carry out a simple undo/redo
-	 * of insertions/deletions. No error checking is done.
+	 * of insertions/deletions, and only if isGapStorage() is true.
+	 * No error checking is done.
 	 */
 	synchronized void shiftGapStart(int displacement){
-		if(displacement >= 0){
-			_lineCount += countNewlines(_gapStartIndex, displacement);
+		((GapBuffer) _storage).shiftGapStart(displacement);
+		++_version;
+		if(displacement > 0){
+			shiftSpans(gapStart() - displacement, 0, displacement);
 		}
-		else{
-			_lineCount -= countNewlines(_gapStartIndex + displacement, -displacement);
+		else if(displacement < 0){
+			shiftSpans(gapStart(), -displacement, 0);
 		}
-
-		_gapStartIndex += displacement;
-		_cache.invalidateCache(realToLogicalIndex(_gapStartIndex - 1) + 1);
 	}
 
-	//does NOT skip the gap when examining consecutive positions
-	private int countNewlines(int start, int totalChars){
-		int newlines = 0;
-		for(int i = start; i < (start + totalChars); ++i){
-			if(_contents[i] == Language.NEWLINE){
-				++newlines;
-			}
-		}
-		
-		return newlines;
-	}
-	
 	/**
-	 * Adjusts gap so that _gapStartIndex is at newGapStart
+	 * Returns the storage engine to edit, or null if this buffer is a
+	 * snapshot, which cannot be edited
 	 */
-	final protected void shiftGapLeft(int newGapStart){
-		while(_gapStartIndex > newGapStart){
-			--_gapEndIndex;
-			--_gapStartIndex;
-			_contents[_gapEndIndex] = _contents[_gapStartIndex];
+	private TextStorage writableStorage(){
+		if(!(_storage instanceof TextStorage)){
+			TextWarriorException.fail("Snapshots of a TextBuffer are read-only");
+			return null;
 		}
+		return (TextStorage) _storage;
 	}
 
 	/**
-	 * Adjusts gap so that _gapEndIndex is at newGapEnd
+	 * Moves the spans after the deleted chars at charOffset were replaced
+	 * by inserted chars, so that they stay over the same text until it is
+	 * tokenized again
 	 */
-	final protected void shiftGapRight(int newGapEnd){
-		while(_gapEndIndex < newGapEnd){
-			_contents[_gapStartIndex] = _contents[_gapEndIndex];
-			++_gapStartIndex;
-			++_gapEndIndex;
+	private void shiftSpans(int charOffset, int deleted, int inserted){
+		if(_spans != null){
+			if(deleted > 0){
+				_spans.delete(charOffset, deleted);
+			}
+			if(inserted > 0){
+				_spans.insert(charOffset, inserted);
+			}
 		}
-	}
-	
-	/**
-	 * Create a gap at the start of _contents[] and tack a EOF at the end.
-	 * Precondition: real contents are from _contents[0] to _contents[contentsLength-1]
-	 */
-	protected void initGap(int contentsLength){
-		int toPosition = _contents.length - 1;
-		_contents[toPosition--] = Language.EOF; // mark end of file
-		int fromPosition = contentsLength - 1;
-		while(fromPosition >= 0){
-			_contents[toPosition--] = _contents[fromPosition--];
+		if(_lexStates != null){
+			if(deleted > 0){
+				_lexStates.delete(charOffset, deleted);
+			}
+			if(inserted > 0){
+				_lexStates.insert(charOffset, inserted);
+			}
 		}
-		_gapStartIndex = 0;
-		_gapEndIndex = toPosition + 1; // went one-past in the while loop
-	}
-	
-	/**
-	 * Copies _contents into a buffer that is larger by
-	 * 		minIncrement + INITIAL_GAP_SIZE * _allocCount bytes.
-	 * 
-	 * _allocMultiplier doubles on every call to this method, to avoid the 
-	 * overhead of repeated allocations.
-	 */
-	protected void growBufferBy(int minIncrement){
-		//TODO handle new size > MAX_INT or allocation failure
-		int increasedSize = minIncrement + MIN_GAP_SIZE * _allocMultiplier;
-		char[] temp = new char[_contents.length + increasedSize];
-		int i = 0;
-		while(i < _gapStartIndex){
-			temp[i] = _contents[i];
-			++i;
+
+		if(_lexDirtyStart < 0){
+			_lexDirtyStart = charOffset;
+			_lexDirtyEnd = charOffset + inserted;
 		}
-		
-		i = _gapEndIndex;
-		while(i < _contents.length){
-			temp[i + increasedSize] = _contents[i];
-			++i;
+		else{
+			// move the end of the dirty range like the text after it
+			int dirtyEnd = _lexDirtyEnd;
+			if(dirtyEnd >= charOffset + deleted){
+				dirtyEnd += inserted - deleted;
+			}
+			else if(dirtyEnd > charOffset){
+				dirtyEnd = charOffset + inserted;
+			}
+			_lexDirtyStart = Math.min(_lexDirtyStart, charOffset);
+			_lexDirtyEnd = Math.max(dirtyEnd, charOffset + inserted);
 		}
+	}
+
+	private void resetLexStates(){
+		_lexStates = null;
+		_lexDirtyStart = 0;
+		_lexDirtyEnd = getTextLength();
+	}
 
-		_gapEndIndex += increasedSize;
-		_contents = temp;
-		_allocMultiplier <<= 1;
+	/**
+	 * Returns the offset of the first character after the gap.
+	 * Only meaningful if isGapStorage() is true.
+	 */
+	final int gapStart(){
+		return ((GapBuffer) _storage).getGapStart();
 	}
 	
 	/**
@@ -540,41 +549,55 @@ public class TextBuffer {
 	 * EOF sentinel char
 	 */
 	final synchronized public int getTextLength(){
-		return _contents.length - gapSize();
+		return _storage.length();
 	}
 
 	synchronized public int getLineCount(){
-		return _lineCount;
-	}
-	
-	final synchronized public boolean isValid(int charOffset){
-		return (charOffset >= 0 && charOffset < getTextLength());
+		return _storage.getLineCount();
 	}
-	
-	final protected int gapSize(){
-		return _gapEndIndex - _gapStartIndex;
+
+	/**
+	 * Returns a number that changes every time the text changes. Results
+	 * computed from a snapshot can be compared against the current text
+	 * by their version.
+	 */
+	synchronized public int getVersion(){
+		return _version;
 	}
-	
-	final protected int logicalToRealIndex(int i){
-		if (isBeforeGap(i)){
-			return i;
-		}
-		else{
-			return i + gapSize(); 
-		}
+
+	/**
+	 * Returns a read-only copy of the text as it is now, with the same
+	 * version, encoding and line terminator style. The copy can be read by
+	 * another thread without blocking edits to this buffer, and without
+	 * seeing them.
+	 */
+	synchronized public TextBuffer snapshot(){
+		return initSnapshot(new TextBuffer(_storage.snapshot()));
 	}
 
-	final protected int realToLogicalIndex(int i){
-		if (isBeforeGap(i)){
-			return i;
-		}
-		else{
-			return i - gapSize(); 
+	/**
+	 * Tells the storage engine that this snapshot will no longer be read,
+	 * so that it can stop copying the memory shared with it before edits.
+	 * Does nothing if this buffer is not a snapshot. See TextSnapshot.release()
+	 */
+	synchronized public void release(){
+		if(_storage instanceof TextSnapshot){
+			((TextSnapshot) _storage).release();
 		}
 	}
 
-	final protected boolean isBeforeGap(int i){
-		return i < _gapStartIndex;
+	/**
+	 * Copies the properties of this buffer to a snapshot of it
+	 */
+	protected TextBuffer initSnapshot(TextBuffer snapshot){
+		snapshot._originalFormat = _originalFormat;
+		snapshot._originalEOLType = _originalEOLType;
+		snapshot._version = _version;
+		return snapshot;
+	}
+	
+	final synchronized public boolean isValid(int charOffset){
+		return (charOffset >= 0 && charOffset < getTextLength());
 	}
 
 	public String getEncodingScheme() {
@@ -585,25 +608,159 @@ public class TextBuffer {
 		return _originalEOLType;
 	}
 	
-	public void clearSpans(){
-		_spans = new Vector<Pair>();
-	    _spans.add(new Pair(0, Lexer.NORMAL));
+	synchronized public void clearSpans(){
+		_spans = SpanList.createDefault();
+		_lexStates = null;
+		_lexDirtyStart = -1;
 	}
 	
-	public List<Pair> getSpans(){
+	/**
+	 * Returns the spans of the document. They are shifted in place as the
+	 * text is edited, which loadMore() can do on another thread, so use
+	 * copySpans() to read them while a file is still being loaded.
+	 */
+	synchronized public SpanList getSpans(){
 		return _spans;
 	}
+
+	/**
+	 * Returns a copy of the spans over the chars in [start, end). The first
+	 * span of the copy starts at or before start. Unlike getSpans(), the
+	 * copy can be read while another thread edits the text.
+	 */
+	synchronized public SpanList copySpans(int start, int end){
+		if(_spans == null){
+			return SpanList.createDefault();
+		}
+		int first = _spans.findSpan(start);
+		int last = Math.max(_spans.findFirstFrom(end), first + 1);
+		last = Math.min(last, _spans.size());
+		SpanList copy = new SpanList(last - first);
+		for(int i = first; i < last; ++i){
+			copy.add(_spans.getStart(i), _spans.getType(i));
+		}
+		return copy;
+	}
 	
 	/**
 	 * Sets the spans to use in the document.
 	 * Spans are continuous sequences of characters that have the same format 
 	 * like color, font, etc.
 	 * 
-	 * @param spans A collection of Pairs, where Pair.first is the start 
-	 * 		position of the token, and Pair.second is the type of the token.
+	 * The spans are shifted as the text is edited afterwards.
 	 */
-	public void setSpans(List<Pair> spans){
+	synchronized public void setSpans(SpanList spans){
 		_spans = spans;
+		_lexStates = null;
+		_lexDirtyStart = -1;
+	}
+
+	/**
+	 * Returns a copy of the lexer states found by the last lex applied, or
+	 * null if they are not for language and the text has to be lexed from
+	 * the start
+	 */
+	synchronized public SpanList copyLexStates(Language language){
+		if(_lexStates == null || language != _lexLanguage){
+			return null;
+		}
+		return new SpanList(_lexStates);
+	}
+
+	/**
+	 * Returns the start of the range edited since the last lex was applied,
+	 * or -1 if the text was not edited
+	 */
+	synchronized public int getLexDirtyStart(){
+		return _lexDirtyStart;
+	}
+
+	/**
+	 * Returns the end of the range edited since the last lex was applied
+	 */
+	synchronized public int getLexDirtyEnd(){
+		return _lexDirtyEnd;
+	}
+
+	/**
+	 * Replaces the spans and lexer states of the range tokenized by a Lexer.
+	 * If the text was edited since the snapshot tokenized was taken, only
+	 * the parts of the range outside the edited range are replaced.
+	 *
+	 * If the result is not final, the text after it is treated as edited
+	 * until the rest of the lex is applied. A speculative result only
+	 * replaces spans that are still to be tokenized, and is ignored if the
+	 * text was edited.
+	 *
+	 * @return True if the spans are up to date. Otherwise, the text has to be
+	 * 		tokenized again.
+	 */
+	synchronized public boolean applyLexResult(Lexer.LexResult result){
+		if(_spans == null){
+			_spans = SpanList.createDefault();
+		}
+		final int start = result.getStart();
+		final int end = result.getEnd();
+		if(result.isSpeculative()){
+			if(result.getVersion() == getVersion() && isRelexedToEnd(result)){
+				_spans.splice(result.getSpans(), start, end, 0);
+			}
+			return true;
+		}
+		if(start > 0 && (_lexStates == null || result.getLanguage() != _lexLanguage)){
+			// the rest of the spans are from another lex
+			return false;
+		}
+		if(_lexStates == null){
+			_lexStates = new SpanList();
+		}
+		_lexLanguage = result.getLanguage();
+
+		if(result.getVersion() == getVersion()){
+			_spans.splice(result.getSpans(), start, end, 0);
+			_lexStates.splice(result.getStates(), start, end, 0);
+			if(result.isFinal()){
+				_lexDirtyStart = -1;
+			}
+			else if(_lexDirtyStart < 0 || _lexDirtyStart < end){
+				// the spans after end may not follow from the new ones
+				_lexDirtyEnd = (_lexDirtyStart < 0) ? end : Math.max(_lexDirtyEnd, end);
+				_lexDirtyStart = end;
+			}
+			return true;
+		}
+		if(_lexDirtyStart < 0){
+			// the whole text was replaced
+			return false;
+		}
+
+		// all the edits since the snapshot are in the dirty range, and
+		// offsets after it moved by shift
+		final int shift = getTextLength() - result.getTextLength();
+		final int headEnd = Math.min(end, _lexDirtyStart);
+		final int tailStart = Math.max(start, _lexDirtyEnd - shift);
+		_spans.splice(result.getSpans(), tailStart, end, shift);
+		_spans.splice(result.getSpans(), start, headEnd, 0);
+		_lexStates.splice(result.getStates(), tailStart, end, shift);
+		_lexStates.splice(result.getStates(), start, headEnd, 0);
+		if(!result.isFinal() && end > tailStart){
+			// the spans after end may not follow from the new ones
+			_lexDirtyEnd = end + shift;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the spans after the start of result have not been
+	 * tokenized yet, and will all be replaced by the lex in progress
+	 */
+	private boolean isRelexedToEnd(Lexer.LexResult result){
+		if(_lexStates == null || result.getLanguage() != _lexLanguage){
+			return true;
+		}
+		// no recorded state after the dirty range, where the lex could stop
+		return _lexDirtyStart >= 0 && _lexDirtyStart <= result.getStart()
+				&& _lexStates.getLastStart() <= _lexDirtyEnd;
 	}
 
 	/**
@@ -644,4 +801,19 @@ public class TextBuffer {
 	public int redo(){
 		return _undoStack.redo();
 	}
+
+	/**
+	 * Returns the approximate number of bytes used by the undo history
+	 */
+	public int getUndoMemoryUsage(){
+		return _undoStack.getMemoryUsage();
+	}
+
+	/**
+	 * Sets the number of bytes that the undo history may use before the
+	 * oldest edits are discarded
+	 */
+	public void setUndoMemoryBudget(int bytes){
+		_undoStack.setMemoryBudget(bytes);
+	}
 }
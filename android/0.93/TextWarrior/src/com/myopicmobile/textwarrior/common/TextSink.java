@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * Receives text a chunk at a time, such as a file as it is converted by
+ * CharEncodingUtils.readAndConvert()
+ */
+public interface TextSink {
+	/**
+	 * Appends the first count chars of chars to the text received so far.
+	 * chars may be reused by the caller after this returns.
+	 */
+	public void append(char[] chars, int count);
+}
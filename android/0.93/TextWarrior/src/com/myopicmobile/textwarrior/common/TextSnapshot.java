@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * A read-only copy of the contents of a TextStorage, made by
+ * TextStorage.snapshot().
+ *
+ * Snapshots share as much memory with their storage as they can, and the
+ * storage copies the shared parts before it next modifies them. The text
+ * of a snapshot therefore never changes, and it can be read by another
+ * thread without blocking edits to the storage.
+ *
+ * A snapshot should be released once it is no longer read, so that the
+ * storage can stop copying the memory it shares with it.
+ *
+ * Subclasses supply length(), charAt() and getSegment(), which must be
+ * safe to call from several threads at once. Line lookups use an index of
+ * the newlines, which is built on first use.
+ */
+public abstract class TextSnapshot implements ReadOnlyTextStorage {
+	/** Sorted positions of all newlines. null until first needed */
+	private int[] _newlines = null;
+	private int _newlineCount = 0;
+	/** Set by the reader, and read by the storage on its own thread */
+	private volatile boolean _isReleased = false;
+
+	/**
+	 * Tells the storage that this snapshot will no longer be read, so
+	 * that it can write to the memory shared with it without copying it
+	 * first. A snapshot is its own snapshot, so those are released too.
+	 *
+	 * Reads after this call may see the text change, but do not fail.
+	 */
+	public void release(){
+		_isReleased = true;
+	}
+
+	public boolean isReleased(){
+		return _isReleased;
+	}
+
+	@Override
+	public char[] subSequence(int charOffset, int totalChars){
+		char[] chars = new char[totalChars];
+		getChars(charOffset, charOffset + totalChars, chars, 0);
+		return chars;
+	}
+
+	@Override
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		SegmentCursor seg = new SegmentCursor();
+		int offset = srcBegin;
+		while(offset < srcEnd){
+			getSegment(offset, srcEnd - offset, seg);
+			System.arraycopy(seg.array, seg.offset, dst,
+					dstBegin + offset - srcBegin, seg.count);
+			offset += seg.count;
+		}
+	}
+
+	/**
+	 * A snapshot never changes, so it is its own snapshot
+	 */
+	@Override
+	public TextSnapshot snapshot(){
+		return this;
+	}
+
+	@Override
+	public int getLineCount(){
+		indexLines();
+		return _newlineCount + 1;
+	}
+
+	@Override
+	public int getLineOffset(int lineNumber){
+		if(lineNumber == 0){
+			return 0;
+		}
+		if(lineNumber < 0 || lineNumber >= getLineCount()){
+			return -1;
+		}
+		return _newlines[lineNumber - 1] + 1;
+	}
+
+	@Override
+	public int findLineNumber(int charOffset){
+		if(charOffset < 0 || charOffset >= length()){
+			return -1;
+		}
+		indexLines();
+
+		// count the newlines before charOffset
+		int left = 0;
+		int right = _newlineCount;
+		while(left < right){
+			int mid = (left + right) >>> 1;
+			if(_newlines[mid] < charOffset){
+				left = mid + 1;
+			}
+			else{
+				right = mid;
+			}
+		}
+		return left;
+	}
+
+	/**
+	 * Synchronized, since the snapshot may be read by several threads
+	 */
+	private synchronized void indexLines(){
+		if(_newlines != null){
+			return;
+		}
+
+		int[] newlines = new int[16];
+		int newlineCount = 0;
+		SegmentCursor seg = new SegmentCursor();
+		int length = length();
+		int offset = 0;
+		while(offset < length){
+			getSegment(offset, Math.min(length - offset, SegmentCursor.MAX_SEGMENT_SIZE), seg);
+			int end = seg.offset + seg.count;
+			for(int i = seg.offset; i < end; ++i){
+				if(seg.array[i] == Language.NEWLINE){
+					if(newlineCount == newlines.length){
+						int[] temp = new int[2 * newlines.length];
+						System.arraycopy(newlines, 0, temp, 0, newlineCount);
+						newlines = temp;
+					}
+					newlines[newlineCount++] = offset + i - seg.offset;
+				}
+			}
+			offset += seg.count;
+		}
+
+		_newlines = newlines;
+		_newlineCount = newlineCount;
+	}
+
+	/**
+	 * A snapshot of chars kept in an array, with an optional gap that is
+	 * not part of the text. The array must not be modified outside the gap
+	 * while the snapshot is in use.
+	 */
+	static class ArraySnapshot extends TextSnapshot{
+		private final char[] _contents;
+		private final int _gapStartIndex;
+		/** One past end of gap */
+		private final int _gapEndIndex;
+
+		ArraySnapshot(char[] contents, int gapStart, int gapEnd){
+			_contents = contents;
+			_gapStartIndex = gapStart;
+			_gapEndIndex = gapEnd;
+		}
+
+		@Override
+		public int length(){
+			return _contents.length - (_gapEndIndex - _gapStartIndex);
+		}
+
+		@Override
+		public char charAt(int charOffset){
+			return (charOffset < _gapStartIndex)
+					? _contents[charOffset]
+					: _contents[charOffset + _gapEndIndex - _gapStartIndex];
+		}
+
+		@Override
+		public void getSegment(int charOffset, int maxChars, SegmentCursor seg){
+			if(charOffset < _gapStartIndex){
+				seg.set(_contents, charOffset,
+						Math.min(maxChars, _gapStartIndex - charOffset));
+			}
+			else{
+				int realIndex = charOffset + _gapEndIndex - _gapStartIndex;
+				seg.set(_contents, realIndex,
+						Math.min(maxChars, _contents.length - realIndex));
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * Storage engine for the characters of a TextBuffer.
+ *
+ * Like TextBuffer, a TextStorage always contains a terminal EOF character,
+ * even when it is "empty". The EOF character is counted in length() and
+ * terminates the last line.
+ *
+ * Implementations are not thread-safe. TextBuffer serializes all access to
+ * its storage engine. No error checking is done on parameters unless
+ * otherwise specified.
+ */
+public interface TextStorage extends ReadOnlyTextStorage {
+	/**
+	 * Replaces the contents of the storage with the first textSize chars of
+	 * buffer, followed by a terminal EOF.
+	 *
+	 * The storage may take ownership of buffer instead of copying it, so the
+	 * caller should not modify buffer after this call. buffer must be at least
+	 * TextBuffer.memoryNeeded(textSize) long.
+	 *
+	 * @param lineCount The number of lines in the first textSize chars of buffer
+	 */
+	public void setContents(char[] buffer, int textSize, int lineCount);
+
+	/**
+	 * Insert all characters in c into position charOffset.
+	 * The chars are copied, so the caller may reuse c afterwards.
+	 */
+	public void insert(char[] c, int charOffset);
+
+	/**
+	 * Deletes totalChars number of char starting from position
+	 * charOffset, inclusive
+	 */
+	public void delete(int charOffset, int totalChars);
+
+	/**
+	 * Returns a read-only copy of the current contents, which can be read
+	 * by another thread while this storage is being modified.
+	 *
+	 * Snapshots are cheap to make. Parts of the text that are shared with a
+	 * snapshot are copied by the storage before they are next modified.
+	 * A snapshot may no longer be read after setContents() is called on
+	 * the storage it was made from.
+	 */
+	@Override
+	public TextSnapshot snapshot();
+}
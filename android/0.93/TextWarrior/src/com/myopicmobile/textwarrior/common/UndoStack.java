@@ -8,15 +8,17 @@
  */
 package com.myopicmobile.textwarrior.common;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 
 /**
  * Implements undo/redo for insertion and deletion events of TextBuffer
- * 
- * This class is tightly coupled to the implementation of TextBuffer, in 
- * particular the inner workings of the gap data structure to optimize 
+ *
+ * This class is tightly coupled to the implementation of TextBuffer, in
+ * particular the inner workings of the gap data structure to optimize
  * undo/redo efficiency
- * 
+ *
  * When text is inserted/deleted...
  * 1. Before text is inserted/deleted, TextBuffer calls captureInsert()/captureDelete()
  * 2. If the insertion/deletion is a continuation of the previous edit,
@@ -27,17 +29,34 @@ import java.util.LinkedList;
  *    the earlier edit.
  * 3. If the incoming edit is not continuous with the previous one, a new entry
  *    for it is pushed on the stack
- * 
+ *
  * Batch mode:
  * A client application can specify consecutive insert/delete operations to
  * undo/redo as a group. Edits made between a call to beginBatchEdit()
  * and a closing endBatchEdit() call are grouped as a unit.
- * 
+ *
  * Undo/redo:
- * Undo/redo commands merely move the stack pointer and do not delete or insert 
+ * Undo/redo commands merely move the stack pointer and do not delete or insert
  * entries. Only when a new edit is made will the entries after the stack
  * pointer be deleted.
- * 
+ *
+ * Storage:
+ * Entries are kept in parallel arrays of primitives, indexed from the oldest
+ * entry, so that the top entry is found in constant time. The characters of
+ * all entries are kept one after another in a single char array, the arena,
+ * in the order that they are recorded. Entries are recorded in stack order,
+ * so discarding the entries after the stack pointer truncates the arena.
+ *
+ * The memory used by the entries and their characters is limited to a budget.
+ * When the budget is exceeded and a spill directory is set, the characters of
+ * all entries except the top entry and those after it are appended to a
+ * temporary file, and read back from it when the entries are undone or
+ * redone. Only the position and length of the characters of each entry are
+ * kept in memory, so large batch edits like replace all are bounded by disk
+ * space. If the budget is still exceeded, or the file cannot be written,
+ * whole groups are discarded from the bottom of the stack, except for the
+ * most recent group that can be undone.
+ *
  * Optimizaton notes:
  * Edited characters are copied lazily. When a new entry is pushed on the undo
  * stack, only the starting position and length of the inserted/deleted segment
@@ -47,107 +66,200 @@ import java.util.LinkedList;
  * can be retrieved from the gap and inserted characters are trivially available.
  * For undo/redo of the topmost entry, only the gap boundaries of TextBuffer
  * need to be moved.
+ *
+ * These optimizations are only possible if TextBuffer uses a GapBuffer for
+ * storage. For other storage engines, deleted characters are copied before
+ * the deletion is carried out.
  */
 public class UndoStack {
+	public final static long MERGE_TIME = 750000000; //750ms in nanoseconds
+	public final static int DEFAULT_MEMORY_BUDGET = 4 * 1024 * 1024; // in bytes
+	/** Approximate number of bytes used by an entry, excluding its chars */
+	private final static int ENTRY_SIZE = 24;
+	private final static int INITIAL_CAPACITY = 16;
+	private final static int INITIAL_ARENA_SIZE = 256;
+	/** Fewer chars than this are not worth writing to the spill file */
+	private final static int MIN_SPILL_SIZE = 4096;
+	private final static int SPILL_BUFFER_SIZE = 8192; // in chars
+
+	private final static byte INSERT = 0;
+	private final static byte DELETE = 1;
+	/** Value of _dataLengths for entries whose chars are not recorded yet */
+	private final static int NOT_RECORDED = -1;
+
 	private TextBuffer _buf;
-	private LinkedList<Command> _stack = new LinkedList<Command>();
 	private boolean _isBatchEdit = false;
 	/** for grouping batch operations */
 	private int _groupId = 0;
 	/** where new entries should go */
 	private int _top = 0;
+	/** number of entries, including those that can be redone */
+	private int _size = 0;
 	/** timestamp for the previous edit operation */
 	long _lastEditTime = -1;
-	
+	private int _memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+	/** Where spill files are created, or null if chars are never spilled */
+	private static File _spillDirectory = null;
+
+	/* Entries. Entry i of the stack is at index _first + i of every array */
+	private int _first = 0;
+	/** INSERT or DELETE */
+	private byte[] _types = new byte[INITIAL_CAPACITY];
+	/** Start position of the edit */
+	private int[] _starts = new int[INITIAL_CAPACITY];
+	/** Length of the affected segment */
+	private int[] _lengths = new int[INITIAL_CAPACITY];
+	/** Group ID. Entries of the same group are undone/redone as a unit */
+	private int[] _groups = new int[INITIAL_CAPACITY];
+	/** Arena position of the recorded chars of the affected segment */
+	private int[] _dataStarts = new int[INITIAL_CAPACITY];
+	/** Number of chars recorded, or NOT_RECORDED. The recorded chars are
+	 * out of date if this differs from the length of the entry */
+	private int[] _dataLengths = new int[INITIAL_CAPACITY];
+
+	/* Arena. Arena positions increase monotonically for the lifetime of the
+	 * stack; _arena[0] is at position _arenaBase */
+	private char[] _arena = new char[INITIAL_ARENA_SIZE];
+	private int _arenaBase = 0;
+	/** Position of the oldest char still used by an entry */
+	private int _arenaStart = 0;
+	/** One past the position of the newest char */
+	private int _arenaEnd = 0;
+
+	/* Spill file. The chars at positions before _spilledEnd are not in
+	 * _arena but in the file, where position _spillFileBase is at offset 0.
+	 * Created on first use, and deleted as soon as it is opened so that it
+	 * goes away with the process */
+	private RandomAccessFile _spillFile = null;
+	private int _spillFileBase = 0;
+	private int _spilledEnd = 0;
+	/** Set if the spill file could not be created or written */
+	private boolean _isSpillFailed = false;
+	private byte[] _spillBuffer = null;
+
 	public UndoStack(TextBuffer buf){
 		_buf = buf;
 	}
-	
+
+	/**
+	 * Sets the directory where undo stacks create the files their chars are
+	 * spilled to when their memory budget is exceeded. The directory should
+	 * be private to the application.
+	 *
+	 * @param dir The directory, or null to keep all chars in memory
+	 */
+	synchronized public static void setSpillDirectory(File dir){
+		_spillDirectory = dir;
+	}
+
+	synchronized public static File getSpillDirectory(){
+		return _spillDirectory;
+	}
+
 	/**
 	 * Undo the previous insert/delete operation
-	 * 
+	 *
 	 * @return The suggested position of the caret after the undo, or -1 if
-	 *			there is nothing to undo
+	 *			there is nothing to undo. -1 is also returned, and the history
+	 *			discarded, if chars spilled to file cannot be read back
 	 */
 	public int undo(){
 		if(canUndo()){
-			Command lastUndone = _stack.get(_top-1);
-			int group = lastUndone._group;
+			int lastUndone = _first + _top - 1;
+			int group = _groups[lastUndone];
 			do{
-				Command c = _stack.get(_top-1);
-				if(c._group != group){
+				int c = _first + _top - 1;
+				if(_groups[c] != group){
 					break;
 				}
-				
+
 				lastUndone = c;
-				c.undo();
+				try{
+					undo(c);
+				}
+				catch(IOException ex){
+					discardHistory();
+					return -1;
+				}
 				--_top;
 			}
 			while(canUndo());
 
-			return lastUndone.findUndoPosition();
+			return (_types[lastUndone] == INSERT)
+					? _starts[lastUndone]
+					: _starts[lastUndone] + _lengths[lastUndone];
 		}
-		
+
 		return -1;
 	}
-	
+
 	/**
 	 * Redo the previous insert/delete operation
-	 * 
+	 *
 	 * @return The suggested position of the caret after the redo, or -1 if
-	 *			there is nothing to redo
+	 *			there is nothing to redo. -1 is also returned, and the history
+	 *			discarded, if chars spilled to file cannot be read back
 	 */
 	public int redo(){
 		if(canRedo()){
-			Command lastRedone = _stack.get(_top);
-			int group = lastRedone._group;
+			int lastRedone = _first + _top;
+			int group = _groups[lastRedone];
 			do{
-				Command c = _stack.get(_top);
-				if(c._group != group){
+				int c = _first + _top;
+				if(_groups[c] != group){
 					break;
 				}
 
 				lastRedone = c;
-				c.redo();
+				try{
+					redo(c);
+				}
+				catch(IOException ex){
+					discardHistory();
+					return -1;
+				}
 				++_top;
 			}
 			while(canRedo());
-			
-			return lastRedone.findRedoPosition();
+
+			return (_types[lastRedone] == INSERT)
+					? _starts[lastRedone] + _lengths[lastRedone]
+					: _starts[lastRedone];
 		}
 
 		return -1;
 	}
 
-	//TODO extract common parts of captureInsert and captureDelete
 	/**
 	 * Records an insert operation. Should be called before the insertion is
 	 * actually done.
 	 */
 	public void captureInsert(int start, int length, long time){
 		boolean mergeSuccess = false;
-		
+
 		if(canUndo()){
-			Command c = _stack.get(_top - 1);
-			
-			if(c instanceof InsertCommand
-					&& c.merge(start, length, time)){
+			int c = _first + _top - 1;
+
+			if(_types[c] == INSERT
+					&& isContinuous(time)
+					&& start == _starts[c] + _lengths[c]){
+				_lengths[c] += length;
+				trimStack();
 				mergeSuccess = true;
 			}
 			else{
-				c.recordData();
+				trimStack();
+				recordData(c);
 			}
 		}
-		
+
 		if(!mergeSuccess){
-			push(new InsertCommand(start, length, _groupId));
-			
-			if(!_isBatchEdit){
-				_groupId++;
-			}
+			push(INSERT, start, length);
 		}
-		
+
 		_lastEditTime = time;
+		enforceBudget();
 	}
 
 	/**
@@ -156,222 +268,479 @@ public class UndoStack {
 	 */
 	public void captureDelete(int start, int length, long time){
 		boolean mergeSuccess = false;
-		
+		// without a gap, the deleted text cannot be retrieved later
+		boolean copyNow = !_buf.isGapStorage();
+
 		if(canUndo()){
-			Command c = _stack.get(_top - 1);
-			
-			if(c instanceof DeleteCommand
-					&& c.merge(start, length, time)){
-				mergeSuccess = true;
+			int c = _first + _top - 1;
+
+			if(_types[c] == DELETE
+					&& isContinuous(time)
+					&& start + length == _starts[c]){
+				trimStack();
+				// if the spilled chars cannot be read back, the history is
+				// discarded and the deletion gets a new entry
+				if(unspill(c)){
+					_starts[c] = start;
+					_lengths[c] += length;
+					mergeSuccess = true;
+					if(copyNow || _dataLengths[c] != NOT_RECORDED){
+						// merged deletions always precede the earlier ones
+						prependData(c, start, length);
+					}
+				}
 			}
 			else{
-				c.recordData();
+				trimStack();
+				recordData(c);
 			}
 		}
-		
-		if(!mergeSuccess){
-			push(new DeleteCommand(start, length, _groupId));
 
-			if(!_isBatchEdit){
-				_groupId++;
+		if(!mergeSuccess){
+			int c = push(DELETE, start, length);
+			if(copyNow){
+				recordData(c);
 			}
 		}
-		
+
 		_lastEditTime = time;
+		enforceBudget();
+	}
+
+	private boolean isContinuous(long time){
+		return _lastEditTime >= 0 && (time - _lastEditTime) < MERGE_TIME;
 	}
-	
-	private void push(Command c){
+
+	/**
+	 * Pushes a new entry with the current group ID
+	 *
+	 * @return The array index of the new entry
+	 */
+	private int push(byte type, int start, int length){
 		trimStack();
+		if(_first + _size == _types.length){
+			relocateEntries();
+		}
+
+		int c = _first + _size;
+		_types[c] = type;
+		_starts[c] = start;
+		_lengths[c] = length;
+		_groups[c] = _groupId;
+		_dataLengths[c] = NOT_RECORDED;
+		++_size;
 		++_top;
-		_stack.add(c);
+
+		if(!_isBatchEdit){
+			_groupId++;
+		}
+		return c;
 	}
-	
+
+	/**
+	 * Discards the entries after the stack pointer, and their chars
+	 */
 	private void trimStack(){
-		while(_stack.size() > _top){
-			_stack.removeLast();
+		for(int i = _top; i < _size; ++i){
+			int c = _first + i;
+			if(_dataLengths[c] != NOT_RECORDED){
+				// entries after this one were recorded after it
+				truncateArena(_dataStarts[c]);
+				break;
+			}
 		}
-	}
-	
-	public final boolean canUndo(){
-		return _top > 0;
+		_size = _top;
 	}
 
-	public final boolean canRedo(){
-		return _top < _stack.size();
+	/**
+	 * Discards all entries, for when their chars cannot be read back
+	 */
+	private void discardHistory(){
+		_first = 0;
+		_size = 0;
+		_top = 0;
+		_arenaStart = _arenaEnd;
+		_arenaBase = _arenaEnd;
+		_spilledEnd = _arenaEnd;
 	}
 
-	public boolean isBatchEdit(){
-		return _isBatchEdit;
+	/**
+	 * Moves the entries to the start of the arrays, making them larger if
+	 * they are more than half full
+	 */
+	private void relocateEntries(){
+		int capacity = (_size > _types.length / 2) ? 2 * _types.length : _types.length;
+		_types = relocate(_types, capacity);
+		_starts = relocate(_starts, capacity);
+		_lengths = relocate(_lengths, capacity);
+		_groups = relocate(_groups, capacity);
+		_dataStarts = relocate(_dataStarts, capacity);
+		_dataLengths = relocate(_dataLengths, capacity);
+		_first = 0;
 	}
-	
-	public void beginBatchEdit(){
-		_isBatchEdit = true;
+
+	private byte[] relocate(byte[] a, int capacity){
+		byte[] dest = (capacity == a.length) ? a : new byte[capacity];
+		System.arraycopy(a, _first, dest, 0, _size);
+		return dest;
 	}
-	
-	public void endBatchEdit(){
-		_isBatchEdit = false;
-		_groupId++;
+
+	private int[] relocate(int[] a, int capacity){
+		int[] dest = (capacity == a.length) ? a : new int[capacity];
+		System.arraycopy(a, _first, dest, 0, _size);
+		return dest;
 	}
-	
-	
-	
-	private abstract class Command{
-		public final static long MERGE_TIME = 750000000; //750ms in nanoseconds
-		/** Start position of the edit */
-		public int _start;
-		/** Length of the affected segment */
-		public int _length;
-		/** Contents of the affected segment */
-		public String _data;
-		/** Group ID. Commands of the same group are undone/redone as a unit */
-		public int _group;
-		
-		public abstract void undo();
-		public abstract void redo();
-		/** Populates _data with the affected text */
-		public abstract void recordData();
-		public abstract int findUndoPosition();
-		public abstract int findRedoPosition();
-
-		/**
-		 * Attempts to merge in an edit. This will only be successful if the new
-		 * edit is continuous. See {@link UndoStack} for the requirements
-		 * of a continuous edit.
-		 * 
-		 * @param start Start position of the new edit
-		 * @param length Length of the newly edited segment
-		 * @param time Timestamp when the new edit was made. There are no 
-		 * restrictions  on the units used, as long as it is consistently used 
-		 * in the whole program
-		 * 
-		 * @return Whether the merge was successful
-		 */
-		public abstract boolean merge(int start, int length, long time);
-	}
-	
-	private class InsertCommand extends Command{
-		/**
-		 * Corresponds to an insertion of text of size length just before
-		 * start position.
-		 */
-		public InsertCommand(int start, int length, int groupNumber){
-			_start = start;
-			_length = length;
-			_group = groupNumber;
-		}
-
-		@Override
-		public boolean merge(int newStart, int length, long time) {
-			if(_lastEditTime < 0){
-				return false;
+
+	/**
+	 * Spills chars to file, then discards groups from the bottom of the
+	 * stack until the memory used is within budget. The most recent group
+	 * that can be undone is kept.
+	 */
+	private void enforceBudget(){
+		if(getMemoryUsage() > _memoryBudget){
+			spill();
+		}
+
+		while(getMemoryUsage() > _memoryBudget){
+			int group = _groups[_first];
+			int count = 1;
+			while(count < _size && _groups[_first + count] == group){
+				++count;
 			}
-			
-			if((time - _lastEditTime) < MERGE_TIME
-					&& newStart == _start + _length){
-				_length += length;
-				trimStack();
-				return true;
+			if(count >= _top){
+				break;
 			}
-			
-			return false;
+
+			_first += count;
+			_size -= count;
+			_top -= count;
+			_arenaStart = _arenaEnd;
+			for(int i = 0; i < _size; ++i){
+				int c = _first + i;
+				if(_dataLengths[c] != NOT_RECORDED){
+					_arenaStart = _dataStarts[c];
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the chars affected by entry c into the arena, if they are not
+	 * recorded yet or have changed since because of a merge.
+	 *
+	 * Only the top entry can have its chars recorded again, and its chars
+	 * are then at the end of the arena.
+	 */
+	private void recordData(int c){
+		int length = _lengths[c];
+		if(_dataLengths[c] == length){
+			return;
+		}
+		if(_dataLengths[c] != NOT_RECORDED){
+			TextWarriorException.assertVerbose(
+					_dataStarts[c] + _dataLengths[c] == _arenaEnd,
+					"Only the chars at the end of the undo arena can be recorded again");
+			truncateArena(_dataStarts[c]);
+		}
+
+		//TODO handle memory allocation failure
+		int destOffset = reserve(length);
+		if(_types[c] == DELETE && _buf.isGapStorage()){
+			_buf.getGapChars(length, _arena, destOffset);
 		}
+		else{
+			// inserted chars, or deleted chars that are about to be deleted
+			_buf.getChars(_starts[c], _starts[c] + length, _arena, destOffset);
+		}
+		_dataStarts[c] = _arenaEnd;
+		_dataLengths[c] = length;
+		_arenaEnd += length;
+	}
+
+	/**
+	 * Copies the length chars at start, which are about to be deleted, into
+	 * the arena in front of the recorded chars of the top entry c.
+	 * The recorded chars must be in memory. See unspill()
+	 */
+	private void prependData(int c, int start, int length){
+		int dataLength = _dataLengths[c];
+		TextWarriorException.assertVerbose(
+				_dataStarts[c] + dataLength == _arenaEnd,
+				"Only the chars at the end of the undo arena can be extended");
+
+		int destOffset = reserve(length);
+		int dataOffset = _dataStarts[c] - _arenaBase;
+		System.arraycopy(_arena, dataOffset, _arena, dataOffset + length, dataLength);
+		_buf.getChars(start, start + length, _arena, dataOffset);
+		_dataLengths[c] = dataLength + length;
+		_arenaEnd += length;
+	}
+
+	/**
+	 * Makes room for count more chars at the end of the arena, discarding
+	 * the chars that are no longer used or are spilled to file
+	 *
+	 * @return The index into _arena of the end of the arena
+	 */
+	private int reserve(int count){
+		if(_arenaEnd - _arenaBase + count > _arena.length){
+			int memoryStart = memoryStart();
+			int live = _arenaEnd - memoryStart;
+			int capacity = Math.max(INITIAL_ARENA_SIZE, 2 * (live + count));
+			char[] dest = (capacity == _arena.length) ? _arena : new char[capacity];
+			System.arraycopy(_arena, memoryStart - _arenaBase, dest, 0, live);
+			_arena = dest;
+			_arenaBase = memoryStart;
+		}
+		return _arenaEnd - _arenaBase;
+	}
+
+	/**
+	 * Discards the chars at and after position end of the arena
+	 */
+	private void truncateArena(int end){
+		_arenaEnd = end;
+		_spilledEnd = Math.min(_spilledEnd, end);
+		_arenaBase = Math.min(_arenaBase, end);
+	}
+
+	/** Position of the oldest char that is used and kept in _arena */
+	private int memoryStart(){
+		return Math.max(_arenaStart, _spilledEnd);
+	}
+
+	/**
+	 * Returns a copy of the recorded chars of entry c
+	 */
+	private char[] getData(int c) throws IOException{
+		int start = _dataStarts[c];
+		char[] data = new char[_dataLengths[c]];
+		int spilled = Math.max(0, Math.min(data.length, _spilledEnd - start));
+		if(spilled > 0){
+			readSpilled(start, data, 0, spilled);
+		}
+		if(spilled < data.length){
+			System.arraycopy(_arena, start + spilled - _arenaBase, data, spilled,
+					data.length - spilled);
+		}
+		return data;
+	}
 
-		@Override
-		public void recordData() {
-			//TODO handle memory allocation failure
-			_data = new String(_buf.subSequence(_start, _length));
+	/**
+	 * Appends the chars of all entries before the top entry that are still
+	 * in memory to the spill file, and frees the memory they used
+	 */
+	private void spill(){
+		if(_isSpillFailed || getSpillDirectory() == null){
+			return;
 		}
 
-		@Override
-		public void undo() {
-			if(_data == null){
-				recordData();
-				_buf.shiftGapStart(-_length);
+		// the chars of the top entry may still be extended or recorded again
+		int end = _arenaEnd;
+		for(int i = Math.max(_top - 1, 0); i < _size; ++i){
+			int c = _first + i;
+			if(_dataLengths[c] != NOT_RECORDED){
+				end = _dataStarts[c];
+				break;
 			}
-			else{
-				//dummy timestamp of 0
-				_buf.delete(_start, _length, 0 ,false);
+		}
+		int start = memoryStart();
+		if(end - start < MIN_SPILL_SIZE){
+			return;
+		}
+
+		try{
+			if(_spillFile == null){
+				File file = File.createTempFile("undo", ".tmp", getSpillDirectory());
+				_spillFile = new RandomAccessFile(file, "rw");
+				if(!file.delete()){
+					file.deleteOnExit();
+				}
+			}
+			if(_arenaStart >= _spilledEnd){
+				// nothing in the file is used any more; reuse it from the start
+				_spillFileBase = start;
 			}
+			writeSpilled(start, end);
 		}
+		catch(IOException ex){
+			_isSpillFailed = true;
+			return;
+		}
+		_spilledEnd = end;
 
-		@Override
-		public void redo() {
-			//dummy timestamp of 0
-			_buf.insert(_data.toCharArray(), _start, 0, false);
+		// release the memory of the spilled chars
+		int live = _arenaEnd - end;
+		char[] dest = new char[Math.max(INITIAL_ARENA_SIZE, 2 * live)];
+		System.arraycopy(_arena, end - _arenaBase, dest, 0, live);
+		_arena = dest;
+		_arenaBase = end;
+	}
+
+	/**
+	 * Reads the chars of entry c back into memory if they are spilled.
+	 * Entry c must be the top entry, whose chars are at the end of the arena.
+	 *
+	 * @return false if the chars could not be read, in which case the whole
+	 * 		history is discarded
+	 */
+	private boolean unspill(int c){
+		int start = _dataStarts[c];
+		if(_dataLengths[c] == NOT_RECORDED || start >= _spilledEnd){
+			return true;
 		}
 
-		@Override
-		public int findRedoPosition() {
-			return _start + _length;
+		int spilled = _spilledEnd - start;
+		int live = _arenaEnd - start;
+		char[] dest = new char[Math.max(INITIAL_ARENA_SIZE, 2 * live)];
+		try{
+			readSpilled(start, dest, 0, spilled);
 		}
+		catch(IOException ex){
+			discardHistory();
+			return false;
+		}
+		System.arraycopy(_arena, _spilledEnd - _arenaBase, dest, spilled, live - spilled);
+		_arena = dest;
+		_arenaBase = start;
+		_spilledEnd = start;
+		return true;
+	}
 
-		@Override
-		public int findUndoPosition() {
-			return _start;
+	private void writeSpilled(int start, int end) throws IOException{
+		if(_spillBuffer == null){
+			_spillBuffer = new byte[2 * SPILL_BUFFER_SIZE];
+		}
+		_spillFile.seek(2L * (start - _spillFileBase));
+		int position = start;
+		while(position < end){
+			int count = Math.min(end - position, SPILL_BUFFER_SIZE);
+			int offset = position - _arenaBase;
+			for(int i = 0; i < count; ++i){
+				char ch = _arena[offset + i];
+				_spillBuffer[2 * i] = (byte) (ch >> 8);
+				_spillBuffer[2 * i + 1] = (byte) ch;
+			}
+			_spillFile.write(_spillBuffer, 0, 2 * count);
+			position += count;
 		}
 	}
-	
-	
-	private class DeleteCommand extends Command{
-		/**
-		 * Corresponds to an deletion of text of size length starting from
-		 * start position, inclusive.
-		 */
-		public DeleteCommand(int start, int length, int seqNumber){
-			_start = start;
-			_length = length;
-			_group = seqNumber;
+
+	private void readSpilled(int start, char[] dest, int destOffset, int count)
+	throws IOException{
+		if(_spillBuffer == null){
+			_spillBuffer = new byte[2 * SPILL_BUFFER_SIZE];
 		}
+		_spillFile.seek(2L * (start - _spillFileBase));
+		while(count > 0){
+			int n = Math.min(count, SPILL_BUFFER_SIZE);
+			_spillFile.readFully(_spillBuffer, 0, 2 * n);
+			for(int i = 0; i < n; ++i){
+				dest[destOffset + i] = (char) (((_spillBuffer[2 * i] & 0xFF) << 8)
+						| (_spillBuffer[2 * i + 1] & 0xFF));
+			}
+			destOffset += n;
+			count -= n;
+		}
+	}
 
-		@Override
-		public boolean merge(int newStart, int length, long time) {
-			if(_lastEditTime < 0){
-				return false;
+	/**
+	 * Closes the spill file. The stack cannot be used afterwards.
+	 */
+	public void close(){
+		if(_spillFile != null){
+			try{
+				_spillFile.close();
 			}
-			
-			if((time - _lastEditTime) < MERGE_TIME
-					&& newStart == _start - _length - length + 1){
-				_start = newStart;
-				_length += length;
-				trimStack();
-				return true;
+			catch(IOException ex){
+				// the file is already deleted
 			}
-			
-			return false;
+			_spillFile = null;
 		}
+	}
 
-		@Override
-		public void recordData() {
-			//TODO handle memory allocation failure
-			_data = new String(_buf.gapSubSequence(_length));
+	private void undo(int c) throws IOException{
+		boolean isRecorded = (_dataLengths[c] == _lengths[c]);
+		if(_types[c] == INSERT){
+			if(!isRecorded){
+				recordData(c);
+				if(_buf.isGapStorage()){
+					_buf.shiftGapStart(-_lengths[c]);
+					return;
+				}
+			}
+			//dummy timestamp of 0
+			_buf.delete(_starts[c], _lengths[c], 0, false);
 		}
-
-		@Override
-		public void undo() {
-			if(_data == null){
-				recordData();
-				_buf.shiftGapStart(_length);
+		else{
+			if(!isRecorded){
+				recordData(c);
+				_buf.shiftGapStart(_lengths[c]);
 			}
 			else{
 				//dummy timestamp of 0
-				_buf.insert(_data.toCharArray(), _start, 0, false);
+				_buf.insert(getData(c), _starts[c], 0, false);
 			}
 		}
+	}
 
-		@Override
-		public void redo() {
-			//dummy timestamp of 0
-			_buf.delete(_start, _length, 0, false);
+	private void redo(int c) throws IOException{
+		//dummy timestamp of 0
+		if(_types[c] == INSERT){
+			_buf.insert(getData(c), _starts[c], 0, false);
 		}
-
-		@Override
-		public int findRedoPosition() {
-			return _start;
+		else{
+			_buf.delete(_starts[c], _lengths[c], 0, false);
 		}
+	}
 
-		@Override
-		public int findUndoPosition() {
-			return _start + _length;
-		}
-	}// end inner class
+	public final boolean canUndo(){
+		return _top > 0;
+	}
+
+	public final boolean canRedo(){
+		return _top < _size;
+	}
+
+	public boolean isBatchEdit(){
+		return _isBatchEdit;
+	}
+
+	public void beginBatchEdit(){
+		_isBatchEdit = true;
+	}
+
+	public void endBatchEdit(){
+		_isBatchEdit = false;
+		_groupId++;
+	}
+
+	/**
+	 * Returns the approximate number of bytes of memory used by the entries
+	 * and their recorded chars. Chars spilled to file are not included.
+	 */
+	public int getMemoryUsage(){
+		return ENTRY_SIZE * _size + 2 * (_arenaEnd - memoryStart());
+	}
+
+	/**
+	 * Returns the number of bytes of recorded chars that are spilled to file
+	 */
+	public long getSpilledSize(){
+		return 2L * Math.max(0, _spilledEnd - _arenaStart);
+	}
+
+	public int getMemoryBudget(){
+		return _memoryBudget;
+	}
+
+	/**
+	 * Sets the number of bytes that the entries and their recorded chars
+	 * may use before whole groups of the oldest entries are discarded
+	 */
+	public void setMemoryBudget(int bytes){
+		_memoryBudget = bytes;
+		enforceBudget();
+	}
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Worker thread that replaces the estimated rows of a document with exact
+ * rows, a batch of chunks at a time, after
+ * DocumentProvider.analyzeWordWrap(int, int)
+ *
+ * A batch has one chunk for every TextFieldMetrics given, and its chunks are
+ * analyzed in parallel on a pool of that many threads, each from its own
+ * snapshot of the text. The batch is then passed to
+ * WrapCallback.wrapChunksDone(), which should apply the chunks in order to
+ * the document on the thread that displays it. The next batch is not
+ * started until all chunks of the previous one are applied.
+ */
+public class WordWrapThread extends Thread{
+	private final DocumentProvider _hDoc;
+	private final Document.TextFieldMetrics[] _metrics;
+	private final WrapCallback _callback;
+	/** can be set by another thread to stop wrapping */
+	private final Flag _abort = new Flag();
+
+	/**
+	 * @param metrics One per thread used to analyze chunks. They are used
+	 * 		only by those threads, so they should be copies of the metrics
+	 * 		of the text field. Usually there is one per core.
+	 */
+	public WordWrapThread(DocumentProvider hDoc, Document.TextFieldMetrics[] metrics,
+			WrapCallback callback){
+		_hDoc = hDoc;
+		_metrics = metrics;
+		_callback = callback;
+	}
+
+	@Override
+	public void run(){
+		ExecutorService pool = (_metrics.length > 1)
+				? Executors.newFixedThreadPool(_metrics.length)
+				: null;
+		try{
+			while(!_abort.isSet()){
+				Document.WrapChunk[] chunks = _hDoc.nextWrapChunks(_metrics.length);
+				if(chunks == null){
+					break;
+				}
+				analyze(chunks, pool);
+				if(_abort.isSet()){
+					break;
+				}
+				_callback.wrapChunksDone(chunks);
+			}
+		}
+		catch(InterruptedException ex){
+			// aborted while waiting for the previous batch
+		}
+		finally{
+			if(pool != null){
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	private void analyze(Document.WrapChunk[] chunks, ExecutorService pool)
+			throws InterruptedException{
+		if(pool == null || chunks.length == 1){
+			for(Document.WrapChunk chunk : chunks){
+				chunk.analyze(_metrics[0]);
+			}
+			return;
+		}
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(chunks.length);
+		for(int i = 0; i < chunks.length; ++i){
+			tasks.add(new AnalyzeTask(chunks[i], _metrics[i]));
+		}
+		List<Future<Object>> results = pool.invokeAll(tasks);
+		for(Future<Object> result : results){
+			try{
+				result.get();
+			}
+			catch(ExecutionException ex){
+				// chunks that were not analyzed are discarded when applied
+				TextWarriorException.fail("Word wrap failed: " + ex.getCause());
+			}
+		}
+	}
+
+	public void abort(){
+		_abort.set();
+		interrupt();
+	}
+
+
+	private static class AnalyzeTask implements Callable<Object>{
+		private final Document.WrapChunk _chunk;
+		private final Document.TextFieldMetrics _metrics;
+
+		AnalyzeTask(Document.WrapChunk chunk, Document.TextFieldMetrics metrics){
+			_chunk = chunk;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Object call(){
+			_chunk.analyze(_metrics);
+			return null;
+		}
+	}
+
+	public static interface WrapCallback{
+		/**
+		 * Called on the worker thread when the rows of chunks are found.
+		 * DocumentProvider.applyWrapChunk() must be called afterwards for
+		 * each chunk in order, usually on the UI thread, for wrapping to
+		 * continue.
+		 */
+		public void wrapChunksDone(Document.WrapChunk[] chunks);
+	}
+}
@@ -15,16 +15,16 @@ import java.io.IOException;
 
 public class WriteThread extends FileIOThread{
 	private DocumentProvider _hDoc;
+	/** The text to write, taken once the whole file is loaded */
+	private DocumentProvider _snapshot = null;
 	// reported progress will be scaled from 0 to MAX_PROGRESS
 	private final static int MAX_PROGRESS = 100;
+	private final static String TEMP_SUFFIX = ".tmp";
 	
 	public WriteThread(File file, DocumentProvider hDoc,
 	String encoding, String EOLchar){
 		super(file, encoding, EOLchar);
 		_hDoc = hDoc;
-		_totalChar = _hDoc.docLength();
-		TextWarriorException.assertVerbose(_totalChar > 0,
-				 "File to save must have at least 1 char");
 	}
 
 	public void run(){
@@ -38,26 +38,54 @@ public class WriteThread extends FileIOThread{
 			broadcastError(ProgressSource.WRITE,
 				ERROR_UNKNOWN, ex.getLocalizedMessage());
 	    }
+		finally{
+			if(_snapshot != null){
+				_snapshot.release();
+			}
+		}
 	}
 
 	private void realWrite() throws IOException{
-		FileOutputStream fs = new FileOutputStream(_file);
+		// a file that is still being mapped has only partly been appended to
+		// the document, and writing just that part would truncate it
+		_hDoc.finishLoading(_abortFlag);
+		if(_abortFlag.isSet()){
+			broadcastCancel(ProgressSource.WRITE);
+			return;
+		}
+		_snapshot = _hDoc.snapshot();
+		_totalChar = _snapshot.docLength();
+		TextWarriorException.assertVerbose(_totalChar > 0,
+				 "File to save must have at least 1 char");
+
+		// a file that the document is mapped from is still being read,
+		// so write to a temporary file and replace the original afterwards
+		boolean isMapped = _hDoc.isMappedFrom(_file);
+		File outputFile = isMapped ? new File(_file.getPath() + TEMP_SUFFIX) : _file;
+		FileOutputStream fs = new FileOutputStream(outputFile);
 
 		try{
 			resolveAutoEncodingAndEOL();
-	        _converter.writeAndConvert(fs, _hDoc, _encoding, _EOLchar, _abortFlag);
-
-	        if(!_abortFlag.isSet()){
-				_isDone = true;
-            	broadcastComplete(ProgressSource.WRITE);
-	        }
-            else{
-            	broadcastCancel(ProgressSource.WRITE);
-            }
+	        _converter.writeAndConvert(fs, _snapshot, _encoding, _EOLchar, _abortFlag);
 		}
 		finally{
 			fs.close();
 		}
+
+		if(!_abortFlag.isSet()){
+			if(isMapped && !outputFile.renameTo(_file)){
+				outputFile.delete();
+				throw new IOException("Cannot replace " + _file.getPath());
+			}
+			_isDone = true;
+			broadcastComplete(ProgressSource.WRITE);
+		}
+		else{
+			if(isMapped){
+				outputFile.delete();
+			}
+			broadcastCancel(ProgressSource.WRITE);
+		}
 	}
 
 	private void resolveAutoEncodingAndEOL() {
@@ -69,6 +97,15 @@ public class WriteThread extends FileIOThread{
 		}
 	}
 
+	/**
+	 * Returns the version of the document that is written. If the document
+	 * has been edited since, its current version is different.
+	 * Only valid after WRITE completion is broadcast.
+	 */
+	public int getSavedVersion(){
+		return _snapshot.getVersion();
+	}
+
 	@Override
 	public int getMax(){
 		return MAX_PROGRESS;
@@ -76,8 +113,8 @@ public class WriteThread extends FileIOThread{
 
 	@Override
 	public int getCurrent(){
-		double progressProportion = (double) _converter.getProgress()
-				/ (double) _totalChar;
+		double progressProportion = (_totalChar == 0) ? 0 :
+			(double) _converter.getProgress() / (double) _totalChar;
 		return (int) (progressProportion * MAX_PROGRESS);
 	}
 	